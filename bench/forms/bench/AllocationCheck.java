@@ -0,0 +1,167 @@
+package forms.bench;
+
+import forms.shapes.GeneralShape;
+import forms.windowsContents.Panel;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks that painting outlined shapes doesn't allocate in the outline code : the strokes and the inner outlines are cached,
+ * so once every shape has been painted, a frame must not allocate anything in the shapes or in the panel.
+ * <p>
+ * A panel holding outlined shapes is painted into an image. The bytes allocated per frame by the Event Dispatch Thread are measured,
+ * for the whole frame (Java2D allocates its own iterators) and for the outline code alone (getOutlineStroke() and getInnerOutline()
+ * called for every shape). Then the frames are painted again under a JFR recording of the allocation samples : each sample is
+ * attributed to the deepest method of the editor in its stack, and none may have been allocated by the editor itself.
+ * The program exits with 1 if the outline code or the panel allocates.
+ * <p>
+ * Usage : java -cp &lt;classes&gt; forms.bench.AllocationCheck [shapes] [frames]
+ * <br>Defaults : 3000 shapes, all outlined, 200 frames.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class AllocationCheck {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int CANVAS_SIZE = 1000;
+	private static final String EDITOR_PACKAGE = "forms."; // Methods of the editor, as opposed to the JDK
+
+	private static Panel panel;
+	private static List<GeneralShape> shapes;
+	private static BufferedImage image;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private AllocationCheck() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the check.
+	 * @param args The number of shapes and the number of frames, both optional.
+	 * @throws Exception If the recording can't be written or read.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		int shapeCount = Benchmarks.intArgument(args, 0, 3000);
+		int frames = Benchmarks.intArgument(args, 1, 200);
+
+		Benchmarks.onEventDispatchThread(() -> {
+			panel = new Panel(null, null, null);
+			panel.setSize(CANVAS_SIZE, CANVAS_SIZE);
+			shapes = Benchmarks.randomShapes(shapeCount, CANVAS_SIZE, 5);
+			for (GeneralShape shape : shapes) {
+				if (shape.getOutlineThickness() == 0) shape.setOutlineThickness(1 + (int) (shape.getId() % 10));
+			}
+			panel.addShapes(shapes);
+			image = new BufferedImage(CANVAS_SIZE, CANVAS_SIZE, BufferedImage.TYPE_INT_RGB);
+			for (int i = 0; i < frames; i++) { // Warm-up : the outlines are computed, the JIT compiles the paint
+				paintFrame();
+				touchOutlines();
+			}
+		});
+
+		long[] allocated = new long[2];
+		Benchmarks.onEventDispatchThread(() -> {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			long thread = Thread.currentThread().threadId();
+			long start = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < frames; i++) {
+				paintFrame();
+			}
+			allocated[0] = (threads.getThreadAllocatedBytes(thread) - start) / frames;
+			start = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < frames; i++) {
+				touchOutlines();
+			}
+			allocated[1] = (threads.getThreadAllocatedBytes(thread) - start) / frames;
+		});
+		System.out.printf("%d outlined shapes, %d frames%n", shapeCount, frames);
+		System.out.printf("Whole frame : %d bytes allocated per frame (%d per shape)%n", allocated[0], allocated[0] / shapeCount);
+		System.out.printf("Outline code alone : %d bytes allocated per frame%n", allocated[1]);
+
+		Path file = Files.createTempFile("allocations", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("jdk.ObjectAllocationSample").with("throttle", "off").withStackTrace();
+			recording.start();
+			Benchmarks.onEventDispatchThread(() -> {
+				for (int i = 0; i < frames; i++) {
+					paintFrame();
+				}
+			});
+			recording.stop();
+			recording.dump(file);
+		}
+		Map<String, Long> editorAllocations = new TreeMap<>(); // Method of the editor -> bytes, for the samples it allocated itself
+		Map<String, Long> jdkAllocations = new TreeMap<>(); // Method of the editor -> bytes, for the samples allocated by the JDK for it
+		long samples = 0;
+		for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+			if (!event.getThread("eventThread").getJavaName().startsWith("AWT-EventQueue")) continue;
+			samples++;
+			List<RecordedFrame> stack = (event.getStackTrace() == null ? List.of() : event.getStackTrace().getFrames());
+			for (int i = 0; i < stack.size(); i++) {
+				String method = stack.get(i).getMethod().getType().getName() + "." + stack.get(i).getMethod().getName();
+				if (method.startsWith(EDITOR_PACKAGE)) { // Deepest method of the editor
+					(i == 0 ? editorAllocations : jdkAllocations).merge(method, event.getLong("weight"), Long::sum);
+					break;
+				}
+			}
+		}
+		Files.delete(file);
+		System.out.printf("JFR : %d allocation samples on the Event Dispatch Thread%n", samples);
+		System.out.println("Allocated by the JDK, for :");
+		jdkAllocations.forEach((method, bytes) -> System.out.printf("  %s : %d bytes%n", method, bytes));
+		System.out.println("Allocated by the editor itself :");
+		editorAllocations.forEach((method, bytes) -> System.out.printf("  %s : %d bytes%n", method, bytes));
+
+		boolean allocates = (allocated[1] > 0 || !editorAllocations.isEmpty());
+		System.out.println(allocates ? "FAILED : the outline code or the panel allocates" : "OK : neither the outline code nor the panel allocates");
+		System.exit(allocates ? 1 : 0);
+	}
+
+	/**
+	 * Paints the whole panel into the image. Must be called on the Event Dispatch Thread.
+	 */
+	private static void paintFrame() {
+		Graphics2D g2d = image.createGraphics();
+		try {
+			panel.paint(g2d);
+		} finally {
+			g2d.dispose();
+		}
+	}
+
+	/**
+	 * Gets the stroke and the inner outline of every shape, as painting them does.
+	 */
+	private static void touchOutlines() {
+		for (GeneralShape shape : shapes) {
+			GeneralShape.getOutlineStroke(shape.getOutlineThickness());
+			shape.getInnerOutline();
+		}
+	}
+
+}
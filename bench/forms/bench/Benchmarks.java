@@ -0,0 +1,157 @@
+package forms.bench;
+
+import forms.managers.CursorManager;
+import forms.managers.WindowManager;
+import forms.shapes.GeneralShape;
+import forms.shapes.Oval;
+import forms.shapes.Rectangle;
+import forms.shapes.Triangle;
+import forms.windowsContents.Panel;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Helpers shared by the benchmarks : generated documents, panel without a window, Event Dispatch Thread, arguments and percentiles.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+final class Benchmarks {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	/**
+	 * Code run on the Event Dispatch Thread, which may throw anything.
+	 */
+	interface Task {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Panel used without a window, e.g. to open files : resetting it only removes its shapes, as there is no help text to clear.
+	 */
+	static class WindowlessPanel extends Panel {
+
+		/**
+		 * Constructs an empty panel, which can be used on a headless machine.
+		 */
+		WindowlessPanel() {
+			super(new WindowManager(null), null, new CursorManager(new JPanel()));
+		}
+
+		@Override
+		public void reset() {
+			setShapes(new ArrayList<>());
+		}
+
+	}
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private Benchmarks() {
+		// Only static methods
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Generates a document as drawn with the editor : rectangles, ovals and triangles of random sizes and colors,
+	 * a third of them with an outline. Always the same shapes for the same seed.
+	 * @param count The number of shapes.
+	 * @param canvasSize The width and height of the area the shapes are spread on.
+	 * @param seed The seed of the random generator.
+	 * @return The shapes.
+	 */
+	static List<GeneralShape> randomShapes(int count, int canvasSize, long seed) {
+		Random random = new Random(seed);
+		List<GeneralShape> shapes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int x = random.nextInt(Math.max(canvasSize - 60, 1));
+			int y = random.nextInt(Math.max(canvasSize - 60, 1));
+			int w = 10 + random.nextInt(50);
+			int h = 10 + random.nextInt(50);
+			GeneralShape shape;
+			switch (i % 3) {
+				case 0: shape = new Rectangle(x, y, w, h); break;
+				case 1: shape = new Oval(x, y, w, h); break;
+				default: shape = new Triangle(new Point(x, y + h), new Point(x + w / 2, y), new Point(x + w, y + h)); break;
+			}
+			shape.setColor(new Color(random.nextInt()));
+			if (random.nextInt(3) == 0) {
+				shape.setOutlineThickness(1 + random.nextInt(10));
+				shape.setOutlineColor(new Color(random.nextInt()));
+			}
+			shapes.add(shape);
+		}
+		return shapes;
+	}
+
+	/**
+	 * Runs code on the Event Dispatch Thread and waits for it, e.g. to use a panel.
+	 * @param task The code.
+	 * @throws Exception The exception thrown by the code.
+	 */
+	static void onEventDispatchThread(Task task) throws Exception {
+		try {
+			SwingUtilities.invokeAndWait(() -> {
+				try {
+					task.run();
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IllegalStateException && cause.getCause() instanceof Exception) throw (Exception) cause.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads an optional integer argument.
+	 * @param args The arguments of the program.
+	 * @param index The position of the argument.
+	 * @param defaultValue The value if the argument is missing.
+	 * @return The value of the argument.
+	 */
+	static int intArgument(String[] args, int index, int defaultValue) {
+		return (args.length > index ? Integer.parseInt(args[index]) : defaultValue);
+	}
+
+	/**
+	 * Formats the median and the 99th percentile of durations.
+	 * @param nanos The durations, in nanoseconds. The array is sorted.
+	 * @return The percentiles, in microseconds.
+	 */
+	static String percentiles(long[] nanos) {
+		Arrays.sort(nanos);
+		return String.format("p50 %8.1f us, p99 %8.1f us", nanos[nanos.length / 2] / 1e3, nanos[Math.min(nanos.length * 99 / 100, nanos.length - 1)] / 1e3);
+	}
+
+	/**
+	 * Gets the median of durations.
+	 * @param nanos The durations, in nanoseconds. The array is sorted.
+	 * @return The median, in nanoseconds.
+	 */
+	static long median(long[] nanos) {
+		Arrays.sort(nanos);
+		return nanos[nanos.length / 2];
+	}
+
+}
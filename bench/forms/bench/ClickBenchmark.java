@@ -0,0 +1,98 @@
+package forms.bench;
+
+import forms.shapes.GeneralShape;
+import forms.shapes.ShapeIndex;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the latency of a click against the number of shapes : the shape under the mouse is found by testing every shape from the top
+ * one down, as the panel did, then with the spatial index the panel uses now. Both ways must find the same shape for every click.
+ * <p>
+ * Usage : java -cp &lt;classes&gt; forms.bench.ClickBenchmark [clicks] [canvas size]
+ * <br>Defaults : 2000 clicks per measure, shapes spread on 2000 x 2000 pixels. Each number of shapes is measured twice, the first time warms the JVM up.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class ClickBenchmark {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int[] SHAPE_COUNTS = {1_000, 10_000, 50_000, 100_000, 200_000};
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private ClickBenchmark() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The number of clicks and the size of the canvas, both optional.
+	 */
+	public static void main(String[] args) {
+		int clicks = Benchmarks.intArgument(args, 0, 2000);
+		int canvasSize = Benchmarks.intArgument(args, 1, 2000);
+
+		System.out.println("shapes   | linear scan                       | spatial index");
+		for (int shapeCount : SHAPE_COUNTS) {
+			List<GeneralShape> shapes = Benchmarks.randomShapes(shapeCount, canvasSize, 1);
+			ShapeIndex index = new ShapeIndex();
+			index.addAll(shapes, 0);
+
+			for (int round = 0; round < 2; round++) {
+				Random random = new Random(2); // The same clicks for both ways
+				Point2D[] points = new Point2D[clicks];
+				for (int i = 0; i < clicks; i++) {
+					points[i] = new Point2D.Double(random.nextInt(canvasSize), random.nextInt(canvasSize));
+				}
+
+				long[] linear = new long[clicks];
+				long[] indexed = new long[clicks];
+				int hits = 0;
+				for (int i = 0; i < clicks; i++) {
+					long start = System.nanoTime();
+					GeneralShape expected = topmostByScan(shapes, points[i]);
+					linear[i] = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					GeneralShape found = index.topmostAt(points[i]);
+					indexed[i] = System.nanoTime() - start;
+
+					if (found != expected) throw new IllegalStateException("The index found another shape at " + points[i]);
+					if (found != null) hits++;
+				}
+				if (round == 1) {
+					System.out.printf("%8d | %s | %s (%d%% of the clicks on a shape)%n", shapeCount, Benchmarks.percentiles(linear),
+							Benchmarks.percentiles(indexed), hits * 100 / clicks);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the shape under a point as the panel did before the index : every shape is tested, from the top one down.
+	 * @param shapes The shapes, from the bottom one to the top one.
+	 * @param point The point clicked.
+	 * @return The top shape containing the point, or null.
+	 */
+	private static GeneralShape topmostByScan(List<GeneralShape> shapes, Point2D point) {
+		for (int i = shapes.size() - 1; i >= 0; i--) {
+			if (shapes.get(i).contains(point)) return shapes.get(i);
+		}
+		return null;
+	}
+
+}
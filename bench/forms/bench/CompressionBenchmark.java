@@ -0,0 +1,117 @@
+package forms.bench;
+
+import forms.managers.DocumentSnapshot;
+import forms.managers.FileManager;
+import forms.windowsContents.Panel;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures each compression level of the saved files, in both formats : size, time to save and time to load.
+ * <p>
+ * A generated document (rectangles, ovals and triangles) is saved and loaded with the file manager, as when the user saves or opens it,
+ * at each level from 0 (not compressed) to 9. The ratio is the size of the file against the size of the file of level 0 in the same
+ * format. Each measure is made several times, the median is printed.
+ * <p>
+ * Usage : java -cp &lt;classes&gt; forms.bench.CompressionBenchmark [shapes] [repetitions]
+ * <br>Defaults : 100000 shapes, 3 repetitions. The files are written in a temporary directory, deleted at the end.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class CompressionBenchmark {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static Panel panel;
+	private static FileManager fileManager;
+	private static DocumentSnapshot snapshot;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private CompressionBenchmark() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The number of shapes and the number of repetitions, both optional.
+	 * @throws Exception If a file can't be written or read.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		int shapeCount = Benchmarks.intArgument(args, 0, 100_000);
+		int repetitions = Benchmarks.intArgument(args, 1, 3);
+
+		Benchmarks.onEventDispatchThread(() -> {
+			panel = new Benchmarks.WindowlessPanel();
+			fileManager = new FileManager(panel);
+			panel.addShapes(Benchmarks.randomShapes(shapeCount, 2000, 1));
+			snapshot = fileManager.createSnapshot();
+		});
+
+		Path directory = Files.createTempDirectory("compression");
+		try {
+			System.out.println(shapeCount + " shapes");
+			System.out.println("format  level |       size | ratio | save     | load");
+			for (boolean binary : new boolean[] {true, false}) {
+				fileManager.setBinaryFormat(binary);
+				long uncompressedLength = 0;
+				for (int level = 0; level <= FileManager.MAX_COMPRESSION_LEVEL; level++) {
+					File file = directory.resolve("level" + level + (binary ? ".bin" : ".txt")).toFile();
+					fileManager.setCompressionLevel(level);
+					long[] times = measure(file, shapeCount, repetitions);
+					if (level == 0) uncompressedLength = file.length();
+					System.out.printf("%-7s %5d | %7.1f MB | %4.0f%% | %5.0f ms | %5.0f ms%n", (binary ? "binary" : "text"), level, file.length() / 1e6,
+							100.0 * file.length() / uncompressedLength, times[0] / 1e6, times[1] / 1e6);
+				}
+			}
+		} finally {
+			for (File file : directory.toFile().listFiles()) file.delete();
+			Files.delete(directory);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Saves and loads the document with the current format and level of the file manager.
+	 * @param file The file to write.
+	 * @param shapeCount The number of shapes of the document.
+	 * @param repetitions The number of times each measure is made.
+	 * @return The median times to save and to load, in nanoseconds.
+	 * @throws Exception If the file can't be written or read.
+	 */
+	private static long[] measure(File file, int shapeCount, int repetitions) throws Exception {
+		long[] saves = new long[repetitions + 1];
+		long[] loads = new long[repetitions + 1];
+		for (int i = 0; i <= repetitions; i++) { // The first time warms the JVM up
+			long start = System.nanoTime();
+			fileManager.writeFile(file.getPath(), snapshot); // As the background save does
+			saves[i] = System.nanoTime() - start;
+
+			long[] load = new long[1];
+			Benchmarks.onEventDispatchThread(() -> {
+				long loadStart = System.nanoTime();
+				fileManager.restoreFile(file);
+				load[0] = System.nanoTime() - loadStart;
+				if (panel.getShapes().size() != shapeCount) throw new IllegalStateException(panel.getShapes().size() + " shapes loaded");
+			});
+			loads[i] = load[0];
+		}
+		return new long[] {Benchmarks.median(Arrays.copyOfRange(saves, 1, saves.length)),
+				Benchmarks.median(Arrays.copyOfRange(loads, 1, loads.length))};
+	}
+
+}
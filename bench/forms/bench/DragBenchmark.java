@@ -0,0 +1,204 @@
+package forms.bench;
+
+import forms.managers.CursorManager;
+import forms.managers.WindowManager;
+import forms.shapes.GeneralShape;
+import forms.shapes.Oval;
+import forms.shapes.Rectangle;
+import forms.shapes.Triangle;
+import forms.windowsContents.Panel;
+
+import java.awt.Point;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.geom.AffineTransform;
+import java.util.List;
+
+import javax.swing.JPanel;
+
+/**
+ * Measures a drag session : thousands of mouseDragged events moving a shape, on a rectangle, an oval, a composed oval and a triangle.
+ * <p>
+ * The first part replays what the panel does with the shape for each event : before, the path was transformed and its bounds were
+ * computed four times from the path (getBounds()) ; now, the shape is translated and its cached bounds are read four times.
+ * The second part sends the events to the listeners of a panel holding a generated document, so the whole handling of an event
+ * is measured (index update, area to repaint), without painting.
+ * <p>
+ * Usage : java -cp &lt;classes&gt; forms.bench.DragBenchmark [events] [shapes]
+ * <br>Defaults : 20000 events per drag, 10000 shapes in the panel. Each measure is made three times, the first one warms the JVM up.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class DragBenchmark {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int ROUNDS = 3;
+	private static final int BOUNDS_READS = 4; // Bounds read by the panel for each event (move, cursor, repaint, index)
+
+	private static long sink; // Keeps the JIT from removing the reads of the bounds
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private DragBenchmark() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The number of events per drag and the number of shapes in the panel, both optional.
+	 * @throws Exception If the panel can't be used.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		int events = Benchmarks.intArgument(args, 0, 20_000);
+		int shapeCount = Benchmarks.intArgument(args, 1, 10_000);
+		String[] names = {"rectangle", "oval", "composed oval", "triangle"};
+
+		System.out.println("Shape alone, per event : transform() + getBounds() | translate() + getCachedBounds()");
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < names.length; i++) {
+				double before = dragWithTransform(createShape(i), events);
+				double after = dragWithTranslate(createShape(i), events);
+				if (round == ROUNDS - 1) {
+					System.out.printf("%-14s %8.3f us | %8.3f us (x%.1f)%n", names[i], before / 1e3, after / 1e3, before / after);
+				}
+			}
+		}
+
+		System.out.println("Panel with " + shapeCount + " shapes, mouseDragged handled in :");
+		for (int round = 0; round < ROUNDS; round++) {
+			boolean measured = (round == ROUNDS - 1);
+			for (int i = 0; i < names.length; i++) {
+				int shapeIndex = i;
+				Benchmarks.onEventDispatchThread(() -> {
+					double nanos = dragInPanel(createShape(shapeIndex), shapeCount, events);
+					if (measured) System.out.printf("%-14s %8.3f us%n", names[shapeIndex], nanos / 1e3);
+				});
+			}
+		}
+		System.out.println(sink == 42 ? "" : "Done");
+	}
+
+	/**
+	 * Creates one of the shapes dragged, around (300, 300).
+	 * @param kind 0 for a rectangle, 1 for an oval, 2 for an oval united with eight others, 3 for a triangle.
+	 * @return The shape.
+	 */
+	private static GeneralShape createShape(int kind) {
+		switch (kind) {
+			case 0: return new Rectangle(250, 250, 100, 80);
+			case 1: return new Oval(250, 250, 100, 80);
+			case 2: {
+				GeneralShape flower = new Oval(260, 260, 80, 80);
+				for (int i = 0; i < 8; i++) {
+					GeneralShape petal = new Oval(290, 225, 20, 50);
+					petal.rotate(i * 45, 300, 300);
+					flower.add(petal);
+				}
+				return flower;
+			}
+			default: return new Triangle(new Point(250, 330), new Point(300, 250), new Point(350, 330));
+		}
+	}
+
+	/**
+	 * Replays a drag as it was handled before the bounds were cached.
+	 * @param shape The shape dragged.
+	 * @param events The number of mouseDragged events.
+	 * @return The mean time per event, in nanoseconds.
+	 */
+	private static double dragWithTransform(GeneralShape shape, int events) {
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			double d = ((i / 100) % 2 == 0 ? 1 : -1); // Back and forth, so the shape stays in the canvas
+			shape.transform(AffineTransform.getTranslateInstance(d, d));
+			for (int j = 0; j < BOUNDS_READS; j++) {
+				sink += shape.getBounds().x;
+			}
+		}
+		return (System.nanoTime() - start) / (double) events;
+	}
+
+	/**
+	 * Replays a drag as it is handled now.
+	 * @param shape The shape dragged.
+	 * @param events The number of mouseDragged events.
+	 * @return The mean time per event, in nanoseconds.
+	 */
+	private static double dragWithTranslate(GeneralShape shape, int events) {
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			double d = ((i / 100) % 2 == 0 ? 1 : -1);
+			shape.translate(d, d);
+			for (int j = 0; j < BOUNDS_READS; j++) {
+				sink += shape.getCachedBounds().x;
+			}
+		}
+		return (System.nanoTime() - start) / (double) events;
+	}
+
+	/**
+	 * Drags a shape in a panel by sending the mouse events to its listeners : a press to select the shape, a press inside it to start
+	 * the move, then the drag events. Must be called on the Event Dispatch Thread.
+	 * @param shape The shape dragged, put on top of the generated document.
+	 * @param shapeCount The number of shapes of the generated document.
+	 * @param events The number of mouseDragged events.
+	 * @return The mean time per event, in nanoseconds.
+	 */
+	private static double dragInPanel(GeneralShape shape, int shapeCount, int events) {
+		Panel panel = new Panel(new WindowManager(null), null, new CursorManager(new JPanel()));
+		panel.setSize(2000, 2000);
+		List<GeneralShape> shapes = Benchmarks.randomShapes(shapeCount, 2000, 1);
+		shapes.add(shape);
+		panel.addShapes(shapes);
+
+		MouseListener[] listeners = panel.getMouseListeners();
+		MouseMotionListener[] motionListeners = panel.getMouseMotionListeners();
+		Point center = new Point(300, 300);
+		for (int i = 0; i < 2; i++) { // Selection, then start of the move
+			MouseEvent press = mouseEvent(panel, MouseEvent.MOUSE_PRESSED, center);
+			for (MouseListener listener : listeners) listener.mousePressed(press);
+		}
+		if (panel.getSelectedShape() != shape) throw new IllegalStateException("The shape dragged isn't selected");
+
+		int x = center.x;
+		int y = center.y;
+		long start = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			int d = ((i / 100) % 2 == 0 ? 1 : -1);
+			x += d;
+			y += d;
+			MouseEvent drag = mouseEvent(panel, MouseEvent.MOUSE_DRAGGED, new Point(x, y));
+			for (MouseMotionListener listener : motionListeners) listener.mouseDragged(drag);
+		}
+		double nanos = (System.nanoTime() - start) / (double) events;
+		// No release : it would write in the help text of the window, which doesn't exist here.
+		sink += shape.getCachedBounds().x;
+		return nanos;
+	}
+
+	/**
+	 * Creates an event of the left button.
+	 * @param panel The source of the event.
+	 * @param id The type of the event.
+	 * @param point The position of the mouse.
+	 * @return The event.
+	 */
+	private static MouseEvent mouseEvent(Panel panel, int id, Point point) {
+		return new MouseEvent(panel, id, System.currentTimeMillis(), InputEvent.BUTTON1_DOWN_MASK, point.x, point.y, 1, false, MouseEvent.BUTTON1);
+	}
+
+}
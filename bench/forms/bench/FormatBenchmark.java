@@ -0,0 +1,115 @@
+package forms.bench;
+
+import forms.managers.DocumentSnapshot;
+import forms.managers.FileManager;
+import forms.shapes.GeneralShape;
+import forms.windowsContents.Panel;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the binary and the text formats of the saved files : size, time to save and time to load.
+ * <p>
+ * Two documents are measured : rectangles, ovals and triangles (the control points of the ovals need doubles), and rectangles only
+ * (every coordinate fits in a float, so the binary format stores floats). The file is saved and loaded with the file manager,
+ * as when the user saves or opens it, without compression. Each measure is made several times, the median is printed.
+ * <p>
+ * Usage : java -cp &lt;classes&gt; forms.bench.FormatBenchmark [shapes] [repetitions]
+ * <br>Defaults : 100000 shapes, 5 repetitions. The files are written in a temporary directory, deleted at the end.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class FormatBenchmark {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static Panel panel;
+	private static FileManager fileManager;
+	private static DocumentSnapshot snapshot;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private FormatBenchmark() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The number of shapes and the number of repetitions, both optional.
+	 * @throws Exception If a file can't be written or read.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		int shapeCount = Benchmarks.intArgument(args, 0, 100_000);
+		int repetitions = Benchmarks.intArgument(args, 1, 5);
+
+		Path directory = Files.createTempDirectory("formats");
+		try {
+			System.out.println(shapeCount + " shapes, " + ForkJoinPool.getCommonPoolParallelism() + " threads to parse the text files");
+			System.out.println("document            format  |       size | save     | load");
+			measure("mixed shapes", Benchmarks.randomShapes(shapeCount, 2000, 1), directory, repetitions);
+			measure("rectangles", TransportBenchmark.generateShapes(shapeCount), directory, repetitions);
+		} finally {
+			for (File file : directory.toFile().listFiles()) file.delete();
+			Files.delete(directory);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Saves and loads a document in both formats.
+	 * @param name The name of the document.
+	 * @param shapes The shapes of the document.
+	 * @param directory The directory the files are written in.
+	 * @param repetitions The number of times each measure is made.
+	 * @throws Exception If a file can't be written or read.
+	 */
+	private static void measure(String name, List<GeneralShape> shapes, Path directory, int repetitions) throws Exception {
+		Benchmarks.onEventDispatchThread(() -> {
+			panel = new Benchmarks.WindowlessPanel();
+			fileManager = new FileManager(panel);
+			panel.addShapes(shapes);
+			snapshot = fileManager.createSnapshot();
+		});
+
+		for (boolean binary : new boolean[] {true, false}) {
+			File file = directory.resolve(name.replace(' ', '_') + (binary ? ".bin" : ".txt")).toFile();
+			fileManager.setBinaryFormat(binary);
+			long[] saves = new long[repetitions + 1];
+			long[] loads = new long[repetitions + 1];
+			for (int i = 0; i <= repetitions; i++) { // The first time warms the JVM up
+				long start = System.nanoTime();
+				fileManager.writeFile(file.getPath(), snapshot); // As the background save does
+				saves[i] = System.nanoTime() - start;
+
+				long[] load = new long[1];
+				Benchmarks.onEventDispatchThread(() -> {
+					long loadStart = System.nanoTime();
+					fileManager.restoreFile(file);
+					load[0] = System.nanoTime() - loadStart;
+					if (panel.getShapes().size() != shapes.size()) throw new IllegalStateException(panel.getShapes().size() + " shapes loaded");
+				});
+				loads[i] = load[0];
+			}
+			System.out.printf("%-19s %-7s | %7.1f MB | %5.0f ms | %5.0f ms%n", name, (binary ? "binary" : "text"), file.length() / 1e6,
+					Benchmarks.median(Arrays.copyOfRange(saves, 1, saves.length)) / 1e6,
+					Benchmarks.median(Arrays.copyOfRange(loads, 1, loads.length)) / 1e6);
+		}
+	}
+
+}
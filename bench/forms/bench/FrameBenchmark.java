@@ -0,0 +1,207 @@
+package forms.bench;
+
+import forms.managers.CursorManager;
+import forms.managers.WindowManager;
+import forms.shapes.GeneralShape;
+import forms.shapes.Oval;
+import forms.windowsContents.Panel;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.RepaintManager;
+
+/**
+ * Measures the frame time during a continuous drag, at several canvas sizes, with the tiled renderer and with the direct paint.
+ * <p>
+ * The canvas is shown through a viewport, as in the scroll pane of the window. A shape is dragged in circles in the middle of it :
+ * each mouseDragged event is sent to the listeners of the panel, then the area the panel asks to repaint is painted into the viewport,
+ * as Swing would do. The frame time is the time of both. The first frame, counted with the first paint of the viewport, is given apart
+ * because it fills the caches : the tiles of the viewport for the tiled renderer, the layers under and above the shape (as big as
+ * the canvas) for the direct paint. A drag on the smallest canvas warms the JVM up before the measures.
+ * <p>
+ * Usage : java -cp &lt;classes&gt; forms.bench.FrameBenchmark [frames] [tile size]
+ * <br>Defaults : 500 frames, tiles of 256 pixels. Canvases of 2000, 4000, 8000 and 16000 pixels, one shape per 1000 square pixels,
+ * seen through a viewport of 1600 x 1000 pixels. Needs a big heap for the biggest canvases (e.g. -Xmx4g), the direct paint is skipped
+ * when its layers don't fit in the heap.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class FrameBenchmark {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int[] CANVAS_SIZES = {2_000, 4_000, 8_000, 16_000};
+	private static final int PIXELS_PER_SHAPE = 1000;
+	private static final int VIEWPORT_WIDTH = 1600;
+	private static final int VIEWPORT_HEIGHT = 1000;
+	private static final int DRAG_RADIUS = 300; // Radius of the circles the shape is dragged along
+
+	private static java.awt.Rectangle dirtyRegion; // Area asked to be repainted since the last frame
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private FrameBenchmark() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The number of frames and the size of the tiles, both optional.
+	 * @throws Exception If the panel can't be used.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		int frames = Benchmarks.intArgument(args, 0, 500);
+		int tileSize = Benchmarks.intArgument(args, 1, 256);
+
+		Benchmarks.onEventDispatchThread(() -> RepaintManager.setCurrentManager(new RepaintManager() {
+			@Override
+			public void addDirtyRegion(JComponent component, int x, int y, int w, int h) { // The panel isn't displayed, its repaints are only recorded
+				java.awt.Rectangle area = new java.awt.Rectangle(x, y, w, h);
+				dirtyRegion = (dirtyRegion == null ? area : dirtyRegion.union(area));
+			}
+		}));
+
+		List<GeneralShape> warmUp = Benchmarks.randomShapes(CANVAS_SIZES[0] * CANVAS_SIZES[0] / PIXELS_PER_SHAPE, CANVAS_SIZES[0], 2);
+		Benchmarks.onEventDispatchThread(() -> {
+			drag(warmUp, CANVAS_SIZES[0], true, tileSize, frames);
+			drag(warmUp, CANVAS_SIZES[0], false, tileSize, frames);
+		});
+
+		System.out.println("canvas  shapes  | tiled : first frame, then per frame          | direct : first frame, then per frame");
+		for (int canvasSize : CANVAS_SIZES) {
+			int shapeCount = (int) ((long) canvasSize * canvasSize / PIXELS_PER_SHAPE);
+			List<GeneralShape> shapes = Benchmarks.randomShapes(shapeCount, canvasSize, 1);
+			String[] results = new String[2];
+			for (int mode = 0; mode < 2; mode++) {
+				boolean tiled = (mode == 0);
+				long layersBytes = 2L * 4 * canvasSize * canvasSize; // Two layers of 4 bytes per pixel
+				if (!tiled && layersBytes > Runtime.getRuntime().maxMemory() / 2) {
+					results[mode] = String.format("skipped, layers of %d MB", layersBytes >> 20);
+					continue;
+				}
+				Benchmarks.onEventDispatchThread(() -> {
+					results[tiled ? 0 : 1] = drag(shapes, canvasSize, tiled, tileSize, frames);
+				});
+				System.gc(); // The caches of the previous panel mustn't be counted in the next measure
+			}
+			System.out.printf("%6d %7d | %-44s | %s%n", canvasSize, shapeCount, results[0], results[1]);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Drags a shape in a panel and paints each frame. Must be called on the Event Dispatch Thread.
+	 * @param documentShapes The shapes of the document.
+	 * @param canvasSize The width and height of the canvas.
+	 * @param tiled True to use the tiled renderer, false to use the direct paint.
+	 * @param tileSize The size of the tiles.
+	 * @param frames The number of frames.
+	 * @return The time of the first frame and the percentiles of the following ones.
+	 */
+	private static String drag(List<GeneralShape> documentShapes, int canvasSize, boolean tiled, int tileSize, int frames) {
+		Panel panel = new Panel(new WindowManager(null), null, new CursorManager(new JPanel()));
+		panel.setSize(canvasSize, canvasSize);
+		panel.setTileSize(tileSize);
+		panel.setTiledRendering(tiled);
+		List<GeneralShape> shapes = new ArrayList<>(documentShapes.size() + 1);
+		for (GeneralShape shape : documentShapes) {
+			shapes.add(shape.duplicate()); // Each panel has its own shapes
+		}
+		Point center = new Point(canvasSize / 2, canvasSize / 2);
+		GeneralShape dragged = new Oval(center.x - 40, center.y - 30, 80, 60);
+		dragged.setColor(Color.ORANGE);
+		dragged.setOutlineThickness(4);
+		dragged.setOutlineColor(Color.BLACK);
+		shapes.add(dragged);
+		panel.addShapes(shapes);
+
+		java.awt.Rectangle viewport = new java.awt.Rectangle(center.x - VIEWPORT_WIDTH / 2, center.y - VIEWPORT_HEIGHT / 2, VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+		BufferedImage screen = new BufferedImage(VIEWPORT_WIDTH, VIEWPORT_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		long showStart = System.nanoTime();
+		paint(panel, screen, viewport, viewport); // The window is shown
+		long show = System.nanoTime() - showStart;
+
+		MouseListener[] listeners = panel.getMouseListeners();
+		MouseMotionListener[] motionListeners = panel.getMouseMotionListeners();
+		for (int i = 0; i < 2; i++) { // Selection, then start of the move
+			MouseEvent press = mouseEvent(panel, MouseEvent.MOUSE_PRESSED, center);
+			for (MouseListener listener : listeners) listener.mousePressed(press);
+		}
+		if (panel.getSelectedShape() != dragged) throw new IllegalStateException("The shape dragged isn't selected");
+		dirtyRegion = null;
+
+		long[] frameTimes = new long[frames];
+		for (int i = 0; i < frames; i++) {
+			double angle = i * Math.PI / 60; // A circle every 120 frames
+			Point mouse = new Point(center.x + (int) (DRAG_RADIUS * Math.cos(angle)) - DRAG_RADIUS, center.y + (int) (DRAG_RADIUS * Math.sin(angle)));
+			long start = System.nanoTime();
+			MouseEvent drag = mouseEvent(panel, MouseEvent.MOUSE_DRAGGED, mouse);
+			for (MouseMotionListener listener : motionListeners) listener.mouseDragged(drag);
+			if (dirtyRegion != null) {
+				paint(panel, screen, viewport, dirtyRegion);
+				dirtyRegion = null;
+			}
+			frameTimes[i] = System.nanoTime() - start;
+		}
+		// No release : it would write in the help text of the window, which doesn't exist here.
+
+		long first = show + frameTimes[0];
+		long[] following = Arrays.copyOfRange(frameTimes, 1, frames);
+		return String.format("%7.1f ms, %s", first / 1e6, Benchmarks.percentiles(following));
+	}
+
+	/**
+	 * Paints an area of the panel into the viewport, as Swing does for a repaint.
+	 * @param panel The panel.
+	 * @param screen The image of the viewport.
+	 * @param viewport The part of the canvas shown.
+	 * @param area The area to paint, in the coordinates of the canvas.
+	 */
+	private static void paint(Panel panel, BufferedImage screen, java.awt.Rectangle viewport, java.awt.Rectangle area) {
+		java.awt.Rectangle clip = area.intersection(viewport);
+		if (clip.isEmpty()) return;
+		Graphics2D g2d = screen.createGraphics();
+		try {
+			g2d.translate(-viewport.x, -viewport.y);
+			g2d.clip(clip);
+			panel.paint(g2d);
+		} finally {
+			g2d.dispose();
+		}
+	}
+
+	/**
+	 * Creates an event of the left button.
+	 * @param panel The source of the event.
+	 * @param id The type of the event.
+	 * @param point The position of the mouse.
+	 * @return The event.
+	 */
+	private static MouseEvent mouseEvent(Panel panel, int id, Point point) {
+		return new MouseEvent(panel, id, System.currentTimeMillis(), InputEvent.BUTTON1_DOWN_MASK, point.x, point.y, 1, false, MouseEvent.BUTTON1);
+	}
+
+}
@@ -0,0 +1,191 @@
+package forms.bench;
+
+import forms.managers.FileManager;
+import forms.network.NioRemoteServer;
+import forms.network.NioServer;
+import forms.network.RemoteServer;
+import forms.network.Server;
+import forms.shapes.GeneralShape;
+import forms.windowsContents.Panel;
+
+import java.awt.Color;
+import java.io.File;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Load test of a server : hundreds of clients fetch the saved file at the same time, while the user of the server keeps editing and saving it.
+ * The server and the clients are run in two processes, so the clients don't take the processor of the Event Dispatch Thread.
+ * <p>
+ * Usage :
+ * <br>java -cp &lt;classes&gt; forms.bench.LoadTest server [shapes] [rmi port] [nio port]
+ * <br>java -cp &lt;classes&gt; forms.bench.LoadTest RMI|NIO [clients] [fetches] [host] [rmi port] [nio port]
+ * <br>Defaults : 2000 shapes, 300 clients, 40 fetches per client, localhost, ports 1299 and 1300.
+ * <p>
+ * The server adds a shape and saves every 200 ms. Each client asks for the fingerprint of the saved file, then for the file,
+ * as a client checking its copy would do. The latency of each fetch is printed as percentiles, for two rounds (the first one warms the JVMs up).
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class LoadTest {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int SAVE_DELAY = 200; // Milliseconds between two saves on the server
+	private static final int ROUNDS = 2;
+
+	private static Panel panel;
+	private static FileManager fileManager;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private LoadTest() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the server or the clients.
+	 * @param args "server" or the transport of the clients, followed by the optional parameters.
+	 * @throws Exception If the server can't be started or a client can't connect.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("Usage: LoadTest server [shapes] [rmi port] [nio port]");
+			System.out.println("       LoadTest RMI|NIO [clients] [fetches] [host] [rmi port] [nio port]");
+			return;
+		}
+		if (args[0].equals("server")) {
+			runServer((args.length > 1 ? Integer.parseInt(args[1]) : 2000), (args.length > 2 ? Integer.parseInt(args[2]) : 1299),
+					(args.length > 3 ? Integer.parseInt(args[3]) : 1300));
+		} else {
+			runClients(args[0], (args.length > 1 ? Integer.parseInt(args[1]) : 300), (args.length > 2 ? Integer.parseInt(args[2]) : 40),
+					(args.length > 3 ? args[3] : "127.0.0.1"), (args.length > 4 ? Integer.parseInt(args[4]) : 1299), (args.length > 5 ? Integer.parseInt(args[5]) : 1300));
+		}
+	}
+
+	/**
+	 * Starts a server with generated shapes, then edits and saves its panel until the process is stopped.
+	 * @param shapeCount The number of shapes.
+	 * @param rmiPort The port of the RMI registry, for which the file is saved.
+	 * @param nioPort The port of the NIO server.
+	 * @throws Exception If the server can't be started.
+	 */
+	private static void runServer(int shapeCount, int rmiPort, int nioPort) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		SwingUtilities.invokeAndWait(() -> {
+			panel = new Panel(null, null, null);
+			fileManager = new FileManager(panel);
+			panel.addShapes(TransportBenchmark.generateShapes(shapeCount));
+		});
+		Server server = new Server(fileManager, panel);
+		new File("files").mkdirs();
+		Runnable save = () -> {
+			try {
+				server.saveFile(rmiPort);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		};
+		SwingUtilities.invokeAndWait(save);
+		LocateRegistry.createRegistry(rmiPort).rebind("Server", server);
+		new NioServer(server, nioPort).start();
+		System.out.println("Server ready, RMI on port " + rmiPort + ", NIO on port " + nioPort);
+
+		Random random = new Random(4);
+		while (true) {
+			Thread.sleep(SAVE_DELAY);
+			SwingUtilities.invokeAndWait(() -> {
+				panel.addShape(new GeneralShape(new java.awt.Rectangle(random.nextInt(900), random.nextInt(900), 20, 20), Color.RED));
+				save.run();
+			});
+		}
+	}
+
+	/**
+	 * Connects the clients, then makes them all fetch the saved file at the same time and prints the latencies.
+	 * @param transport "RMI" or "NIO".
+	 * @param clientCount The number of clients, each with its own connection and thread.
+	 * @param fetches The number of fetches made by each client per round.
+	 * @param host The address of the server.
+	 * @param rmiPort The port of the RMI registry, for which the file is saved.
+	 * @param nioPort The port of the NIO server.
+	 * @throws Exception If a client can't connect.
+	 */
+	private static void runClients(String transport, int clientCount, int fetches, String host, int rmiPort, int nioPort) throws Exception {
+		List<RemoteServer> servers = new ArrayList<>(clientCount);
+		for (int i = 0; i < clientCount; i++) {
+			servers.add(transport.equals("NIO") ? NioRemoteServer.connect(host, nioPort) : (RemoteServer) Naming.lookup("rmi://" + host + ":" + rmiPort + "/Server"));
+		}
+
+		for (int round = 0; round < ROUNDS; round++) {
+			long[] latencies = new long[clientCount * fetches];
+			AtomicInteger fetched = new AtomicInteger();
+			AtomicInteger errors = new AtomicInteger();
+			AtomicLong length = new AtomicLong();
+			CountDownLatch start = new CountDownLatch(1);
+			List<Thread> threads = new ArrayList<>(clientCount);
+			for (RemoteServer server : servers) {
+				Thread thread = new Thread(() -> {
+					try {
+						start.await();
+						for (int i = 0; i < fetches; i++) {
+							long fetchStart = System.nanoTime();
+							server.getSavedFileFingerprint(rmiPort);
+							String content = server.getSavedFile(rmiPort);
+							latencies[fetched.getAndIncrement()] = System.nanoTime() - fetchStart;
+							length.addAndGet(content.length());
+							if (!content.startsWith("Background_")) errors.incrementAndGet();
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+						System.err.println(e);
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+
+			long roundStart = System.nanoTime();
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			double seconds = (System.nanoTime() - roundStart) / 1e9;
+
+			long[] sorted = Arrays.copyOf(latencies, fetched.get());
+			Arrays.sort(sorted);
+			if (sorted.length == 0) {
+				System.out.println(transport + " round " + round + " : no fetch succeeded, " + errors.get() + " errors");
+				continue;
+			}
+			System.out.printf("%s round %d, %d clients x %d fetches : p50 %.1f ms, p99 %.1f ms, max %.1f ms, %.0f fetches/s, %.0f MB/s, %d errors%n",
+					transport, round, clientCount, fetches, sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6,
+					sorted[sorted.length - 1] / 1e6, sorted.length / seconds, length.get() / seconds / 1e6, errors.get());
+		}
+
+		for (RemoteServer server : servers) {
+			if (server instanceof NioRemoteServer) ((NioRemoteServer) server).close();
+		}
+		System.exit(0); // The RMI runtime keeps the JVM alive otherwise
+	}
+
+}
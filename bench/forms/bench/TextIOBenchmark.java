@@ -0,0 +1,179 @@
+package forms.bench;
+
+import forms.managers.DocumentSnapshot;
+import forms.managers.FileManager;
+import forms.shapes.GeneralShape;
+import forms.windowsContents.Panel;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the throughput of the text files written and read by the file manager with the java.io path it replaced :
+ * <ul>
+ * <li>saving : BufferedWriter writing toTextFormat() line by line, against FileManager.writeFile(), which writes big documents
+ * through a ChannelWriter ;</li>
+ * <li>opening : BufferedReader reading line by line and parsing each line, against FileManager.restoreFile(), which maps files
+ * of 256 MB or more window by window and parses their lines by chunks (on several threads if there are several processors).</li>
+ * </ul>
+ * Both ways add the shapes to a panel when opening, and write the same bytes when saving.
+ * <p>
+ * Usage : java -Xmx4g -cp &lt;classes&gt; forms.bench.TextIOBenchmark [shapes] [repetitions]
+ * <br>Defaults : 2000000 shapes (a file of about 300 MB, so it's mapped), 3 repetitions. The median is printed.
+ * The files are written in a temporary directory, deleted at the end.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class TextIOBenchmark {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static Panel panel;
+	private static FileManager fileManager;
+	private static DocumentSnapshot snapshot;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private TextIOBenchmark() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The number of shapes and the number of repetitions, both optional.
+	 * @throws Exception If a file can't be written or read.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		int shapeCount = Benchmarks.intArgument(args, 0, 2_000_000);
+		int repetitions = Benchmarks.intArgument(args, 1, 3);
+
+		Benchmarks.onEventDispatchThread(() -> {
+			panel = new Benchmarks.WindowlessPanel();
+			fileManager = new FileManager(panel);
+			panel.addShapes(Benchmarks.randomShapes(shapeCount, 2000, 1));
+			snapshot = fileManager.createSnapshot();
+		});
+
+		Path directory = Files.createTempDirectory("textio");
+		File javaIoFile = directory.resolve("bufferedwriter.txt").toFile();
+		File nioFile = directory.resolve("filemanager.txt").toFile();
+		try {
+			long[] javaIoWrites = new long[repetitions];
+			long[] nioWrites = new long[repetitions];
+			long[] javaIoReads = new long[repetitions];
+			long[] nioReads = new long[repetitions];
+			for (int i = 0; i < repetitions; i++) {
+				javaIoWrites[i] = time(() -> writeWithBufferedWriter(javaIoFile));
+				nioWrites[i] = time(() -> fileManager.writeFile(nioFile.getPath(), snapshot));
+				javaIoReads[i] = time(() -> Benchmarks.onEventDispatchThread(() -> readWithBufferedReader(nioFile)));
+				checkShapeCount(shapeCount);
+				nioReads[i] = time(() -> Benchmarks.onEventDispatchThread(() -> fileManager.restoreFile(nioFile)));
+				checkShapeCount(shapeCount);
+			}
+
+			long length = nioFile.length();
+			System.out.printf("%d shapes, file of %.1f MB, %d threads to parse%n", shapeCount, length / 1e6, ForkJoinPool.getCommonPoolParallelism());
+			System.out.println("Same bytes written both ways : " + (Files.mismatch(javaIoFile.toPath(), nioFile.toPath()) == -1));
+			print("save  BufferedWriter + toTextFormat()", javaIoWrites, length);
+			print("save  FileManager (ChannelWriter)", nioWrites, length);
+			print("open  BufferedReader + fromTextFormat()", javaIoReads, length);
+			print("open  FileManager (mapped, chunks)", nioReads, length);
+		} finally {
+			javaIoFile.delete();
+			nioFile.delete();
+			Files.delete(directory);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Saves the document as the file manager did before : one line per shape, written with a BufferedWriter.
+	 * @param file The file to write.
+	 * @throws Exception If the file can't be written.
+	 */
+	private static void writeWithBufferedWriter(File file) throws Exception {
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			writer.write("Background_Color: " + snapshot.getBackgroundColor().getRGB());
+			writer.newLine();
+			for (GeneralShape shape : snapshot.getShapes()) {
+				writer.write(shape.toTextFormat());
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Opens the document as the file manager did before : one line after the other, read with a BufferedReader.
+	 * Must be called on the Event Dispatch Thread.
+	 * @param file The file to read.
+	 * @throws Exception If the file can't be read.
+	 */
+	private static void readWithBufferedReader(File file) throws Exception {
+		panel.reset();
+		List<GeneralShape> shapes = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			reader.readLine(); // Background
+			String line;
+			while ((line = reader.readLine()) != null) {
+				GeneralShape shape = GeneralShape.fromTextFormat(line);
+				if (shape != null) shapes.add(shape);
+			}
+		}
+		panel.addShapes(shapes);
+	}
+
+	/**
+	 * Checks that every shape has been opened.
+	 * @param shapeCount The number of shapes of the document.
+	 * @throws Exception If the panel can't be read.
+	 */
+	private static void checkShapeCount(int shapeCount) throws Exception {
+		Benchmarks.onEventDispatchThread(() -> {
+			if (panel.getShapes().size() != shapeCount) throw new IllegalStateException(panel.getShapes().size() + " shapes opened");
+		});
+	}
+
+	/**
+	 * Measures the time taken by some code.
+	 * @param task The code.
+	 * @return The time, in nanoseconds.
+	 * @throws Exception The exception thrown by the code.
+	 */
+	private static long time(Benchmarks.Task task) throws Exception {
+		long start = System.nanoTime();
+		task.run();
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Prints the median time and the throughput of a way of saving or opening.
+	 * @param name The name of the way.
+	 * @param nanos The times measured.
+	 * @param length The length of the file, in bytes.
+	 */
+	private static void print(String name, long[] nanos, long length) {
+		long median = Benchmarks.median(Arrays.copyOf(nanos, nanos.length));
+		System.out.printf("%-42s %6.0f ms, %5.0f MB/s%n", name, median / 1e6, length / (median / 1e9) / 1e6);
+	}
+
+}
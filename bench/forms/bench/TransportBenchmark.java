@@ -0,0 +1,199 @@
+package forms.bench;
+
+import forms.managers.FileManager;
+import forms.network.NioRemoteServer;
+import forms.network.NioServer;
+import forms.network.RemoteServer;
+import forms.network.Server;
+import forms.shapes.GeneralShape;
+import forms.windowsContents.Panel;
+
+import java.awt.Color;
+import java.io.File;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Compares the RMI and NIO transports on loopback : document transfer throughput and per-request latency.
+ * A server with a generated document is started in this process, on an RMI registry and on a NIO port, then the same
+ * requests are sent through both. The first round warms the JVM up, the following ones are the measures.
+ * <p>
+ * Usage : java -cp &lt;classes&gt; forms.bench.TransportBenchmark [shapes] [rounds] [rmi port] [nio port]
+ * <br>Defaults : 100000 shapes, 3 rounds, ports 1299 and 1300. The document is saved in files/RMIfile&lt;rmi port&gt;.
+ *
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class TransportBenchmark {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int TRANSFERS = 20; // Whole documents transferred per measure
+	private static final int LATENCY_CALLS = 20_000; // Small requests sent one after the other
+	private static final int THREADS = 16; // Clients sending small requests at the same time
+	private static final int CALLS_PER_THREAD = 2_000;
+
+	private static Panel panel;
+	private static FileManager fileManager;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private TransportBenchmark() {
+		// Only a main method
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Runs the benchmark.
+	 * @param args The number of shapes, the number of rounds, the RMI port and the NIO port, all optional.
+	 * @throws Exception If the server can't be started or a request fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true"); // The panel is never displayed
+		int shapeCount = (args.length > 0 ? Integer.parseInt(args[0]) : 100_000);
+		int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 3);
+		int rmiPort = (args.length > 2 ? Integer.parseInt(args[2]) : 1299);
+		int nioPort = (args.length > 3 ? Integer.parseInt(args[3]) : 1300);
+
+		// Server
+		SwingUtilities.invokeAndWait(() -> {
+			panel = new Panel(null, null, null);
+			fileManager = new FileManager(panel);
+			panel.addShapes(generateShapes(shapeCount));
+		});
+		Server server = new Server(fileManager, panel);
+		new File("files").mkdirs();
+		SwingUtilities.invokeAndWait(() -> {
+			try {
+				server.saveFile(rmiPort);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Registry registry = LocateRegistry.createRegistry(rmiPort);
+		registry.rebind("Server", server);
+		NioServer nioServer = new NioServer(server, nioPort);
+		nioServer.start();
+		System.out.println(shapeCount + " shapes, saved file of " + new File("files/RMIfile" + rmiPort).length() + " bytes");
+
+		// Clients
+		RemoteServer rmi = (RemoteServer) Naming.lookup("rmi://127.0.0.1:" + rmiPort + "/Server");
+		NioRemoteServer nio = NioRemoteServer.connect("127.0.0.1", nioPort);
+		try {
+			for (int round = 0; round < rounds; round++) {
+				System.out.println(round == 0 ? "-- Warm-up" : "-- Round " + round);
+				measure("RMI", rmi, rmiPort);
+				measure("NIO", nio, rmiPort);
+			}
+		} finally {
+			nio.close();
+			nioServer.close();
+			server.stop();
+		}
+		System.exit(0); // The RMI runtime keeps the JVM alive otherwise
+	}
+
+	/**
+	 * Measures a transport.
+	 * @param name The name of the transport.
+	 * @param server The server, reached through the transport.
+	 * @param port The port the document is saved for.
+	 * @throws Exception If a request fails.
+	 */
+	private static void measure(String name, RemoteServer server, int port) throws Exception {
+		// Whole document in one request
+		long start = System.nanoTime();
+		long length = 0;
+		for (int i = 0; i < TRANSFERS; i++) {
+			length = server.getSavedFile(port).length();
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / TRANSFERS;
+		System.out.printf("%s getSavedFile (%d chars) : %.1f ms, %.0f MB/s%n", name, length, millis, length / millis / 1000);
+
+		// Whole document chunk by chunk
+		start = System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < TRANSFERS; i++) {
+			long transferId = server.openSavedFile(port);
+			byte[] chunk;
+			while ((chunk = server.readChunk(transferId)) != null) {
+				bytes += chunk.length;
+			}
+		}
+		millis = (System.nanoTime() - start) / 1e6 / TRANSFERS;
+		System.out.printf("%s chunked read (%d bytes) : %.1f ms, %.0f MB/s%n", name, bytes / TRANSFERS, millis, bytes / TRANSFERS / millis / 1000);
+
+		// Whole document as changes
+		start = System.nanoTime();
+		int changes = 0;
+		for (int i = 0; i < TRANSFERS; i++) {
+			changes = server.getChangesSince(port, 0, 0).getChanges().size();
+		}
+		millis = (System.nanoTime() - start) / 1e6 / TRANSFERS;
+		System.out.printf("%s getChangesSince (%d shapes) : %.1f ms%n", name, changes, millis);
+
+		// Small requests, one after the other
+		long[] latencies = new long[LATENCY_CALLS];
+		for (int i = 0; i < LATENCY_CALLS; i++) {
+			long callStart = System.nanoTime();
+			server.getSavedFileFingerprint(port);
+			latencies[i] = System.nanoTime() - callStart;
+		}
+		Arrays.sort(latencies);
+		System.out.printf("%s getSavedFileFingerprint latency : p50 %.1f us, p99 %.1f us%n", name,
+				latencies[LATENCY_CALLS / 2] / 1e3, latencies[LATENCY_CALLS * 99 / 100] / 1e3);
+
+		// Small requests, from several threads at once
+		ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> results = new ArrayList<>();
+		start = System.nanoTime();
+		for (int t = 0; t < THREADS; t++) {
+			results.add(clients.submit(() -> {
+				for (int i = 0; i < CALLS_PER_THREAD; i++) {
+					server.getSavedFileFingerprint(port);
+				}
+				return null;
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		clients.shutdown();
+		System.out.printf("%s getSavedFileFingerprint from %d threads : %.0f requests/s%n", name, THREADS, THREADS * CALLS_PER_THREAD / seconds);
+	}
+
+	/**
+	 * Generates random rectangles, always the same ones.
+	 * @param count The number of rectangles.
+	 * @return The rectangles.
+	 */
+	static List<GeneralShape> generateShapes(int count) {
+		Random random = new Random(3);
+		List<GeneralShape> shapes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			java.awt.Rectangle bounds = new java.awt.Rectangle(random.nextInt(900), random.nextInt(900), 10 + random.nextInt(50), 10 + random.nextInt(50));
+			shapes.add(new GeneralShape(bounds, new Color(random.nextInt())));
+		}
+		return shapes;
+	}
+
+}
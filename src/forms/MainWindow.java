@@ -2,6 +2,7 @@ package forms;
 
 import forms.managers.CursorManager;
 import forms.managers.FileManager;
+import forms.managers.JournalManager;
 import forms.managers.StateManager;
 import forms.managers.WindowManager;
 import forms.windowsContents.Panel;
@@ -30,7 +31,10 @@ import javax.swing.UIManager;
 import javax.swing.ImageIcon;
 import javax.swing.JColorChooser;
 import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -59,6 +63,7 @@ public class MainWindow extends JFrame {
 	private WindowManager windowManager;
 	private CursorManager cursorManager;
 	private FileManager fileManager;
+	private JournalManager journalManager;
 	private Server server;
 	private Client client;
 	
@@ -82,12 +87,16 @@ public class MainWindow extends JFrame {
 		getContentPane().add(panel, BorderLayout.CENTER);
 		
 		fileManager = new FileManager(panel);
+		journalManager = new JournalManager(panel, fileManager, helpText);
+		if (journalManager.canRecover()) {
+			helpText.setText("The autosave of a previous session can be recovered (File > Recover autosave).");
+		}
 		try {
-			server = new Server(fileManager);
+			server = new Server(fileManager, panel);
 		} catch (RemoteException e) {
 			helpText.setText("Error during server creation. RemoteException occurred.");
 		}
-		client = new Client(fileManager);
+		client = new Client(fileManager, panel);
 		
 		setBounds(100, 100, 1600, 900);
 		
@@ -193,9 +202,22 @@ public class MainWindow extends JFrame {
 		    	panel.repaint();
 		    	if (client.isConnected()) {
 		    		try {
-		    			client.restoreFileFromServer();
-		    			helpText.setText("File restored.");
-		    			panel.repaint();
+		    			boolean fromCache = client.restoreFileFromServer(new FileManager.RestoreListener() {
+		    				public void restoreProgressed(int shapeCount) {
+		    					helpText.setText("Restoring file... " + shapeCount + " shapes received.");
+		    				}
+		    				public void restoreDone(int shapeCount) {
+		    					helpText.setText("File restored.");
+		    				}
+		    				public void restoreFailed(Exception ex) {
+		    					if (ex instanceof IOException) {
+		    						helpText.setText("Error: Failed to restore file. IOException occurred. " + ex.getMessage());
+		    					} else {
+		    						helpText.setText("Error: Failed to restore file. Unknown error occurred. " + ex.getMessage());
+		    					}
+		    				}
+		    			});
+		    			if (fromCache) helpText.setText("File unchanged on the server, restoring the local copy...");
 		    		} catch (IOException ex) {
 		    			helpText.setText("Error: Failed to restore file. IOException occurred. " + ex.getMessage());
 		    		}
@@ -206,6 +228,46 @@ public class MainWindow extends JFrame {
 		});
 		mnOpen.add(mntmOpenDistant);
 		
+		JMenuItem mntmSynchronizeDistant = new JMenuItem("Changes from the distant machine");
+		mntmSynchronizeDistant.addActionListener(new ActionListener() {
+		    public void actionPerformed(ActionEvent e) {
+		    	panel.repaint();
+		    	if (client.isConnected()) {
+		    		try {
+		    			int changeCount = client.synchronizeWithServer();
+		    			if (changeCount < 0) {
+		    				helpText.setText("No file saved on the distant machine since its server started.");
+		    			} else {
+		    				helpText.setText("File synchronized, " + changeCount + " shapes changed.");
+		    			}
+		    		} catch (IOException ex) {
+		    			helpText.setText("Error: Failed to synchronize file. IOException occurred. " + ex.getMessage());
+		    		}
+		    	} else {
+		            JOptionPane.showMessageDialog(null, "Error: Application is not connected to a server.", "Connection Error", JOptionPane.ERROR_MESSAGE);
+		    	}
+		    }
+		});
+		mnOpen.add(mntmSynchronizeDistant);
+		
+		JMenuItem mntmRecoverAutosave = new JMenuItem("Recover autosave");
+		mntmRecoverAutosave.addActionListener(new ActionListener() {
+		    public void actionPerformed(ActionEvent e) {
+		    	panel.repaint();
+		    	try {
+		    		if (journalManager.recover()) {
+		    			windowManager.setHasSaved(false);
+		    			helpText.setText("Autosave recovered.");
+		    		} else {
+		    			helpText.setText("No autosave to recover.");
+		    		}
+		    	} catch (IOException ex) {
+		    		helpText.setText("Error: Failed to recover autosave. IOException occurred. " + ex.getMessage());
+		    	}
+		    }
+		});
+		mnOpen.add(mntmRecoverAutosave);
+		
 		JMenu mnSave = new JMenu("Save");
 		mnSave.setIcon(new ImageIcon(MainWindow.class.getResource("/forms/resources/icons/save.png")));
 		mnFile.add(mnSave);
@@ -219,16 +281,25 @@ public class MainWindow extends JFrame {
 		    public void actionPerformed(ActionEvent e) {
 		    	panel.repaint();
 		    	panel.setMousePressed(false);
-		    	try {
-		    		if (fileManager.saveFile()) {
-		    			windowManager.setHasSaved(true);
-		                helpText.setText("File saved.");
+		    	int editCount = windowManager.getEditCount();
+		    	fileManager.saveFile(new FileManager.SaveListener() {
+		    		public void saveProgressed(int percent) {
+		    			helpText.setText("Saving... " + percent + "%");
 		    		}
-		    	} catch (IOException ex) {
-	                helpText.setText("Error: Failed to save file. IOException occurred. " + ex.getMessage());
-	            } catch (Exception ex) {
-	                helpText.setText("Error: Failed to save file. Unknown error occurred. " + ex.getMessage());
-	            }
+		    		public void saveDone(File file) {
+		    			if (windowManager.getEditCount() == editCount) { // Else the modifications done during the save aren't saved
+		    				windowManager.setHasSaved(true);
+		    			}
+		    			helpText.setText("File saved.");
+		    		}
+		    		public void saveFailed(Exception ex) {
+		    			if (ex instanceof IOException) {
+		    				helpText.setText("Error: Failed to save file. IOException occurred. " + ex.getMessage());
+		    			} else {
+		    				helpText.setText("Error: Failed to save file. Unknown error occurred. " + ex.getMessage());
+		    			}
+		    		}
+		    	});
 		    }
 		});
 		mnSaveFile.add(mntmSaveLocally);
@@ -303,12 +374,15 @@ public class MainWindow extends JFrame {
 		});
 		mnServer.add(mntmStart);
 		
+		JCheckBoxMenuItem chckbxmntmLiveSession = new JCheckBoxMenuItem("Live session with the server");
+		
 		JMenuItem mntmConnect = new JMenuItem("Connect to another server");
 		mntmConnect.addActionListener(new ActionListener() {
 		    public void actionPerformed(ActionEvent e) {
 		    	panel.repaint();
 		    	try {
 		    		String[] serverInfos = client.connectToServer(server.getPorts());
+		    		chckbxmntmLiveSession.setSelected(client.isInSession()); // Left when connecting to another server
 			    	helpText.setText("Connected to server (ip:" + serverInfos[0] + ", port:" + serverInfos[1] + ").");
 		    	} catch (RemoteException ex) {
 		    		helpText.setText("Error: Failed to connect to server. RemoteException occurred. " + ex.getMessage());
@@ -323,6 +397,33 @@ public class MainWindow extends JFrame {
 		});
 		mnServer.add(mntmConnect);
 		
+		chckbxmntmLiveSession.addActionListener(new ActionListener() {
+		    public void actionPerformed(ActionEvent e) {
+		    	panel.repaint();
+		    	if (!chckbxmntmLiveSession.isSelected()) {
+		    		client.leaveSession();
+		    		helpText.setText("Live session left.");
+		    	} else if (client.isConnected()) {
+		    		try {
+		    			client.joinSession(new Client.SessionListener() {
+		    				public void sessionLost(Exception ex) {
+		    					chckbxmntmLiveSession.setSelected(false);
+		    					helpText.setText("Error: Live session lost. RemoteException occurred. " + ex.getMessage());
+		    				}
+		    			});
+		    			helpText.setText("Live session joined, edits are shared with the server.");
+		    		} catch (IOException ex) {
+		    			chckbxmntmLiveSession.setSelected(false);
+		    			helpText.setText("Error: Failed to join live session. IOException occurred. " + ex.getMessage());
+		    		}
+		    	} else {
+		    		chckbxmntmLiveSession.setSelected(false);
+		            JOptionPane.showMessageDialog(null, "Error: Application is not connected to a server.", "Connection Error", JOptionPane.ERROR_MESSAGE);
+		    	}
+		    }
+		});
+		mnServer.add(chckbxmntmLiveSession);
+		
 		JMenu mnCanvas = new JMenu("Canvas");
 		menuBar.add(mnCanvas);
 		
@@ -484,6 +585,83 @@ public class MainWindow extends JFrame {
 		chckbxmntmAskForSave.setSelected(true);
 		mnPreferences.add(chckbxmntmAskForSave);
 		
+		JCheckBoxMenuItem chckbxmntmBinaryFormat = new JCheckBoxMenuItem("Save in binary format");
+		chckbxmntmBinaryFormat.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				panel.repaint();
+				fileManager.setBinaryFormat(chckbxmntmBinaryFormat.isSelected());
+			}
+		});
+		chckbxmntmBinaryFormat.setSelected(fileManager.isBinaryFormat());
+		mnPreferences.add(chckbxmntmBinaryFormat);
+		
+		JCheckBoxMenuItem chckbxmntmAutosave = new JCheckBoxMenuItem("Autosave");
+		chckbxmntmAutosave.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				panel.repaint();
+				try {
+					journalManager.setEnabled(chckbxmntmAutosave.isSelected());
+				} catch (IOException ex) {
+					chckbxmntmAutosave.setSelected(false);
+					helpText.setText("Error: Failed to enable autosave. IOException occurred. " + ex.getMessage());
+				}
+			}
+		});
+		chckbxmntmAutosave.setSelected(journalManager.isEnabled());
+		mnPreferences.add(chckbxmntmAutosave);
+		
+		JMenuItem mntmCompression = new JMenuItem("Compression level");
+		mntmCompression.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				panel.repaint();
+				JSpinner spinner = new JSpinner(new SpinnerNumberModel(fileManager.getCompressionLevel(), 0, FileManager.MAX_COMPRESSION_LEVEL, 1));
+				
+				int option = JOptionPane.showOptionDialog(null, spinner, "Choose a compression level between 1 (fastest) and 9 (smallest), or 0 to save files without compression :", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null, null, null);
+				
+				if (option == JOptionPane.OK_OPTION) {
+					fileManager.setCompressionLevel((int) spinner.getValue());
+				}
+			}
+		});
+		mnPreferences.add(mntmCompression);
+		
+		JCheckBoxMenuItem chckbxmntmChecksum = new JCheckBoxMenuItem("Add checksums to shared files");
+		chckbxmntmChecksum.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				panel.repaint();
+				fileManager.setChecksumEnabled(chckbxmntmChecksum.isSelected());
+			}
+		});
+		chckbxmntmChecksum.setSelected(fileManager.isChecksumEnabled());
+		mnPreferences.add(chckbxmntmChecksum);
+		
+		JMenu mnRendering = new JMenu("Rendering");
+		mnPreferences.add(mnRendering);
+		
+		JCheckBoxMenuItem chckbxmntmTiledRendering = new JCheckBoxMenuItem("Tiled rendering");
+		chckbxmntmTiledRendering.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				panel.setTiledRendering(chckbxmntmTiledRendering.isSelected());
+			}
+		});
+		chckbxmntmTiledRendering.setSelected(panel.isTiledRendering());
+		mnRendering.add(chckbxmntmTiledRendering);
+		
+		JMenuItem mntmTileSize = new JMenuItem("Tile size");
+		mntmTileSize.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				panel.repaint();
+				JSpinner spinner = new JSpinner(new SpinnerNumberModel(panel.getTileSize(), 64, 2048, 64));
+				
+				int option = JOptionPane.showOptionDialog(null, spinner, "Choose a tile size between 64 and 2048 pixels :", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null, null, null);
+				
+				if (option == JOptionPane.OK_OPTION) {
+					panel.setTileSize((int) spinner.getValue());
+				}
+			}
+		});
+		mnRendering.add(mntmTileSize);
+		
 		JMenu mnHelp = new JMenu("Help");
 		menuBar.add(mnHelp);
 		
@@ -501,7 +679,27 @@ public class MainWindow extends JFrame {
 	 * Reset the window.
 	 */
 	public void reset() {
+		fileManager.cancelRestore(); // The shapes still being received mustn't be added to the new canvas
 		panel.reset();
 	}
 	
+	/**
+	 * Runs an action once the file being saved in the background, if any, has been written. The threads writing the files
+	 * don't keep the Java VM alive : it may exit as soon as the last window is disposed, losing the file.
+	 * @param action The action, run on the Event Dispatch Thread.
+	 */
+	public void whenSaved(Runnable action) {
+		if (fileManager.isSaving()) helpText.setText("Waiting for the file being saved...");
+		fileManager.whenSaved(action);
+	}
+	
+	/**
+	 * Deletes the autosave of the window, which isn't needed anymore once the window has been closed normally, then disposes the window.
+	 */
+	@Override
+	public void dispose() {
+		journalManager.close();
+		super.dispose();
+	}
+	
 }
\ No newline at end of file
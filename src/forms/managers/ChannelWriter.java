@@ -0,0 +1,150 @@
+package forms.managers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class ChannelWriter extends Writer {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	private FileChannel channel;
+	private CharsetEncoder encoder;
+	private ByteBuffer buffer; // Direct, so the channel writes it without copying it first
+	private CharBuffer pending = CharBuffer.allocate(2); // Characters the encoder couldn't encode yet (first half of a surrogate pair)
+	private boolean closed = false;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs a writer encoding characters into a direct buffer, written to a file channel when it's full.
+	 * Unlike the writers of java.io, the encoded bytes are never copied into a temporary array.
+	 * @param channel The channel to write to, closed with the writer.
+	 * @param charset The charset used to encode the characters. Invalid characters are replaced, as with FileWriter.
+	 */
+	public ChannelWriter(FileChannel channel, Charset charset) {
+		this(channel, charset, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs a writer encoding characters into a direct buffer, written to a file channel when it's full.
+	 * @param channel The channel to write to, closed with the writer.
+	 * @param charset The charset used to encode the characters. Invalid characters are replaced, as with FileWriter.
+	 * @param bufferSize The size of the buffer, in bytes.
+	 */
+	public ChannelWriter(FileChannel channel, Charset charset, int bufferSize) {
+		this.channel = channel;
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		pending.flip();
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Encodes characters into the buffer, writing the buffer to the channel every time it's full.
+	 * @param cbuf The characters.
+	 * @param off The position of the first character to write.
+	 * @param len The number of characters to write.
+	 * @throws IOException If an I/O error occurs while writing, or if the writer is closed.
+	 */
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (closed) throw new IOException("Writer closed.");
+		if (len == 0) return;
+
+		CharBuffer chars = CharBuffer.wrap(cbuf, off, len);
+		if (pending.hasRemaining()) { // Completes the character cut in two by the previous call (rare, so the copy doesn't matter)
+			CharBuffer joined = CharBuffer.allocate(pending.remaining() + len);
+			joined.put(pending).put(chars).flip();
+			chars = joined;
+		}
+		encode(chars, false);
+		if (chars.hasRemaining()) {
+			pending.clear();
+			pending.put(chars).flip();
+		}
+	}
+
+	/**
+	 * Writes the buffer to the channel.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (closed) return;
+		drain();
+	}
+
+	/**
+	 * Encodes the last characters, writes the buffer to the channel and closes the channel.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			encode(pending, true);
+			while (encoder.flush(buffer).isOverflow()) {
+				drain();
+			}
+			drain();
+		} finally {
+			closed = true;
+			channel.close();
+		}
+	}
+
+	/**
+	 * Encodes characters into the buffer, writing the buffer to the channel every time it's full.
+	 * @param chars The characters to encode.
+	 * @param endOfInput True if no more characters will be written.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	private void encode(CharBuffer chars, boolean endOfInput) throws IOException {
+		while (true) {
+			CoderResult result = encoder.encode(chars, buffer, endOfInput);
+			if (result.isOverflow()) {
+				drain();
+			} else if (result.isUnderflow()) {
+				return; // Everything has been encoded, except an incomplete character if not at the end of the input
+			} else {
+				result.throwException(); // Can't happen, errors are replaced
+			}
+		}
+	}
+
+	/**
+	 * Writes the content of the buffer to the channel and empties the buffer.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,69 @@
+package forms.managers;
+
+import forms.shapes.GeneralShape;
+
+import java.awt.Color;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class DocumentSnapshot {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private final List<GeneralShape> shapes; // Frozen, never modified after the snapshot is taken
+	private final Color backgroundColor;
+	private final String backgroundImagePath;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs a snapshot of the content of the panel, which can be read from any thread.
+	 * @param shapes The shapes of the panel, in z-order, frozen with GeneralShape.freeze() : the panel modifies copies of them instead.
+	 * The list mustn't be referenced anywhere else.
+	 * @param backgroundColor The background color.
+	 * @param backgroundImagePath The path of the background image, or null if the background is a color.
+	 */
+	public DocumentSnapshot(List<GeneralShape> shapes, Color backgroundColor, String backgroundImagePath) {
+		this.shapes = Collections.unmodifiableList(shapes);
+		this.backgroundColor = backgroundColor;
+		this.backgroundImagePath = backgroundImagePath;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Gets the shapes.
+	 * @return The shapes, in z-order. Neither the list nor the shapes must be modified.
+	 */
+	public List<GeneralShape> getShapes() {
+		return shapes;
+	}
+
+	/**
+	 * Gets the background color.
+	 * @return The background color.
+	 */
+	public Color getBackgroundColor() {
+		return backgroundColor;
+	}
+
+	/**
+	 * Gets the path of the background image.
+	 * @return The path of the background image, or null if the background is a color.
+	 */
+	public String getBackgroundImagePath() {
+		return backgroundImagePath;
+	}
+
+}
@@ -2,25 +2,64 @@ package forms.managers;
 
 import forms.windowsContents.Panel;
 import forms.shapes.GeneralShape;
+import forms.shapes.ShapeTextReader;
+import forms.shapes.ShapeTextWriter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import javax.imageio.ImageIO;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 
 /**
  * @author Simon Antropius
@@ -34,6 +73,103 @@ public class FileManager {
 	 **************************************************************************/
     
     private Panel panel;
+    private boolean binaryFormat = false; // Format used to write files, both formats are always read
+    private int compressionLevel = 0; // GZIP level used to write files (0 : not compressed), compressed files are always read
+    private boolean checksumEnabled = false; // True to add a checksum to the files sent to distant machines
+    private Map<String, CachedFile> sentFiles = new ConcurrentHashMap<>(); // Files already converted by fileToString(), by absolute path
+    private boolean saving = false; // True while a file is written in the background
+    private List<Runnable> saveEndActions = new ArrayList<>(); // Run once the file written in the background has been written or the save failed
+    private SwingWorker<Void, List<GeneralShape>> restoring = null; // Restoration in progress in the background, if any
+    
+    /**
+     * Receives the progress and the result of a save done in the background, on the Event Dispatch Thread.
+     */
+    public interface SaveListener {
+    	
+    	/**
+    	 * Called from time to time during the save.
+    	 * @param percent The percentage of the shapes written so far.
+    	 */
+    	void saveProgressed(int percent);
+    	
+    	/**
+    	 * Called when the file has been written.
+    	 * @param file The written file.
+    	 */
+    	void saveDone(File file);
+    	
+    	/**
+    	 * Called if the save failed. The previous version of the file, if any, is left untouched.
+    	 * @param e The exception that made the save fail.
+    	 */
+    	void saveFailed(Exception e);
+    }
+    
+    /**
+     * Receives the progress and the result of a restoration done in the background, on the Event Dispatch Thread.
+     */
+    public interface RestoreListener {
+    	
+    	/**
+    	 * Called every time shapes have been added to the panel.
+    	 * @param shapeCount The number of shapes added so far.
+    	 */
+    	void restoreProgressed(int shapeCount);
+    	
+    	/**
+    	 * Called when the whole content has been restored.
+    	 * @param shapeCount The number of shapes added.
+    	 */
+    	void restoreDone(int shapeCount);
+    	
+    	/**
+    	 * Called if the restoration failed. The shapes already added are kept.
+    	 * @param e The exception that made the restoration fail.
+    	 */
+    	void restoreFailed(Exception e);
+    }
+    
+    /**
+     * A file converted to a string by fileToString(), with the attributes it had when it was read.
+     */
+    private static final class CachedFile {
+    	private final FileTime lastModifiedTime;
+    	private final long size;
+    	private final Object fileKey; // Changes when the file is replaced, even within the precision of lastModifiedTime (e.g. on Unix)
+    	private final String content;
+    	
+    	private CachedFile(BasicFileAttributes attributes, String content) {
+    		this.lastModifiedTime = attributes.lastModifiedTime();
+    		this.size = attributes.size();
+    		this.fileKey = attributes.fileKey();
+    		this.content = content;
+    	}
+    	
+    	private boolean isUpToDate(BasicFileAttributes attributes) {
+    		return lastModifiedTime.equals(attributes.lastModifiedTime()) && size == attributes.size() 
+    			&& Objects.equals(fileKey, attributes.fileKey());
+    	}
+    }
+    
+    private static final byte[] BINARY_MAGIC = { (byte) 0x89, 'S', 'H', 'P' }; // First bytes of a binary file, can't start a text file
+    private static final int BINARY_VERSION = 1;
+    private static final int BINARY_FLAG_FLOAT_COORDS = 0x01; // Set if the coordinates are stored as floats instead of doubles
+    private static final int BINARY_BACKGROUND_COLOR = 0;
+    private static final int BINARY_BACKGROUND_IMAGE = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long PARALLEL_THRESHOLD = 4L << 20; // Smaller text files are parsed on the calling thread
+    private static final int CHUNKS_PER_THREAD = 4; // More chunks than threads, so that the threads done early can take another one
+    private static final int MAX_CHUNK_SIZE = 8 << 20;
+    private static final long MAPPED_THRESHOLD = 256L << 20; // Bigger text files are mapped in memory instead of being read at once
+    private static final long MAPPED_WINDOW_SIZE = 128L << 20; // Size of the part of a file mapped at once
+    private static final int CHANNEL_WRITER_THRESHOLD = 100_000; // Number of shapes from which text files are written through a direct buffer
+    private static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b }; // First bytes of a compressed file, whatever its format
+    private static final String COMPRESSED_PREFIX = "GZIP64:"; // Start of a string containing a compressed file encoded in Base64
+    public static final int MAX_COMPRESSION_LEVEL = 9;
+    private static final String CHECKSUM_PREFIX = "Checksum: "; // Last line of a string sent with a checksum, ignored by the parsers
+    private static final int MAX_CACHED_FILES = 16;
+    private static final int MAX_CACHED_LENGTH = 64 << 20; // Longer strings aren't kept by fileToString()
+    private static final int RESTORE_BATCH_SIZE = 2000; // Number of shapes parsed in the background before they are given to the panel
     
     /***************************************************************************
 	 * Constructors.
@@ -52,22 +188,71 @@ public class FileManager {
 	 **************************************************************************/
     
     /**
-     * Saves the content of the panel to a file.
+     * Checks if files are written in binary format.
+     * @return True if files are written in binary format, false if they are written in text format.
+     */
+    public boolean isBinaryFormat() {
+    	return binaryFormat;
+    }
+    
+    /**
+     * Sets the format used to write files. Files are always read whatever their format.
+     * @param binaryFormat True to write files in binary format, false to write them in text format.
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+    	this.binaryFormat = binaryFormat;
+    }
+    
+    /**
+     * Gets the compression level used to write files.
+     * @return The level, from 1 (fastest) to 9 (smallest), or 0 if files aren't compressed.
+     */
+    public int getCompressionLevel() {
+    	return compressionLevel;
+    }
+    
+    /**
+     * Sets the compression level used to write files. Compressed files are written in GZIP format, and are always 
+     * decompressed transparently when read.
+     * @param compressionLevel The level, from 1 (fastest) to 9 (smallest), or 0 to write files without compression.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+    	if (compressionLevel < 0 || compressionLevel > MAX_COMPRESSION_LEVEL) {
+    		throw new IllegalArgumentException("Invalid compression level: " + compressionLevel + ".");
+    	}
+    	this.compressionLevel = compressionLevel;
+    }
+    
+    /**
+     * Checks if a checksum is added to the files sent to distant machines.
+     * @return True if fileToString() adds a checksum, false otherwise.
+     */
+    public boolean isChecksumEnabled() {
+    	return checksumEnabled;
+    }
+    
+    /**
+     * Sets whether a checksum is added to the files sent to distant machines. The checksum is verified by restoreFileFromString().
+     * @param checksumEnabled True to add a checksum, false otherwise.
+     */
+    public void setChecksumEnabled(boolean checksumEnabled) {
+    	if (checksumEnabled != this.checksumEnabled) sentFiles.clear();
+    	this.checksumEnabled = checksumEnabled;
+    }
+    
+    /**
+     * Saves the content of the panel to a file chosen by the user. The file is written on a background thread.
+     * @param listener The listener notified on the Event Dispatch Thread of the progress and of the end of the save.
      * @return True if the user has selected a location to save the file, false otherwise.
-     * @throws Exception If an exception occurs during file writing.
-     * @throws IOException If an I/O exception occurs during file writing.
      */
-    public boolean saveFile() throws Exception, IOException {
+    public boolean saveFile(SaveListener listener) {
         JFileChooser fileChooser = new JFileChooser();
         int result = fileChooser.showSaveDialog(null);
 
         // Check if the user has selected a backup location
         if (result == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
-            String fileName = selectedFile.getAbsolutePath();
-
-            writeFile(fileName);
-
+            writeFileInBackground(selectedFile, listener);
             return true;
         } else {
             return false;
@@ -75,33 +260,257 @@ public class FileManager {
     }
     
     /**
-     * Writes the content of the panel to a file.
+     * Checks if a file is being written in the background.
+     * @return True if a save is in progress, false otherwise.
+     */
+    public boolean isSaving() {
+    	return saving;
+    }
+    
+    /**
+     * Runs an action once the file being written in the background has been written (or the save failed), after the listener of the save, 
+     * or right away if no file is being written. Must be called on the Event Dispatch Thread.
+     * @param action The action, run on the Event Dispatch Thread.
+     */
+    public void whenSaved(Runnable action) {
+    	if (saving) {
+    		saveEndActions.add(action);
+    	} else {
+    		action.run();
+    	}
+    }
+    
+    /**
+     * Writes the content of the panel to a file on a background thread. A snapshot of the content is taken first, 
+     * so the panel can be modified during the save. Must be called on the Event Dispatch Thread.
+     * @param file The file to be written.
+     * @param listener The listener notified on the Event Dispatch Thread of the progress and of the end of the save.
+     */
+    public void writeFileInBackground(File file, SaveListener listener) {
+    	if (saving) {
+    		listener.saveFailed(new IOException("Another save is in progress."));
+    		return;
+    	}
+    	saving = true;
+    	DocumentSnapshot snapshot = panel.createSnapshot();
+    	boolean binary = binaryFormat;
+    	int level = compressionLevel;
+    	
+    	new SwingWorker<Void, Integer>() {
+    		@Override
+    		protected Void doInBackground() throws IOException {
+    			writeSnapshot(snapshot, file, binary, level, percent -> publish(percent));
+    			return null;
+    		}
+    		
+    		@Override
+    		protected void process(List<Integer> percents) {
+    			listener.saveProgressed(percents.get(percents.size() - 1));
+    		}
+    		
+    		@Override
+    		protected void done() {
+    			saving = false;
+    			try {
+    				get();
+    				listener.saveDone(file);
+    			} catch (ExecutionException e) {
+    				listener.saveFailed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+    			} catch (InterruptedException e) {
+    				listener.saveFailed(e);
+    			} finally {
+    				List<Runnable> actions = new ArrayList<>(saveEndActions);
+    				saveEndActions.clear();
+    				for (Runnable action : actions) {
+    					action.run();
+    				}
+    			}
+    		}
+    	}.execute();
+    }
+    
+    /**
+     * Writes the content of the panel to a file, on the calling thread.
      * @param fileName The name of the file to be written.
      * @throws IOException If an I/O error occurs while writing the file.
      */
     public void writeFile(String fileName) throws IOException {
-    	File file = new File(fileName);
-        if (!file.exists()) {
-        	file.getParentFile().mkdirs();
-            file.createNewFile();
-        }
+    	writeFile(fileName, panel.createSnapshot());
+    }
+    
+    /**
+     * Writes a snapshot of the content of the panel to a file, on the calling thread, in the format chosen for the saved files.
+     * @param fileName The name of the file to be written.
+     * @param snapshot The snapshot to write, taken with createSnapshot().
+     * @throws IOException If an I/O error occurs while writing the file.
+     */
+    public void writeFile(String fileName, DocumentSnapshot snapshot) throws IOException {
+    	writeSnapshot(snapshot, new File(fileName), binaryFormat, compressionLevel, null);
+    }
+    
+    /**
+     * Takes a snapshot of the content of the panel. Must be called on the Event Dispatch Thread.
+     * @return The snapshot, which can then be used on any thread.
+     */
+    public DocumentSnapshot createSnapshot() {
+    	return panel.createSnapshot();
+    }
+    
+    /**
+     * Writes a snapshot of the content of the panel to a file, on the calling thread (which may be any thread).
+     * @param snapshot The snapshot to write.
+     * @param file The file to be written. It's replaced atomically, as when saving.
+     * @param binary True to write the file in binary format, false to write it in text format.
+     * @throws IOException If an I/O error occurs while writing the file.
+     */
+    public static void writeSnapshot(DocumentSnapshot snapshot, File file, boolean binary) throws IOException {
+    	writeSnapshot(snapshot, file, binary, 0, null);
+    }
+
+    /**
+     * Writes a snapshot of the content of the panel to a temporary file, then replaces the file by the temporary file.
+     * The file is never left half written, even if the writing fails or the application is closed meanwhile.
+     * @param snapshot The snapshot to write.
+     * @param file The file to be written.
+     * @param binary True to write the file in binary format, false to write it in text format.
+     * @param compressionLevel The compression level, or 0 to write the file without compression.
+     * @param progress The consumer of the progress of the writing in percent, or null.
+     * @throws IOException If an I/O error occurs while writing the file.
+     */
+    private static void writeSnapshot(DocumentSnapshot snapshot, File file, boolean binary, int compressionLevel, IntConsumer progress) throws IOException {
+    	Path target = file.getAbsoluteFile().toPath();
+    	Files.createDirectories(target.getParent());
+    	Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    	
+    	try {
+	    	if (binary) {
+	    		writeBinaryFile(snapshot, temp, compressionLevel, progress);
+	    	} else {
+	    		writeTextFile(snapshot, temp, compressionLevel, progress);
+	    	}
+	    	
+	    	try {
+	    		Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	    	} catch (AtomicMoveNotSupportedException e) {
+	    		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+	    	}
+    	} catch (IOException | RuntimeException e) {
+    		Files.deleteIfExists(temp);
+    		throw e;
+    	}
+    }
+    
+    /**
+     * Writes a snapshot of the content of the panel to a file in text format.
+     * @param snapshot The snapshot to write.
+     * @param path The path of the file to be written.
+     * @param compressionLevel The compression level, or 0 to write the file without compression.
+     * @param progress The consumer of the progress of the writing in percent, or null.
+     * @throws IOException If an I/O error occurs while writing the file.
+     */
+    private static void writeTextFile(DocumentSnapshot snapshot, Path path, int compressionLevel, IntConsumer progress) throws IOException {
+    	List<GeneralShape> shapes = snapshot.getShapes();
+    	Writer fileWriter;
+    	if (compressionLevel > 0) { // Compressed while being written
+    		fileWriter = new OutputStreamWriter(compress(Files.newOutputStream(path), compressionLevel), Charset.defaultCharset());
+    	} else if (shapes.size() >= CHANNEL_WRITER_THRESHOLD) { // Big file, the bytes are written without intermediate copy
+    		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    		fileWriter = new ChannelWriter(channel, Charset.defaultCharset());
+    	} else {
+    		fileWriter = new FileWriter(path.toFile());
+    	}
     	
-    	try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            if (panel.getBackgroundImage() == null) { // No image is used as a background
-                writer.write("Background_Color: " + ((Color) panel.getBackground()).getRGB());
+    	try (ShapeTextWriter writer = new ShapeTextWriter(fileWriter)) {
+            if (snapshot.getBackgroundImagePath() == null) { // No image is used as a background (the image may still be loading)
+                writer.writeLine("Background_Color: " + snapshot.getBackgroundColor().getRGB());
             } else {
-                writer.write("Background_Image: " + panel.getBackgroundImagePath());
+                writer.writeLine("Background_Image: " + snapshot.getBackgroundImagePath());
             }
-            writer.newLine();
 
-            List<GeneralShape> shapes = panel.getShapes();
-            for (GeneralShape shape : shapes) {
-                writer.write(shape.toTextFormat());
-                writer.newLine();
+            int percent = -1;
+            for (int i = 0; i < shapes.size(); i++) {
+                writer.writeShape(shapes.get(i));
+                percent = reportProgress(progress, i + 1, shapes.size(), percent);
             }
         }
     }
 
+    /**
+     * Writes a snapshot of the content of the panel to a file in binary format. The coordinates are stored as floats if none of them 
+     * loses precision this way, as doubles otherwise.
+     * @param snapshot The snapshot to write.
+     * @param path The path of the file to be written.
+     * @param compressionLevel The compression level, or 0 to write the file without compression.
+     * @param progress The consumer of the progress of the writing in percent, or null.
+     * @throws IOException If an I/O error occurs while writing the file.
+     */
+    private static void writeBinaryFile(DocumentSnapshot snapshot, Path path, int compressionLevel, IntConsumer progress) throws IOException {
+    	List<GeneralShape> shapes = snapshot.getShapes();
+    	boolean floatCoords = true;
+    	for (GeneralShape shape : shapes) {
+    		if (!shape.hasFloatCoords()) {
+    			floatCoords = false;
+    			break;
+    		}
+    	}
+    	
+    	OutputStream fileOut = Files.newOutputStream(path);
+    	if (compressionLevel > 0) fileOut = compress(fileOut, compressionLevel);
+    	
+    	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE))) {
+    		// Header
+    		out.write(BINARY_MAGIC);
+    		out.writeByte(BINARY_VERSION);
+    		out.writeByte(floatCoords ? BINARY_FLAG_FLOAT_COORDS : 0);
+    		
+    		// Background
+    		if (snapshot.getBackgroundImagePath() == null) {
+    			out.writeByte(BINARY_BACKGROUND_COLOR);
+    			out.writeInt(snapshot.getBackgroundColor().getRGB());
+    		} else {
+    			out.writeByte(BINARY_BACKGROUND_IMAGE);
+    			out.writeUTF(snapshot.getBackgroundImagePath());
+    		}
+    		
+    		// Shapes
+    		GeneralShape.writeVarInt(out, shapes.size());
+    		int percent = -1;
+    		for (int i = 0; i < shapes.size(); i++) {
+    			shapes.get(i).writeBinary(out, floatCoords);
+    			percent = reportProgress(progress, i + 1, shapes.size(), percent);
+    		}
+    	}
+    }
+    
+    /**
+     * Compresses the bytes written to a stream in GZIP format.
+     * @param out The stream the compressed bytes are written to, closed with the returned stream.
+     * @param compressionLevel The compression level, from 1 to 9.
+     * @return The stream to write the uncompressed bytes to.
+     * @throws IOException If an I/O error occurs while writing the GZIP header.
+     */
+    private static OutputStream compress(OutputStream out, int compressionLevel) throws IOException {
+    	return new GZIPOutputStream(out, BUFFER_SIZE) {
+    		{
+    			def.setLevel(compressionLevel); // GZIPOutputStream has no constructor taking a level
+    		}
+    	};
+    }
+    
+    /**
+     * Reports the progress of a writing, only when the percentage changes.
+     * @param progress The consumer of the progress in percent, or null.
+     * @param done The number of shapes written so far.
+     * @param total The total number of shapes.
+     * @param lastPercent The last percentage reported.
+     * @return The current percentage.
+     */
+    private static int reportProgress(IntConsumer progress, int done, int total, int lastPercent) {
+    	int percent = (int) (done * 100L / total);
+    	if (progress != null && percent != lastPercent) progress.accept(percent);
+    	return percent;
+    }
+    
     /**
      * Opens a file and loads its content into the panel.
      * @return True if the user has selected a file, false otherwise.
@@ -124,108 +533,589 @@ public class FileManager {
     }
     
     /**
-     * Restores the panel's content from the specified file.
+     * Restores the panel's content from the specified file, in text or binary format, compressed or not.
      * @param file The file from which to restore the panel's content.
      * @throws IOException If an I/O error occurs while reading the file.
      */
     public void restoreFile(File file) throws IOException {
-    	try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+    	try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+    		cancelRestore();
     		panel.reset();
     		
-        	// Background
-            String bgLine = reader.readLine();
-            if (bgLine != null) {
-                if (bgLine.startsWith("Background_Color: ")) {
-                    int rgb = Integer.parseInt(bgLine.substring(18));
-                    Color bgColor = new Color(rgb);
-                    panel.setBackground(bgColor);
-                } else if (bgLine.startsWith("Background_Image: ")) {
-                    String imagePath = bgLine.substring(18);
-                    BufferedImage backgroundImage = ImageIO.read(new File(imagePath));
-                    if (backgroundImage != null) { 
-                    	panel.setBackgroundImage(backgroundImage, imagePath); 
-                    } else panel.setBackground(Color.WHITE);
-                }
-            }
-
-            // Shapes
-            String line;
-            while ((line = reader.readLine()) != null) {
-                GeneralShape shape = GeneralShape.fromTextFormat(line);
-                if (shape != null) {
-                    panel.addShape(shape);
-                }
-            }
+    		if (isCompressed(in)) { // Decompressed while being parsed
+    			restoreStream(new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE), true);
+    			return;
+    		}
+    		if (!isBinary(in) && (file.length() >= MAPPED_THRESHOLD 
+    			|| (file.length() >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1))) {
+    			restoreTextFileInChunks(file);
+    			return;
+    		}
+    		restoreStream(in, true);
+        }
+    }
+    
+    /**
+     * Restores the panel's content from a stream on a background thread, e.g. while it's being received from a distant machine.
+     * The shapes are parsed as the bytes arrive, and added to the panel by batches on the Event Dispatch Thread, so the 
+     * beginning of the drawing is displayed before the end has been received. The content may be in text or binary format, 
+     * compressed or not. Must be called on the Event Dispatch Thread.
+     * @param stream The stream, read to its end unless the restoration fails or is cancelled, then closed. It doesn't need to be buffered.
+     * @param local True if the content comes from this machine, false if it comes from a distant one.
+     * @param listener The listener notified on the Event Dispatch Thread of the progress and of the end of the restoration.
+     */
+    public void restoreStreamInBackground(InputStream stream, boolean local, RestoreListener listener) {
+    	cancelRestore();
+    	panel.reset();
+    	
+    	restoring = new SwingWorker<Void, List<GeneralShape>>() {
+    		private int shapeCount = 0; // Shapes added to the panel, only used on the Event Dispatch Thread
+    		
+    		@Override
+    		protected Void doInBackground() throws IOException {
+    			try (InputStream buffered = new BufferedInputStream(stream, BUFFER_SIZE)) {
+    				InputStream in = buffered;
+    				if (isCompressed(in)) in = new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+    				
+    				List<GeneralShape> batch = new ArrayList<>(RESTORE_BATCH_SIZE);
+    				if (isBinary(in)) {
+    					DataInputStream dataIn = new DataInputStream(in);
+    					boolean floatCoords = readBinaryHeader(dataIn);
+    					restoreBackgroundLater(readBinaryBackground(dataIn));
+    					
+    					int count = GeneralShape.readVarInt(dataIn);
+    					if (count < 0) throw new IOException("Invalid number of shapes: " + count + ".");
+    					for (int i = 0; i < count && !isCancelled(); i++) {
+    						batch.add(GeneralShape.readBinary(dataIn, floatCoords));
+    						batch = publishIfFull(batch);
+    					}
+    				} else {
+    					ShapeTextReader reader = new ShapeTextReader(new InputStreamReader(in));
+    					String bgLine = reader.readLine();
+    					if (bgLine != null) restoreBackgroundLater(bgLine);
+    					
+    					GeneralShape shape;
+    					while (!isCancelled() && (shape = reader.readShape()) != null) {
+    						batch.add(shape);
+    						batch = publishIfFull(batch);
+    					}
+    				}
+    				if (!batch.isEmpty()) publish(batch);
+    				if (!isCancelled()) buffered.transferTo(OutputStream.nullOutputStream()); // Reads what follows the content (e.g. GZIP trailer), so the stream sees its end
+    			}
+    			return null;
+    		}
+    		
+    		/**
+    		 * Gives a batch of shapes to the panel if it's full.
+    		 * @param batch The batch.
+    		 * @return The batch to fill next.
+    		 */
+    		private List<GeneralShape> publishIfFull(List<GeneralShape> batch) {
+    			if (batch.size() < RESTORE_BATCH_SIZE) return batch;
+    			publish(batch);
+    			return new ArrayList<>(RESTORE_BATCH_SIZE);
+    		}
+    		
+    		/**
+    		 * Restores the background on the Event Dispatch Thread.
+    		 * @param bgLine The line describing the background.
+    		 */
+    		private void restoreBackgroundLater(String bgLine) {
+    			SwingUtilities.invokeLater(() -> {
+    				if (!isCancelled()) restoreBackground(bgLine, local);
+    			});
+    		}
+    		
+    		@Override
+    		protected void process(List<List<GeneralShape>> batches) {
+    			if (isCancelled()) return;
+    			List<GeneralShape> shapes = batches.get(0);
+    			for (int i = 1; i < batches.size(); i++) { // Batches published faster than they are displayed are added at once
+    				shapes.addAll(batches.get(i));
+    			}
+    			panel.addShapes(shapes);
+    			shapeCount += shapes.size();
+    			listener.restoreProgressed(shapeCount);
+    		}
+    		
+    		@Override
+    		protected void done() { // Called after the last call to process()
+    			if (restoring == this) restoring = null;
+    			if (isCancelled()) return;
+    			try {
+    				get();
+    				listener.restoreDone(shapeCount);
+    			} catch (ExecutionException e) {
+    				listener.restoreFailed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+    			} catch (InterruptedException e) {
+    				listener.restoreFailed(e);
+    			}
+    		}
+    	};
+    	restoring.execute();
+    }
+    
+    /**
+     * Stops the restoration in progress in the background, if any. The shapes already added are kept.
+     */
+    public void cancelRestore() {
+    	if (restoring != null) {
+    		restoring.cancel(true);
+    		restoring = null;
+    	}
+    }
+    
+    /**
+     * Restores the panel's content from an uncompressed stream, in text or binary format. The panel must have been reset.
+     * @param in The stream, which must support mark() and reset().
+     * @param local True if the content comes from this machine, false if it comes from a distant one. 
+     * The background images of distant machines are replaced by a white background.
+     * @throws IOException If an I/O error occurs while reading the stream.
+     */
+    private void restoreStream(InputStream in, boolean local) throws IOException {
+    	if (isBinary(in)) {
+    		DataInputStream dataIn = new DataInputStream(in);
+    		boolean floatCoords = readBinaryHeader(dataIn);
+    		restoreBackground(readBinaryBackground(dataIn), local);
+    		
+    		int shapeCount = GeneralShape.readVarInt(dataIn);
+    		if (shapeCount < 0) throw new IOException("Invalid number of shapes: " + shapeCount + ".");
+    		List<GeneralShape> shapes = new ArrayList<>(Math.min(shapeCount, 1 << 20)); // Not trusted blindly, the file may be damaged
+    		for (int i = 0; i < shapeCount; i++) {
+    			shapes.add(GeneralShape.readBinary(dataIn, floatCoords));
+    		}
+    		panel.addShapes(shapes);
+    		return;
+    	}
+    	
+    	ShapeTextReader reader = new ShapeTextReader(new InputStreamReader(in));
+    	// Background
+    	String bgLine = reader.readLine();
+    	if (bgLine != null) {
+    		restoreBackground(bgLine, local);
+    	}
+    	
+    	// Shapes
+    	List<GeneralShape> shapes = new ArrayList<>();
+    	GeneralShape shape;
+    	while ((shape = reader.readShape()) != null) {
+    		shapes.add(shape);
+    	}
+    	panel.addShapes(shapes); // Added at once
+    }
+    
+    /**
+     * Restores the panel's content from the specified file in text format, parsing the shapes on several threads.
+     * The file is read at once, or mapped in memory window by window if it's very large. The content is split into 
+     * chunks of whole lines, each chunk is decoded and parsed on the common ForkJoinPool, then the shapes of all 
+     * the chunks are added to the panel at once, in their original order.
+     * @param file The file from which to restore the panel's content.
+     * @throws IOException If an I/O error occurs while reading the file.
+     */
+    private void restoreTextFileInChunks(File file) throws IOException {
+    	Charset charset = Charset.defaultCharset(); // Same as FileReader
+    	List<GeneralShape> shapes = new ArrayList<>();
+    	
+    	if (file.length() < MAPPED_THRESHOLD) {
+    		ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    		int headerEnd = restoreBackground(content, charset);
+    		parseLines(content.slice(headerEnd, content.limit() - headerEnd), charset, shapes);
+    		panel.addShapes(shapes);
+    		return;
+    	}
+    	
+    	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+    		long size = channel.size();
+    		long position = 0;
+    		while (position < size) {
+    			long windowSize = Math.min(MAPPED_WINDOW_SIZE, size - position);
+    			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+    			
+    			// The window is cut after its last complete line, the rest is read with the next window
+    			int end = (position + windowSize == size ? window.limit() : lastLineEnd(window));
+    			if (end == 0) throw new IOException("Line too long in " + file.getName() + ".");
+    			
+    			int start = (position == 0 ? restoreBackground(window, charset) : 0);
+    			parseLines(window.slice(start, end - start), charset, shapes);
+    			position += end;
+    		}
+    	}
+    	panel.addShapes(shapes);
+    }
+    
+    /**
+     * Restores the background of the panel from the first line of a file in text format.
+     * @param content The content of the file, or at least its first line.
+     * @param charset The charset of the file.
+     * @return The start of the second line.
+     * @throws IOException Never, the line is already in memory.
+     */
+    private int restoreBackground(ByteBuffer content, Charset charset) throws IOException {
+    	int headerEnd = nextLineStart(content, 0);
+    	String bgLine = new ShapeTextReader(charset.decode(content.slice(0, headerEnd)).toString()).readLine();
+    	if (bgLine != null) {
+    		restoreBackground(bgLine, true);
+    	}
+    	return headerEnd;
+    }
+    
+    /**
+     * Parses lines of shapes in text format on the common ForkJoinPool, after having split them into chunks.
+     * @param lines The lines, ending at the end of a line.
+     * @param charset The charset of the lines.
+     * @param shapes The list the parsed shapes are added to, in their original order.
+     * @throws IOException If the parsing is interrupted.
+     */
+    private static void parseLines(ByteBuffer lines, Charset charset, List<GeneralShape> shapes) throws IOException {
+    	int size = lines.limit();
+    	int chunkCount = ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_THREAD;
+    	int chunkSize = Math.max(Math.min(size / chunkCount, MAX_CHUNK_SIZE), 1); // Bounded, the decoded chunks take twice their size
+    	List<Callable<List<GeneralShape>>> tasks = new ArrayList<>();
+    	for (int start = 0; start < size; ) {
+    		int end = nextLineStart(lines, start + Math.min(chunkSize, size - start) - 1);
+    		ByteBuffer chunk = lines.slice(start, end - start);
+    		tasks.add(() -> parseChunk(chunk, charset));
+    		start = end;
+    	}
+    	
+    	try {
+    		for (Future<List<GeneralShape>> chunk : ForkJoinPool.commonPool().invokeAll(tasks)) {
+    			shapes.addAll(chunk.get());
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("Interrupted while loading shapes.");
+    	} catch (ExecutionException e) {
+    		if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause(); // e.g. NumberFormatException, as on a single thread
+    		throw new IOException(e.getCause());
+    	}
+    }
+    
+    /**
+     * Parses the shapes of a chunk of a file in text format.
+     * @param chunk The chunk, starting at the start of a line and ending at the end of a line.
+     * @param charset The charset of the file.
+     * @return The shapes of the chunk, in their order in the file.
+     * @throws IOException Never, the chunk is already in memory.
+     */
+    private static List<GeneralShape> parseChunk(ByteBuffer chunk, Charset charset) throws IOException {
+    	CharBuffer chars = charset.decode(chunk);
+    	ShapeTextReader reader = new ShapeTextReader(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+    	
+    	List<GeneralShape> shapes = new ArrayList<>();
+    	GeneralShape shape;
+    	while ((shape = reader.readShape()) != null) {
+    		shapes.add(shape);
+    	}
+    	return shapes;
+    }
+    
+    /**
+     * Gets the start of the line following the specified position.
+     * @param content The content of a file in text format.
+     * @param from The position to search from.
+     * @return The position following the first line feed at or after from, or the limit of the content if there is none.
+     */
+    private static int nextLineStart(ByteBuffer content, int from) {
+    	int limit = content.limit();
+    	for (int i = from; i < limit; i++) {
+    		if (content.get(i) == '\n') return i + 1;
+    	}
+    	return limit;
+    }
+    
+    /**
+     * Gets the end of the last complete line.
+     * @param content The content of a part of a file in text format.
+     * @return The position following the last line feed, or 0 if there is none.
+     */
+    private static int lastLineEnd(ByteBuffer content) {
+    	for (int i = content.limit() - 1; i >= 0; i--) {
+    		if (content.get(i) == '\n') return i + 1;
+    	}
+    	return 0;
+    }
+    
+    /**
+     * Restores the background of the panel from its description in text format.
+     * @param bgLine The line describing the background.
+     * @param local True if the background comes from this machine, false if it comes from a distant one.
+     */
+    public void restoreBackground(String bgLine, boolean local) {
+        if (bgLine.startsWith("Background_Color: ")) {
+            int rgb = Integer.parseInt(bgLine.substring(18));
+            Color bgColor = new Color(rgb);
+            panel.setBackground(bgColor);
+        } else if (bgLine.startsWith("Background_Image: ")) {
+            panel.setBackground(Color.WHITE); // Kept if the image can't be loaded
+            if (!local) return; // Background images not currently handled from distant
+            String imagePath = bgLine.substring(18);
+            panel.loadBackgroundImage(new File(imagePath)); // Loaded on a background thread
         }
     }
     
     /**
-     * Writes the content of the specified file to a string.
+     * Checks if a stream contains a file compressed in GZIP format, without consuming it.
+     * @param in The stream, which must support mark() and reset().
+     * @return True if the stream starts with the GZIP header, false otherwise.
+     * @throws IOException If an I/O error occurs while reading the stream.
+     */
+    private static boolean isCompressed(InputStream in) throws IOException {
+    	in.mark(GZIP_MAGIC.length);
+    	byte[] magic = in.readNBytes(GZIP_MAGIC.length);
+    	in.reset();
+    	return Arrays.equals(magic, GZIP_MAGIC);
+    }
+    
+    /**
+     * Checks if a stream contains a file in binary format, without consuming it.
+     * @param in The stream, which must support mark() and reset().
+     * @return True if the stream starts with the binary header, false otherwise.
+     * @throws IOException If an I/O error occurs while reading the stream.
+     */
+    private static boolean isBinary(InputStream in) throws IOException {
+    	in.mark(BINARY_MAGIC.length);
+    	byte[] magic = in.readNBytes(BINARY_MAGIC.length);
+    	in.reset();
+    	return Arrays.equals(magic, BINARY_MAGIC);
+    }
+    
+    /**
+     * Reads the header of a file in binary format.
+     * @param in The stream, positioned at the start of the file.
+     * @return True if the coordinates are stored as floats, false if they are stored as doubles.
+     * @throws IOException If an I/O error occurs while reading the stream, or if the version of the file isn't supported.
+     */
+    private static boolean readBinaryHeader(DataInputStream in) throws IOException {
+    	in.skipNBytes(BINARY_MAGIC.length);
+    	int version = in.readUnsignedByte();
+    	if (version > BINARY_VERSION) {
+    		throw new IOException("Unsupported file version: " + version + ".");
+    	}
+    	int flags = in.readUnsignedByte();
+    	return (flags & BINARY_FLAG_FLOAT_COORDS) != 0;
+    }
+    
+    /**
+     * Reads the background of a file in binary format.
+     * @param in The stream, positioned after the header.
+     * @return The line describing the background in text format.
+     * @throws IOException If an I/O error occurs while reading the stream, or if the background is invalid.
+     */
+    private static String readBinaryBackground(DataInputStream in) throws IOException {
+    	int type = in.readUnsignedByte();
+    	switch (type) {
+	    	case BINARY_BACKGROUND_COLOR: return "Background_Color: " + in.readInt();
+	    	case BINARY_BACKGROUND_IMAGE: return "Background_Image: " + in.readUTF();
+	    	default: throw new IOException("Invalid background type: " + type + ".");
+    	}
+    }
+    
+    /**
+     * Writes the content of the specified file to a string, e.g. to send it to a distant machine. Can be called from any thread.
+     * A file in text format with a valid header is sent as is, without parsing its shapes. A compressed file is sent as is, 
+     * encoded in Base64 : it's decompressed by restoreFileFromString(). The string is kept until the file changes, so sending 
+     * the same file again costs nothing.
      * @param fileName The name of the file to be written.
      * @return A string containing the content of the panel.
      * @throws IOException If an I/O error occurs while writing the file.
      */
     public String fileToString(String fileName) throws IOException {
-    	File file = new File(fileName);
-    	StringWriter stringWriter = new StringWriter();
+    	Path path = new File(fileName).getAbsoluteFile().toPath();
+    	BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class); // Read first, so the content can only be newer
+    	CachedFile cached = sentFiles.get(path.toString());
+    	if (cached != null && cached.isUpToDate(attributes)) return cached.content;
     	
-    	try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-        	// Background
-            String bgLine = reader.readLine();
-            if (bgLine != null) {
-                if (bgLine.startsWith("Background_Color: ")) {
-                    int rgb = Integer.parseInt(bgLine.substring(18));
-                    stringWriter.write("Background_Color: " + rgb);
-                } else if (bgLine.startsWith("Background_Image: ")) {
-                    String imagePath = bgLine.substring(18);
-                    stringWriter.write("Background_Image: " + imagePath);
-                }
-            }
-            stringWriter.write(System.lineSeparator());
-
-            // Shapes
-            String line;
-            while ((line = reader.readLine()) != null) {
-                GeneralShape shape = GeneralShape.fromTextFormat(line);
-                if (shape != null) {
-                	stringWriter.write(shape.toTextFormat());
-                	stringWriter.write(System.lineSeparator());
-                }
-            }
+    	byte[] bytes = Files.readAllBytes(path);
+    	String content;
+    	if (startsWith(bytes, GZIP_MAGIC)) { // Much smaller than the text it contains
+    		content = COMPRESSED_PREFIX + Base64.getEncoder().encodeToString(bytes);
+    	} else {
+    		content = (hasValidTextHeader(bytes) ? new String(bytes, Charset.defaultCharset()) : convertToText(bytes));
+    		if (checksumEnabled) content = appendChecksum(content);
+    	}
+    	
+    	if (content.length() <= MAX_CACHED_LENGTH) {
+    		if (sentFiles.size() >= MAX_CACHED_FILES) sentFiles.clear();
+    		sentFiles.put(path.toString(), new CachedFile(attributes, content));
+    	}
+    	return content;
+    }
+    
+    /**
+     * Forgets the string kept by fileToString() for a file, e.g. once the file has been deleted. Can be called from any thread.
+     * @param fileName The name of the file.
+     */
+    public void forgetFile(String fileName) {
+    	sentFiles.remove(new File(fileName).getAbsoluteFile().toPath().toString());
+    }
+    
+    /**
+     * Checks if the content of a file starts with the header of the text format : a valid background line, followed by a shape if any.
+     * The shapes aren't checked, the parsers skip the invalid lines anyway.
+     * @param bytes The content of the file.
+     * @return True if the file can be sent as is.
+     */
+    private static boolean hasValidTextHeader(byte[] bytes) {
+    	int headerEnd = 0;
+    	while (headerEnd < bytes.length && bytes[headerEnd] != '\n' && bytes[headerEnd] != '\r') headerEnd++;
+    	String bgLine = new String(bytes, 0, headerEnd, Charset.defaultCharset());
+    	if (bgLine.startsWith("Background_Color: ")) {
+    		try {
+    			Integer.parseInt(bgLine.substring(18));
+    		} catch (NumberFormatException e) {
+    			return false;
+    		}
+    	} else if (!bgLine.startsWith("Background_Image: ")) {
+    		return false;
+    	}
+    	
+    	int shapeStart = headerEnd;
+    	while (shapeStart < bytes.length && (bytes[shapeStart] == '\n' || bytes[shapeStart] == '\r')) shapeStart++;
+    	if (shapeStart == bytes.length) return true; // No shapes
+    	byte[] shapePrefix = "GeneralShape;".getBytes(StandardCharsets.US_ASCII);
+    	return Arrays.equals(bytes, shapeStart, Math.min(shapeStart + shapePrefix.length, bytes.length), shapePrefix, 0, shapePrefix.length);
+    }
+    
+    /**
+     * Checks if an array starts with the specified bytes.
+     * @param bytes The array.
+     * @param prefix The bytes.
+     * @return True if the array starts with the bytes.
+     */
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+    	return bytes.length >= prefix.length && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+    
+    /**
+     * Appends a line containing the CRC32 of a string to the string.
+     * @param content The string.
+     * @return The string followed by its checksum.
+     */
+    private static String appendChecksum(String content) {
+    	if (!content.isEmpty() && !content.endsWith("\n")) content += System.lineSeparator();
+    	return content + CHECKSUM_PREFIX + Long.toHexString(checksum(content)) + System.lineSeparator();
+    }
+    
+    /**
+     * Verifies the checksum ending a string, if any.
+     * @param content The string.
+     * @throws IOException If the string has a checksum and the checksum doesn't match.
+     */
+    private static void verifyChecksum(String content) throws IOException {
+    	int trimmedEnd = content.length();
+    	while (trimmedEnd > 0 && (content.charAt(trimmedEnd - 1) == '\n' || content.charAt(trimmedEnd - 1) == '\r')) trimmedEnd--;
+    	int lineStart = content.lastIndexOf('\n', trimmedEnd - 1) + 1;
+    	if (!content.startsWith(CHECKSUM_PREFIX, lineStart)) return; // Sent without checksum
+    	
+    	long expected;
+    	try {
+    		expected = Long.parseLong(content.substring(lineStart + CHECKSUM_PREFIX.length(), trimmedEnd), 16);
+    	} catch (NumberFormatException e) {
+    		throw new IOException("Invalid checksum.", e);
+    	}
+    	if (checksum(content.substring(0, lineStart)) != expected) {
+    		throw new IOException("Checksum mismatch, the content has been damaged.");
+    	}
+    }
+    
+    /**
+     * Computes the CRC32 of a string encoded in UTF-8.
+     * @param content The string.
+     * @return The CRC32.
+     */
+    private static long checksum(String content) {
+    	CRC32 crc = new CRC32();
+    	crc.update(content.getBytes(StandardCharsets.UTF_8));
+    	return crc.getValue();
+    }
+    
+    /**
+     * Converts the content of a file to text format, parsing its shapes and writing them again.
+     * Used for the files in binary format, and for the files in text format whose header is invalid.
+     * @param bytes The content of the file.
+     * @return The content in text format.
+     * @throws IOException If the content is invalid.
+     */
+    private static String convertToText(byte[] bytes) throws IOException {
+    	StringWriter stringWriter = new StringWriter(bytes.length);
+    	
+    	try (InputStream in = new ByteArrayInputStream(bytes);
+    		 ShapeTextWriter writer = new ShapeTextWriter(stringWriter)) {
+    		if (isBinary(in)) { // Always sent in text format
+    			DataInputStream dataIn = new DataInputStream(in);
+    			boolean floatCoords = readBinaryHeader(dataIn);
+    			writer.writeLine(readBinaryBackground(dataIn));
+    			
+    			int shapeCount = GeneralShape.readVarInt(dataIn);
+    			for (int i = 0; i < shapeCount; i++) {
+    				writer.writeShape(GeneralShape.readBinary(dataIn, floatCoords));
+    			}
+    		} else {
+	    		ShapeTextReader reader = new ShapeTextReader(new InputStreamReader(in));
+	        	// Background
+	            String bgLine = reader.readLine();
+	            String bgText = "";
+	            if (bgLine != null) {
+	                if (bgLine.startsWith("Background_Color: ")) {
+	                    int rgb = Integer.parseInt(bgLine.substring(18));
+	                    bgText = "Background_Color: " + rgb;
+	                } else if (bgLine.startsWith("Background_Image: ")) {
+	                    String imagePath = bgLine.substring(18);
+	                    bgText = "Background_Image: " + imagePath;
+	                }
+	            }
+	            writer.writeLine(bgText);
+	
+	            // Shapes
+	            GeneralShape shape;
+	            while ((shape = reader.readShape()) != null) {
+	            	writer.writeShape(shape);
+	            }
+    		}
         }
     	
-        return stringWriter.toString();
+        return stringWriter.toString(); // The writer has been flushed when closed
     }
     
     /**
      * Restores the panel's content from the specified string.
-     * @param fileContent The string representing the panel's content.
+     * @param fileContent The string representing the panel's content, in text format or compressed (see fileToString()).
      * @throws IOException If an I/O error occurs while reading the string.
      */
     public void restoreFileFromString(String fileContent) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new StringReader(fileContent))) {
+    	if (fileContent.startsWith(COMPRESSED_PREFIX)) {
+    		byte[] compressed;
+    		try {
+    			compressed = Base64.getDecoder().decode(fileContent.substring(COMPRESSED_PREFIX.length()));
+    		} catch (IllegalArgumentException e) {
+    			throw new IOException("Invalid compressed content.", e);
+    		}
+    		cancelRestore();
+    		panel.reset();
+    		try (InputStream in = new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed), BUFFER_SIZE), BUFFER_SIZE)) {
+    			restoreStream(in, false);
+    		}
+    		return;
+    	}
+    	verifyChecksum(fileContent);
+    	
+        try (ShapeTextReader reader = new ShapeTextReader(fileContent)) {
+        	cancelRestore();
             panel.reset();
 
             // Background
             String bgLine = reader.readLine();
-            if (bgLine != null) {
-                if (bgLine.startsWith("Background_Color: ")) {
-                    int rgb = Integer.parseInt(bgLine.substring(18));
-                    Color bgColor = new Color(rgb);
-                    panel.setBackground(bgColor);
-                } else if (bgLine.startsWith("Background_Image: ")) {
-                    panel.setBackground(Color.WHITE); // Background images not currently handled from distant
-                }
-            }
+            if (bgLine != null) restoreBackground(bgLine, false);
 
             // Shapes
-            String line;
-            while ((line = reader.readLine()) != null) {
-                GeneralShape shape = GeneralShape.fromTextFormat(line);
-                if (shape != null) {
-                    panel.addShape(shape);
-                }
+            List<GeneralShape> shapes = new ArrayList<>();
+            GeneralShape shape;
+            while ((shape = reader.readShape()) != null) {
+                shapes.add(shape);
             }
+            panel.addShapes(shapes); // Added at once
         }
     }
     
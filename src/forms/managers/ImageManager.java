@@ -0,0 +1,333 @@
+package forms.managers;
+
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingWorker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class ImageManager {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int MIN_SUBSAMPLING = 2; // Images are only subsampled when they are at least this many times bigger than needed
+	private static final long PREVIEW_INTERVAL = 200; // Minimum time between two previews of an image being decoded, in milliseconds
+
+	private Component component;
+
+	/**
+	 * Receives the progress and the result of an asynchronous image loading, on the Event Dispatch Thread.
+	 */
+	public interface LoadListener {
+
+		/**
+		 * Called from time to time while the image is decoded, with the part decoded so far.
+		 * @param preview The partially decoded image, already converted and scaled.
+		 */
+		void imageUpdated(BufferedImage preview);
+
+		/**
+		 * Called when the image is ready to be displayed.
+		 * @param image The loaded image, converted and scaled.
+		 * @param loadTime The time spent decoding, converting and scaling the image, in milliseconds.
+		 */
+		void imageLoaded(BufferedImage image, long loadTime);
+
+		/**
+		 * Called if the loading failed.
+		 * @param e The exception that made the loading fail.
+		 */
+		void loadFailed(Exception e);
+	}
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructor for ImageManager class.
+	 * @param component The component the images are displayed on.
+	 */
+	public ImageManager(Component component) {
+		this.component = component;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Decodes an image file, converts it to the format of the screen and scales it down to fit in the specified size, on a background thread.
+	 * Images much bigger than the specified size are subsampled while being decoded, and previews are sent while the image is decoded.
+	 * @param file The image file.
+	 * @param maxW The maximum width of the loaded image.
+	 * @param maxH The maximum height of the loaded image.
+	 * @param listener The listener notified on the Event Dispatch Thread of the progress and of the end of the loading.
+	 */
+	public void loadImage(File file, int maxW, int maxH, LoadListener listener) {
+		GraphicsConfiguration gc = getGraphicsConfiguration(); // Read on the Event Dispatch Thread
+
+		new SwingWorker<BufferedImage, BufferedImage>() {
+			private long loadTime;
+			private long lastPreview;
+
+			@Override
+			protected BufferedImage doInBackground() throws IOException {
+				long start = System.nanoTime();
+				lastPreview = start;
+				BufferedImage result = readImage(file, maxW, maxH, gc, new PreviewListener() {
+					@Override
+					protected void imageProgressed(BufferedImage image) {
+						long now = System.nanoTime();
+						if (now - lastPreview < PREVIEW_INTERVAL * 1_000_000) return;
+						publish(scaleQuickly(image, maxW, maxH, gc));
+						lastPreview = System.nanoTime(); // The preview itself takes some time
+					}
+				});
+				loadTime = (System.nanoTime() - start) / 1_000_000;
+				return result;
+			}
+
+			@Override
+			protected void process(List<BufferedImage> previews) {
+				if (!isDone()) listener.imageUpdated(previews.get(previews.size() - 1)); // Only the latest preview is useful
+			}
+
+			@Override
+			protected void done() {
+				try {
+					listener.imageLoaded(get(), loadTime);
+				} catch (ExecutionException e) {
+					listener.loadFailed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				} catch (InterruptedException e) {
+					listener.loadFailed(e);
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Decodes an image file, converts it to the format of the screen and scales it down to fit in the specified size.
+	 * @param file The image file.
+	 * @param maxW The maximum width of the loaded image.
+	 * @param maxH The maximum height of the loaded image.
+	 * @param gc The configuration of the screen, or null to use a standard format.
+	 * @param updateListener The listener notified while the image is decoded, or null.
+	 * @return The loaded image.
+	 * @throws IOException If the file can't be read or isn't a supported image.
+	 */
+	public static BufferedImage readImage(File file, int maxW, int maxH, GraphicsConfiguration gc, IIOReadUpdateListener updateListener) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if (input == null) throw new IOException("Cannot read " + file.getName() + ".");
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) throw new IOException("Unsupported image format.");
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				int subsampling = getSubsampling(reader.getWidth(0), reader.getHeight(0), maxW, maxH);
+				if (subsampling > 1) {
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0); // Only every n-th pixel is decoded
+				}
+				if (updateListener != null) reader.addIIOReadUpdateListener(updateListener);
+
+				return convert(reader.read(0, param), maxW, maxH, gc);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Gets the subsampling to use when decoding an image, so that the decoded image is still at least as big as needed.
+	 * @param w The width of the image in the file.
+	 * @param h The height of the image in the file.
+	 * @param maxW The maximum width of the loaded image.
+	 * @param maxH The maximum height of the loaded image.
+	 * @return The subsampling factor, 1 if the image isn't much bigger than needed.
+	 */
+	private static int getSubsampling(int w, int h, int maxW, int maxH) {
+		if (maxW <= 0 || maxH <= 0) return 1;
+		int subsampling = Math.min(w / maxW, h / maxH);
+		return (subsampling >= MIN_SUBSAMPLING ? subsampling : 1);
+	}
+
+	/**
+	 * Scales an image to fit in the specified size in a single step. Faster but less good looking than scaleDown(), used for previews.
+	 * @param image The image to scale.
+	 * @param maxW The maximum width of the scaled image.
+	 * @param maxH The maximum height of the scaled image.
+	 * @param gc The configuration of the screen, or null to use a standard format.
+	 * @return The scaled image, in the format of the screen.
+	 */
+	private static BufferedImage scaleQuickly(BufferedImage image, int maxW, int maxH, GraphicsConfiguration gc) {
+		int w = Math.max(1, Math.min(image.getWidth(), maxW));
+		int h = Math.max(1, Math.min(image.getHeight(), maxH));
+
+		BufferedImage scaledImage = createImage(w, h, image.getTransparency(), gc);
+		Graphics2D g2d = scaledImage.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2d.drawImage(image, 0, 0, w, h, null);
+		g2d.dispose();
+		return scaledImage;
+	}
+
+	/**
+	 * Converts an image to the format of the screen and scales it down to fit in the specified size.
+	 * @param image The image to convert.
+	 * @param maxW The maximum width of the converted image.
+	 * @param maxH The maximum height of the converted image.
+	 * @param gc The configuration of the screen, or null to use a standard format.
+	 * @return The converted image.
+	 */
+	public static BufferedImage convert(BufferedImage image, int maxW, int maxH, GraphicsConfiguration gc) {
+		int w = Math.max(1, Math.min(image.getWidth(), maxW));
+		int h = Math.max(1, Math.min(image.getHeight(), maxH));
+
+		if (w == image.getWidth() && h == image.getHeight()) {
+			return toCompatibleImage(image, gc);
+		}
+		return scaleDown(image, w, h, gc);
+	}
+
+	/**
+	 * Converts an image to the format of the screen, which is much faster to draw. The image is returned as is if it already has this format.
+	 * @param image The image to convert.
+	 * @param gc The configuration of the screen, or null to use a standard format.
+	 * @return The converted image.
+	 */
+	public static BufferedImage toCompatibleImage(BufferedImage image, GraphicsConfiguration gc) {
+		int transparency = image.getTransparency();
+		if (gc != null && image.getColorModel().equals(gc.getColorModel(transparency))) {
+			return image;
+		}
+
+		BufferedImage compatibleImage = createImage(image.getWidth(), image.getHeight(), transparency, gc);
+		Graphics2D g2d = compatibleImage.createGraphics();
+		g2d.drawImage(image, 0, 0, null);
+		g2d.dispose();
+		return compatibleImage;
+	}
+
+	/**
+	 * Scales an image down by halving its size step by step, then does the last step directly.
+	 * Much better looking than a single bilinear step, and much faster than Image.SCALE_SMOOTH.
+	 * @param image The image to scale.
+	 * @param w The width of the scaled image.
+	 * @param h The height of the scaled image.
+	 * @param gc The configuration of the screen, or null to use a standard format.
+	 * @return The scaled image, in the format of the screen.
+	 */
+	public static BufferedImage scaleDown(BufferedImage image, int w, int h, GraphicsConfiguration gc) {
+		int transparency = image.getTransparency();
+		BufferedImage current = image;
+		int currentW = image.getWidth();
+		int currentH = image.getHeight();
+
+		do {
+			currentW = (currentW / 2 >= w ? currentW / 2 : w);
+			currentH = (currentH / 2 >= h ? currentH / 2 : h);
+
+			BufferedImage step = createImage(currentW, currentH, transparency, gc);
+			Graphics2D g2d = step.createGraphics();
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g2d.drawImage(current, 0, 0, currentW, currentH, null);
+			g2d.dispose();
+
+			current = step;
+		} while (currentW != w || currentH != h);
+
+		return current;
+	}
+
+	/**
+	 * Creates an empty image in the format of the screen, or in a standard format if there is no screen.
+	 * @param w The width of the image.
+	 * @param h The height of the image.
+	 * @param transparency The transparency of the image (see java.awt.Transparency).
+	 * @param gc The configuration of the screen, or null to use a standard format.
+	 * @return The created image.
+	 */
+	private static BufferedImage createImage(int w, int h, int transparency, GraphicsConfiguration gc) {
+		if (gc != null) {
+			return gc.createCompatibleImage(w, h, transparency);
+		}
+		int type = (transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		return new BufferedImage(w, h, type);
+	}
+
+	/**
+	 * Gets the configuration of the screen the component is displayed on, or of the default screen if it isn't displayed.
+	 * @return The configuration of the screen, or null if there is no screen.
+	 */
+	public GraphicsConfiguration getGraphicsConfiguration() {
+		GraphicsConfiguration gc = component.getGraphicsConfiguration();
+		if (gc == null && !GraphicsEnvironment.isHeadless()) {
+			gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+		}
+		return gc;
+	}
+
+	/**
+	 * Listener of the progress of an image being decoded, notified on the thread that decodes the image.
+	 */
+	private static abstract class PreviewListener implements IIOReadUpdateListener {
+
+		/**
+		 * Called every time new pixels have been decoded.
+		 * @param image The image being decoded.
+		 */
+		protected abstract void imageProgressed(BufferedImage image);
+
+		@Override
+		public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+				int minX, int minY, int periodX, int periodY, int[] bands) {}
+
+		@Override
+		public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height,
+				int periodX, int periodY, int[] bands) {
+			imageProgressed(theImage);
+		}
+
+		@Override
+		public void passComplete(ImageReader source, BufferedImage theImage) {
+			imageProgressed(theImage); // Each pass of a progressive image gives a sharper version of the whole image
+		}
+
+		@Override
+		public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass, int maxPass,
+				int minX, int minY, int periodX, int periodY, int[] bands) {}
+
+		@Override
+		public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width, int height,
+				int periodX, int periodY, int[] bands) {}
+
+		@Override
+		public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {}
+	}
+
+}
@@ -0,0 +1,566 @@
+package forms.managers;
+
+import forms.shapes.GeneralShape;
+import forms.shapes.ShapeTextWriter;
+import forms.windowsContents.Panel;
+
+import java.awt.Color;
+import java.awt.Label;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class JournalManager implements Panel.EditListener {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final File AUTOSAVE_DIRECTORY = new File("files/autosave"); // One sub-directory per window with autosave enabled
+	private static final String SNAPSHOT_EXTENSION = ".shp";
+	private static final String JOURNAL_EXTENSION = ".journal";
+	private static final String LOCK_FILE_NAME = "lock"; // Locked while the session is alive, so that it isn't recovered by another window
+	private static final int FLUSH_DELAY = 1000; // Milliseconds between two writes of the journal
+	private static final int COMPACTION_ENTRIES = 10_000; // Number of entries from which the journal is replaced by a snapshot
+	private static final long COMPACTION_SIZE = 16L << 20; // Size of the journal from which it's replaced by a snapshot, in characters
+
+	// Entry types. An entry is a single line : its type, then its fields separated by spaces.
+	private static final char ENTRY_ADD = 'A'; // A <index> <shape>
+	private static final char ENTRY_CHANGE = 'C'; // C <index> <shape>
+	private static final char ENTRY_DELETE = 'D'; // D <index>
+	private static final char ENTRY_MOVE = 'M'; // M <from index> <to index>
+	private static final char ENTRY_BACKGROUND_COLOR = 'B'; // B <rgb>
+	private static final char ENTRY_BACKGROUND_IMAGE = 'I'; // I <path>
+
+	private Panel panel;
+	private FileManager fileManager;
+	private Label helpText;
+	private Timer timer = new Timer(FLUSH_DELAY, e -> flushOrCompact());
+
+	private boolean enabled = false;
+	private File session = null; // Directory of the files of this window
+	private FileChannel lockChannel = null;
+	private FileLock lock = null;
+	private Writer journal = null; // Null while the snapshot it follows is written, the entries are kept in memory meanwhile
+	private int generation = 0; // Number of the current journal, which records the edits done since the snapshot of the same number
+
+	private StringBuilder entries = new StringBuilder(); // Entries not written to the journal yet
+	private double[] coords = new double[6]; // Used to format the shapes
+	private int entryCount = 0; // Entries recorded since the last compaction
+	private long journalSize = 0; // Characters written to the journal since the last compaction
+	private boolean compactionNeeded = false;
+	private boolean compacting = false; // True while a snapshot is written on a background thread
+	private boolean discarding = false; // True between a reset of the document and the next compaction, which records the whole document anyway
+	private boolean replaying = false; // True while a journal is replayed, the replayed edits mustn't be recorded again
+	private File recoveredSession = null; // Session recovered in this window, deleted once the recovered document has been compacted
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructor for JournalManager class.
+	 * @param panel The panel whose edits are recorded.
+	 * @param fileManager The file manager, used to restore the snapshots.
+	 * @param helpText The label the errors are displayed in.
+	 */
+	public JournalManager(Panel panel, FileManager fileManager, Label helpText) {
+		this.panel = panel;
+		this.fileManager = fileManager;
+		this.helpText = helpText;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	//----- Autosave -----
+	/**
+	 * Checks if the autosave is enabled.
+	 * @return True if the edits are recorded, false otherwise.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables the autosave. When enabled, every edit of the panel is appended to a journal, which is regularly
+	 * replaced by a snapshot of the whole document. When disabled, the files of the autosave are deleted.
+	 * @param enabled True to enable the autosave, false to disable it.
+	 * @throws IOException If the directory of the autosave can't be created.
+	 */
+	public void setEnabled(boolean enabled) throws IOException {
+		if (enabled == this.enabled) return;
+
+		if (enabled) {
+			openSession();
+			this.enabled = true;
+			panel.addEditListener(this);
+			compact(); // The journal is only meaningful after a first snapshot
+			timer.start();
+		} else {
+			this.enabled = false;
+			timer.stop();
+			panel.removeEditListener(this);
+			entries.setLength(0);
+			closeJournal();
+			deleteSession(); // Deleted again once the snapshot being written (if any) is done
+		}
+	}
+
+	/**
+	 * Disables the autosave and deletes its files, e.g. when the window is closed normally.
+	 */
+	public void close() {
+		try {
+			setEnabled(false);
+		} catch (IOException e) {
+			// Can't happen when disabling
+		}
+	}
+
+	/**
+	 * Flushes the recorded entries to the journal, or replaces the journal by a snapshot if it has grown too much.
+	 * Called by the timer, so that the edits themselves only append to a StringBuilder.
+	 */
+	private void flushOrCompact() {
+		if (compactionNeeded || entryCount >= COMPACTION_ENTRIES || journalSize >= COMPACTION_SIZE) {
+			compact();
+		} else {
+			flushEntries();
+		}
+	}
+
+	/**
+	 * Writes the recorded entries to the journal.
+	 */
+	private void flushEntries() {
+		if (entries.length() == 0 || journal == null) return;
+		try {
+			journal.write(entries.toString());
+			journal.flush(); // Not forced to the disk : the journal must survive a crash of the application, not of the system
+			journalSize += entries.length();
+			entries.setLength(0);
+		} catch (IOException e) {
+			autosaveFailed(e);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the document on a background thread, then starts a new journal. The edits made meanwhile are kept
+	 * in memory : a journal never exists without its snapshot, so it can't be replayed on another document after a crash.
+	 * The older journals and snapshots are deleted once the snapshot is written, so there is always a complete one to recover from.
+	 */
+	private void compact() {
+		if (compacting) { // Retried by the timer
+			compactionNeeded = true;
+			return;
+		}
+
+		if (!discarding) flushEntries(); // The previous journal must be complete in case the new snapshot can't be written
+		entries.setLength(0);
+		closeJournal();
+
+		int newGeneration = generation + 1;
+		DocumentSnapshot snapshot = panel.createSnapshot();
+		File snapshotFile = getGenerationFile(newGeneration, SNAPSHOT_EXTENSION);
+		generation = newGeneration;
+		entryCount = 0;
+		journalSize = 0;
+		compactionNeeded = false;
+		discarding = false;
+		compacting = true;
+
+		File directory = session;
+		File obsoleteSession = recoveredSession;
+		recoveredSession = null;
+		new SwingWorker<Void, Void>() {
+			@Override
+			protected Void doInBackground() throws IOException {
+				FileManager.writeSnapshot(snapshot, snapshotFile, true); // Binary format, the fastest to write and read
+				deleteGenerationsBefore(directory, newGeneration);
+				if (obsoleteSession != null) deleteDirectory(obsoleteSession);
+				return null;
+			}
+			@Override
+			protected void done() {
+				compacting = false;
+				if (directory != session) { // The autosave has been disabled meanwhile
+					deleteDirectory(directory);
+					return;
+				}
+				try {
+					get();
+					journal = Files.newBufferedWriter(getGenerationFile(newGeneration, JOURNAL_EXTENSION).toPath(), StandardCharsets.UTF_8,
+							StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+					flushEntries(); // Edits made while the snapshot was written
+				} catch (IOException e) {
+					autosaveFailed(e);
+				} catch (ExecutionException e) {
+					autosaveFailed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				} catch (InterruptedException e) {
+					autosaveFailed(e);
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Reports an error of the autosave. The next compaction, which starts from scratch, is attempted by the timer.
+	 * @param e The error.
+	 */
+	private void autosaveFailed(Exception e) {
+		if (!enabled) return;
+		compactionNeeded = true;
+		helpText.setText("Error: Autosave failed. " + e.getMessage());
+	}
+
+
+	//----- Edit listener -----
+	/**
+	 * Starts an entry of the journal, unless the edits mustn't be recorded.
+	 * @param type The type of the entry.
+	 * @return True if the entry has been started, false if it mustn't be recorded.
+	 */
+	private boolean startEntry(char type) {
+		if (!enabled || replaying || discarding) return false;
+		entries.append(type);
+		entryCount++;
+		return true;
+	}
+
+	@Override
+	public void shapeAdded(int index, GeneralShape shape) {
+		if (!startEntry(ENTRY_ADD)) return;
+		entries.append(' ').append(index).append(' ');
+		ShapeTextWriter.appendShape(entries, shape, coords);
+		entries.append('\n');
+	}
+
+	@Override
+	public void shapeChanged(int index, GeneralShape shape) {
+		if (!startEntry(ENTRY_CHANGE)) return;
+		entries.append(' ').append(index).append(' ');
+		ShapeTextWriter.appendShape(entries, shape, coords);
+		entries.append('\n');
+	}
+
+	@Override
+	public void shapeDragged(int index, GeneralShape shape) {
+		// Recorded once at the end of the drag, by shapeChanged()
+	}
+
+	@Override
+	public void shapeRemoved(int index, GeneralShape shape) {
+		if (!startEntry(ENTRY_DELETE)) return;
+		entries.append(' ').append(index).append('\n');
+	}
+
+	@Override
+	public void shapeMoved(int fromIndex, int toIndex) {
+		if (!startEntry(ENTRY_MOVE)) return;
+		entries.append(' ').append(fromIndex).append(' ').append(toIndex).append('\n');
+	}
+
+	@Override
+	public void backgroundChanged(Color color, String imagePath) {
+		if (imagePath == null) {
+			if (!startEntry(ENTRY_BACKGROUND_COLOR)) return;
+			entries.append(' ').append(color.getRGB()).append('\n');
+		} else {
+			if (!startEntry(ENTRY_BACKGROUND_IMAGE)) return;
+			entries.append(' ').append(imagePath).append('\n');
+		}
+	}
+
+	@Override
+	public void documentReset() {
+		if (!enabled || replaying) return;
+		entries.setLength(0); // Everything the document contains from now on will be in the next snapshot
+		discarding = true;
+		compactionNeeded = true;
+	}
+
+
+	//----- Recovery -----
+	/**
+	 * Checks if the autosave of another session can be recovered, i.e. if the application hasn't been closed normally.
+	 * @return True if an autosave can be recovered.
+	 */
+	public boolean canRecover() {
+		return findRecoverableSession() != null;
+	}
+
+	/**
+	 * Restores the most recent autosave left by another session : its last snapshot is restored, then the edits of
+	 * the following journals are applied. An edit that can't be applied (e.g. cut by the crash) ends the recovery.
+	 * @return True if an autosave has been recovered, false if there is none.
+	 * @throws IOException If an I/O error occurs while reading the autosave.
+	 */
+	public boolean recover() throws IOException {
+		File recoverable = findRecoverableSession();
+		if (recoverable == null) return false;
+
+		List<Integer> snapshots = getGenerations(recoverable, SNAPSHOT_EXTENSION);
+		int baseGeneration = snapshots.get(snapshots.size() - 1);
+		replaying = true;
+		try {
+			fileManager.restoreFile(new File(recoverable, baseGeneration + SNAPSHOT_EXTENSION));
+			for (int journalGeneration : getGenerations(recoverable, JOURNAL_EXTENSION)) {
+				if (journalGeneration < baseGeneration) continue;
+				if (!replay(new File(recoverable, journalGeneration + JOURNAL_EXTENSION).toPath())) break;
+			}
+		} finally {
+			replaying = false;
+			panel.repaint();
+		}
+
+		if (enabled) { // The recovered document becomes the one of this session
+			recoveredSession = recoverable;
+			entries.setLength(0);
+			discarding = true;
+			compactionNeeded = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the edits recorded in a journal to the panel.
+	 * @param path The path of the journal.
+	 * @return True if every edit has been applied, false if the journal ends with an edit that can't be applied.
+	 * @throws IOException If an I/O error occurs while reading the journal.
+	 */
+	private boolean replay(Path path) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				try {
+					applyEntry(line);
+				} catch (RuntimeException e) { // Truncated entry, or edits that don't match the snapshot
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Applies an entry of a journal to the panel.
+	 * @param line The entry.
+	 * @throws RuntimeException If the entry is invalid.
+	 */
+	private void applyEntry(String line) {
+		String[] fields = line.split(" ", 3);
+		switch (fields[0].charAt(0)) {
+			case ENTRY_ADD:
+				int index = Integer.parseInt(fields[1]);
+				if (index < 0 || index > panel.getShapes().size()) throw new IllegalStateException("Unexpected index: " + fields[1] + ".");
+				panel.insertShape(index, parseShape(fields[2]));
+				break;
+			case ENTRY_CHANGE:
+				panel.replaceShape(Integer.parseInt(fields[1]), parseShape(fields[2]));
+				break;
+			case ENTRY_DELETE:
+				panel.removeShapeAt(Integer.parseInt(fields[1]));
+				break;
+			case ENTRY_MOVE:
+				panel.moveShape(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+				break;
+			case ENTRY_BACKGROUND_COLOR:
+				panel.setBackgroundImage(null, null);
+				panel.setBackground(new Color(Integer.parseInt(fields[1])));
+				break;
+			case ENTRY_BACKGROUND_IMAGE:
+				panel.loadBackgroundImage(new File(line.substring(2))); // The path may contain spaces
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown entry: " + line + ".");
+		}
+	}
+
+	/**
+	 * Parses a shape of an entry.
+	 * @param text The shape in text format.
+	 * @return The shape.
+	 * @throws IllegalArgumentException If the text doesn't represent a shape.
+	 */
+	private static GeneralShape parseShape(String text) {
+		GeneralShape shape = GeneralShape.fromTextFormat(text);
+		if (shape == null) throw new IllegalArgumentException("Invalid shape: " + text + ".");
+		return shape;
+	}
+
+	/**
+	 * Finds the most recent session that has been left by a window without being deleted, and that has a snapshot.
+	 * The sessions of the windows still opened, in this application or another one, are locked and ignored.
+	 * @return The directory of the session, or null if there is none.
+	 */
+	private File findRecoverableSession() {
+		File[] sessions = AUTOSAVE_DIRECTORY.listFiles(File::isDirectory);
+		if (sessions == null) return null;
+
+		File mostRecent = null;
+		long mostRecentTime = Long.MIN_VALUE;
+		for (File candidate : sessions) {
+			if (candidate.equals(session) || candidate.equals(recoveredSession) || isLocked(candidate)) continue;
+			if (getGenerations(candidate, SNAPSHOT_EXTENSION).isEmpty()) continue;
+
+			long time = 0;
+			File[] files = candidate.listFiles();
+			if (files == null) continue;
+			for (File file : files) {
+				time = Math.max(time, file.lastModified());
+			}
+			if (time > mostRecentTime) {
+				mostRecent = candidate;
+				mostRecentTime = time;
+			}
+		}
+		return mostRecent;
+	}
+
+	/**
+	 * Checks if a session is used by a window.
+	 * @param directory The directory of the session.
+	 * @return True if the lock file of the session is locked.
+	 */
+	private static boolean isLocked(File directory) {
+		File lockFile = new File(directory, LOCK_FILE_NAME);
+		if (!lockFile.exists()) return false;
+		try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+			FileLock candidateLock = channel.tryLock();
+			if (candidateLock == null) return true; // Locked by another application
+			candidateLock.release();
+			return false;
+		} catch (OverlappingFileLockException e) { // Locked by another window of this application
+			return true;
+		} catch (IOException e) {
+			return true; // Not usable anyway
+		}
+	}
+
+
+	//----- Files -----
+	/**
+	 * Creates and locks the directory of the files of this window.
+	 * @throws IOException If the directory can't be created.
+	 */
+	private void openSession() throws IOException {
+		Files.createDirectories(AUTOSAVE_DIRECTORY.toPath());
+		session = Files.createTempDirectory(AUTOSAVE_DIRECTORY.toPath(), "session-").toFile();
+		lockChannel = FileChannel.open(new File(session, LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		lock = lockChannel.tryLock();
+		generation = 0;
+	}
+
+	/**
+	 * Unlocks and deletes the directory of the files of this window.
+	 */
+	private void deleteSession() {
+		if (session == null) return;
+		try {
+			if (lock != null) lock.release();
+			lockChannel.close();
+		} catch (IOException e) {
+			// Deleted anyway
+		}
+		deleteDirectory(session);
+		session = null;
+		lockChannel = null;
+		lock = null;
+	}
+
+	/**
+	 * Closes the current journal.
+	 */
+	private void closeJournal() {
+		if (journal == null) return;
+		try {
+			journal.close();
+		} catch (IOException e) {
+			autosaveFailed(e);
+		}
+		journal = null;
+	}
+
+	/**
+	 * Gets a file of the current session.
+	 * @param generation The generation of the file.
+	 * @param extension The extension of the file, i.e. its type.
+	 * @return The file.
+	 */
+	private File getGenerationFile(int generation, String extension) {
+		return new File(session, generation + extension);
+	}
+
+	/**
+	 * Deletes the snapshots and journals of a session older than a generation.
+	 * @param directory The directory of the session.
+	 * @param generation The oldest generation to keep.
+	 */
+	private static void deleteGenerationsBefore(File directory, int generation) {
+		for (String extension : new String[] { SNAPSHOT_EXTENSION, JOURNAL_EXTENSION }) {
+			for (int oldGeneration : getGenerations(directory, extension)) {
+				if (oldGeneration < generation) new File(directory, oldGeneration + extension).delete();
+			}
+		}
+	}
+
+	/**
+	 * Lists the generations of the files of a type in a session.
+	 * @param directory The directory of the session.
+	 * @param extension The extension of the files.
+	 * @return The generations, in ascending order.
+	 */
+	private static List<Integer> getGenerations(File directory, String extension) {
+		List<Integer> generations = new ArrayList<>();
+		String[] names = directory.list();
+		if (names == null) return generations;
+		for (String name : names) {
+			if (!name.endsWith(extension)) continue;
+			try {
+				generations.add(Integer.parseInt(name.substring(0, name.length() - extension.length())));
+			} catch (NumberFormatException e) {
+				// Not a file of the autosave (e.g. temporary file)
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * Deletes a directory and the files it contains.
+	 * @param directory The directory.
+	 */
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+}
@@ -23,7 +23,9 @@ public class WindowManager {
 	private MainWindow window;
 	
 	private boolean hasSaved = true;
+	private int editCount = 0; // Incremented on every modification, to know if the canvas has been modified during a save
 	private boolean askForSave = true;
+	private boolean closing = false; // True while the closure waits for a save to end
 	
 	/***************************************************************************
 	 * Constructors.
@@ -47,6 +49,15 @@ public class WindowManager {
      */
 	public void setHasSaved(boolean state) {
 		hasSaved = state;
+		if (!state) editCount++;
+	}
+	
+	/**
+     * Gets the number of modifications of the canvas since the application started.
+     * @return The number of modifications.
+     */
+	public int getEditCount() {
+		return editCount;
 	}
 	
 	/**
@@ -77,13 +88,19 @@ public class WindowManager {
 	
 	/**
      * Manages the closure of the application, prompting the user to save changes if necessary.
+     * If a file is being saved, the closure waits for the end of the save (which may make the changes saved).
      */
 	public void manageClosure(Server server, Client client) {
-		if (!hasSaved && askForSave) {
-			confirmClosure(server, client);
-		} else {
-			close(server, client);
-		}
+		if (closing) return; // Already waiting for the save
+		closing = true;
+		window.whenSaved(() -> {
+			closing = false;
+			if (!hasSaved && askForSave) {
+				confirmClosure(server, client);
+			} else {
+				close(server, client);
+			}
+		});
 	}
 	
 	/**
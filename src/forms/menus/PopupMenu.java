@@ -1,6 +1,5 @@
 package forms.menus;
 
-import forms.shapes.GeneralShape;
 import forms.windowsContents.Panel;
 
 import java.awt.Color;
@@ -58,11 +57,9 @@ public class PopupMenu extends JPopupMenu {
                 panel.setSelectedColor(JColorChooser.showDialog(panel, "Choose a color", Color.BLACK));
                 
                 Color selectedColor = panel.getSelectedColor();
-                GeneralShape selectedShape = panel.getSelectedShape();
                 
                 if (selectedColor != null) {
-                	selectedShape.setColor(selectedColor);
-                    panel.repaintAroundShape(selectedShape, 0, 0);
+                	panel.setSelectedShapeColor(selectedColor);
                 }
             }
         });
@@ -80,9 +77,7 @@ public class PopupMenu extends JPopupMenu {
                 Color selectedColor = panel.getSelectedOutlineColor();
                 
                 if (selectedColor != null) {
-                	GeneralShape selectedShape = panel.getSelectedShape();
-                	selectedShape.setOutlineColor(selectedColor);
-                    panel.repaintAroundShape(selectedShape, 5, 5);
+                	panel.setSelectedShapeOutlineColor(selectedColor);
                 }
             }
         });
@@ -97,10 +92,8 @@ public class PopupMenu extends JPopupMenu {
                 int option = JOptionPane.showOptionDialog(null, spinner, "Choose a thickness between 0 and 10 :", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null, null, null);
                 
                 if (option == JOptionPane.OK_OPTION) {
-                	GeneralShape selectedShape = panel.getSelectedShape();
                     int thickness = (int) spinner.getValue();
-                    selectedShape.setOutlineThickness(thickness);
-                    panel.repaintAroundShape(selectedShape, 5, 5);
+                    panel.setSelectedShapeOutlineThickness(thickness);
                 }
             }
         });
@@ -1,21 +1,46 @@
 package forms.network;
 
 import forms.managers.FileManager;
+import forms.shapes.GeneralShape;
+import forms.shapes.ShapeTextReader;
+import forms.windowsContents.Panel;
 
 import java.awt.GridLayout;
 
+import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.BindException;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 /**
  * @author Simon Antropius
@@ -29,11 +54,126 @@ public class Client {
 	 **************************************************************************/
 	
 	private RemoteServer server;
+	private String host = null;
 	private int port = -1;
 	private transient FileManager fileManager;
+	private transient Panel panel;
 	
 	private boolean isConnected = false;
 	
+	// Revision of the document of the server the panel has been synchronized with
+	private static final int MAX_INCREMENTAL_CHANGES = 256; // Beyond, the shapes are replaced at once rather than one by one
+	private long syncEpoch = 0;
+	private long syncRevision = 0; // 0 if the panel has never been synchronized
+	private int syncResetCount = -1; // Reset count of the panel when it was synchronized
+	
+	// Live session joined on the server
+	private LiveSession session = null;
+	private SessionCallback sessionCallback = null;
+	private ExecutorService sessionSender = null; // Sends the batches in order without blocking the Event Dispatch Thread
+	private long participantId = 0;
+	
+	/**
+	 * Notified on the Event Dispatch Thread when the live session ends because the server can't be reached anymore.
+	 */
+	public interface SessionListener {
+		void sessionLost(Exception cause);
+	}
+	
+	/**
+	 * Receives the edits of the live session from the server and applies them on the Event Dispatch Thread.
+	 */
+	private static final class SessionCallback extends UnicastRemoteObject implements RemoteSessionListener {
+		private static final long serialVersionUID = 1L;
+		private final transient LiveSession session;
+		
+		private SessionCallback(LiveSession session) throws RemoteException {
+			this.session = session;
+		}
+		
+		@Override
+		public void operationsReceived(long originId, long sequence, List<SessionOperation> operations, long orderHash) throws RemoteException {
+			SwingUtilities.invokeLater(() -> session.operationsReceived(originId, sequence, operations, orderHash));
+		}
+	}
+	
+	// Copies of the files restored from servers, each with the fingerprint of the file it's a copy of
+	private static final File CACHE_DIRECTORY = new File("files/cache");
+	private static final String FINGERPRINT_EXTENSION = ".fingerprint";
+	
+	/**
+	 * Copies the bytes read from a stream to a file of the cache, which replaces the previous copy once the whole stream has been read.
+	 */
+	private static final class CachingInputStream extends FilterInputStream {
+		private final Path target;
+		private final Path temp;
+		private final Path fingerprintPath;
+		private final String fingerprint;
+		private final OutputStream copy;
+		private boolean endReached = false;
+		private boolean closed = false;
+		
+		private CachingInputStream(InputStream in, File cacheFile, String fingerprint) throws IOException {
+			super(in);
+			this.target = cacheFile.toPath();
+			this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+			this.fingerprintPath = target.resolveSibling(target.getFileName() + FINGERPRINT_EXTENSION);
+			this.fingerprint = fingerprint;
+			Files.createDirectories(target.getParent());
+			this.copy = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b < 0) endReached = true;
+			else copy.write(b);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n < 0) endReached = true;
+			else copy.write(b, off, n);
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException { // The skipped bytes must be copied too
+			byte[] skipped = new byte[(int) Math.min(n, 1 << 16)];
+			int read = read(skipped, 0, skipped.length);
+			return Math.max(read, 0);
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				in.close();
+			} finally {
+				try {
+					copy.close();
+					if (endReached) { // The fingerprint is written last, a copy without fingerprint is never used
+						Files.deleteIfExists(fingerprintPath);
+						Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+						Files.writeString(fingerprintPath, fingerprint, StandardCharsets.UTF_8);
+					}
+				} catch (IOException e) {
+					// The file has been restored anyway, it will be downloaded again next time
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+			}
+		}
+	}
+	
 	/***************************************************************************
 	 * Constructors.
 	 **************************************************************************/
@@ -41,9 +181,11 @@ public class Client {
 	/**
      * Constructor for the Client class.
      * @param fileManager The associated file manager.
+     * @param panel The panel the documents of the server are synchronized with.
      */
-    public Client(FileManager fileManager) {
+    public Client(FileManager fileManager, Panel panel) {
     	this.fileManager = fileManager;
+    	this.panel = panel;
     }
     
     /***************************************************************************
@@ -59,21 +201,24 @@ public class Client {
     }
     
     /**
-     * Connects the client to the server by allowing the user to enter the server's IP address and port.
+     * Connects the client to the server by allowing the user to enter the server's IP address and port, and to choose the transport (RMI or NIO) it was started with.
      * @return An array containing the IP address and port number to which the client is connected, or an empty array if the user cancels the operation.
      * @throws NotBoundException if the server is not bound in the RMI registry.
      * @throws MalformedURLException if the URL of the server is malformed.
-     * @throws RemoteException if an error occurs during communication with the server.
+     * @throws RemoteException if an error occurs during communication with the server, or if the NIO connection fails.
      * @throws BindException 
      */
     public String[] connectToServer(List<Integer> ports) throws NotBoundException, MalformedURLException, RemoteException, BindException {
-    	JPanel panel = new JPanel(new GridLayout(2, 2));
+    	JPanel panel = new JPanel(new GridLayout(3, 2));
     	JTextField ipField = new JTextField("127.0.0.1"); // Default IP address
     	JTextField portField = new JTextField("1099"); // Default port number
+    	JComboBox<String> transportBox = new JComboBox<>(new String[] {"RMI", "NIO"});
     	panel.add(new JLabel("Enter the server IP address (localhost is 127.0.0.1):"));
     	panel.add(ipField);
     	panel.add(new JLabel("Enter the server port number 1024-65535:"));
     	panel.add(portField);
+    	panel.add(new JLabel("Transport of the server:"));
+    	panel.add(transportBox);
     	
     	int result = JOptionPane.showConfirmDialog(null, panel, "Connect to Server", JOptionPane.OK_CANCEL_OPTION);
         
@@ -89,10 +234,20 @@ public class Client {
     	    try {
     	    	disconnect(); // Disconnect from any previous server
     	    	
-    	    	server = (RemoteServer) Naming.lookup("rmi://" + ip + ":" + portNumber + "/Server");
+    	    	if ("NIO".equals(transportBox.getSelectedItem())) {
+    	    		try {
+    	    			server = NioRemoteServer.connect(ip, portNumber);
+    	    		} catch (IOException e) {
+    	    			throw new RemoteException("Unable to connect to the NIO server.", e);
+    	    		}
+    	    	} else {
+    	    		server = (RemoteServer) Naming.lookup("rmi://" + ip + ":" + portNumber + "/Server");
+    	    	}
     	    	
     	    	isConnected = true;
+    	    	host = ip;
     	    	port = portNumber;
+    	    	syncRevision = 0;
     	    	return new String[] {ip, portString};
     	    } finally {}
     	} else {
@@ -106,6 +261,10 @@ public class Client {
      */
     public void disconnect() throws RemoteException {
 		try {
+			leaveSession();
+			if (server instanceof NioRemoteServer) {
+				((NioRemoteServer) server).close(); // The NIO server also removes the participants of a closed connection from the session
+			}
             isConnected = false;
             server = null;
         } finally {}
@@ -120,13 +279,300 @@ public class Client {
     }
     
     /**
-     * Restores a file from the server.
+     * Restores a file from the server. The file is received chunk by chunk on a background thread, 
+     * and its shapes are added to the panel as they arrive. A copy of the file is kept on this machine : 
+     * it's restored instead of the file of the server as long as the fingerprint of the file hasn't changed.
+     * Must be called on the Event Dispatch Thread.
+     * @param listener The listener notified on the Event Dispatch Thread of the progress and of the end of the restoration.
+     * @return True if the file is restored from the local copy, false if it's received from the server.
+     * @throws RemoteException if an error occurs during communication with the server.
+     * @throws IOException if the file can't be opened on the server.
+     */
+    public boolean restoreFileFromServer(FileManager.RestoreListener listener) throws RemoteException, IOException {
+    	String fingerprint = server.getSavedFileFingerprint(port); // Before the file is opened : a copy can be newer than its fingerprint, never older
+    	File cacheFile = getCacheFile();
+    	if (cacheFile.isFile() && fingerprint.equals(readCachedFingerprint(cacheFile))) {
+    		fileManager.restoreStreamInBackground(new FileInputStream(cacheFile), false, listener);
+    		return true;
+    	}
+    	
+    	long transferId = server.openSavedFile(port);
+    	InputStream in = new RemoteInputStream(server, transferId);
+    	try {
+    		in = new CachingInputStream(in, cacheFile, fingerprint);
+    	} catch (IOException e) {
+    		// The cache can't be written, the file is only restored
+    	}
+    	fileManager.restoreStreamInBackground(in, false, listener);
+    	return false;
+    }
+    
+    /**
+     * Brings the panel up to date with the file saved by the server : only the changes made since the last synchronization 
+     * are received and applied, without resetting the panel. The whole file is received the first time, and when the panel 
+     * has been reset since : it then replaces the shapes of the panel. Otherwise the shapes drawn on this machine are kept. Must be called on the Event Dispatch Thread.
+     * @return The number of shapes added, modified or removed, or -1 if the file hasn't been saved since the server started.
+     * @throws RemoteException if an error occurs during communication with the server.
+     * @throws IOException if a shape received is invalid.
+     */
+    public int synchronizeWithServer() throws RemoteException, IOException {
+    	boolean synchronizedBefore = (syncResetCount == panel.getResetCount()); // Else the panel doesn't contain the document anymore
+    	DocumentDelta delta = server.getChangesSince(port, syncEpoch, (synchronizedBefore ? syncRevision : 0));
+    	if (delta == null) return -1;
+    	
+    	int changeCount = applyDelta(delta);
+    	syncEpoch = delta.getEpoch();
+    	syncRevision = delta.getRevision();
+    	syncResetCount = panel.getResetCount();
+    	return changeCount;
+    }
+    
+    /**
+     * Applies the changes received from the server to the panel.
+     * @param delta The changes.
+     * @return The number of shapes added, modified or removed.
+     * @throws IOException if a shape received is invalid.
+     */
+    private int applyDelta(DocumentDelta delta) throws IOException {
+    	List<DocumentDelta.ShapeChange> changes = delta.getChanges();
+    	List<GeneralShape> changedShapes = new ArrayList<>(changes.size());
+    	for (DocumentDelta.ShapeChange change : changes) { // All parsed before the panel is modified
+    		changedShapes.add(parseShape(change));
+    	}
+    	long[] removedIds = delta.getRemovedIds();
+    	
+    	if (delta.isFull()) {
+    		fileManager.cancelRestore();
+    		panel.setShapes(changedShapes);
+    	} else if (delta.getOrder() == null && changes.size() + removedIds.length <= MAX_INCREMENTAL_CHANGES) {
+    		applyChanges(changes, changedShapes, removedIds);
+    	} else {
+    		panel.setShapes(mergeChanges(panel.getShapes(), changes, changedShapes, removedIds, delta.getOrder()));
+    	}
+    	if (delta.getBackground() != null) fileManager.restoreBackground(delta.getBackground(), false);
+    	return changes.size() + removedIds.length;
+    }
+    
+    /**
+     * Joins the live session of the server : the panel is replaced by the one of the server, then the edits made on both sides 
+     * are sent to the other side every few milliseconds. Must be called on the Event Dispatch Thread.
+     * @param listener The listener notified if the session ends because the server can't be reached anymore.
      * @throws RemoteException if an error occurs during communication with the server.
-     * @throws IOException if an error occurs during file restoration.
+     * @throws IOException if a shape received is invalid.
+     */
+    public void joinSession(SessionListener listener) throws RemoteException, IOException {
+    	leaveSession();
+    	
+    	Random random = new Random();
+    	do {
+    		participantId = random.nextLong();
+    	} while (participantId == 0); // 0 is the server
+    	RemoteServer sessionServer = server;
+    	long sessionParticipantId = participantId;
+    	ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+    		Thread thread = new Thread(runnable, "Live session sender");
+    		thread.setDaemon(true);
+    		return thread;
+    	});
+    	LiveSession newSession = new LiveSession(panel, fileManager, sessionServer, sender, participantId, (sequence, operations) -> sender.execute(() -> {
+    		try {
+    			sessionServer.submitOperations(sessionParticipantId, sequence, operations);
+    		} catch (RemoteException e) {
+    			SwingUtilities.invokeLater(() -> {
+    				if (sessionCallback == null || participantId != sessionParticipantId) return; // Already left
+    				leaveSession();
+    				listener.sessionLost(e);
+    			});
+    		}
+    	}));
+    	SessionCallback callback = new SessionCallback(newSession);
+    	
+    	try {
+    		DocumentDelta document = server.joinSession(participantId, callback); // The edits received meanwhile are applied after it
+    		fileManager.cancelRestore();
+    		applyDelta(document);
+    	} catch (IOException e) {
+    		sender.shutdown();
+    		UnicastRemoteObject.unexportObject(callback, true);
+    		throw e;
+    	}
+    	syncRevision = 0; // The panel doesn't match a saved revision anymore
+    	
+    	session = newSession;
+    	sessionCallback = callback;
+    	sessionSender = sender;
+    	panel.addEditListener(session);
+    }
+    
+    /**
+     * Leaves the live session, if the client has joined one. The edits made from then on aren't sent anymore.
+     */
+    public void leaveSession() {
+    	if (session == null) return;
+    	panel.removeEditListener(session);
+    	session.flush();
+    	session.close();
+    	session = null;
+    	
+    	RemoteServer sessionServer = server;
+    	long leavingId = participantId;
+    	sessionSender.execute(() -> { // After the last batches
+    		try {
+    			sessionServer.leaveSession(leavingId);
+    		} catch (RemoteException e) {
+    			// Server gone, the session has ended anyway
+    		}
+    	});
+    	sessionSender.shutdown();
+    	sessionSender = null;
+    	try {
+    		UnicastRemoteObject.unexportObject(sessionCallback, true);
+    	} catch (RemoteException e) {
+    		// Not exported anymore
+    	}
+    	sessionCallback = null;
+    }
+    
+    /**
+     * Checks if the client has joined a live session.
+     * @return True if the client is in a live session.
+     */
+    public boolean isInSession() {
+    	return session != null;
+    }
+    
+    /**
+     * Applies changes to the panel one by one, which is quicker than replacing all the shapes when there are only a few changes.
+     * @param changes The changes.
+     * @param changedShapes The shapes of the changes, parsed.
+     * @param removedIds The identifiers of the removed shapes.
+     */
+    private void applyChanges(List<DocumentDelta.ShapeChange> changes, List<GeneralShape> changedShapes, long[] removedIds) {
+    	List<GeneralShape> shapes = panel.getShapes();
+    	for (long id : removedIds) {
+    		int index = panel.indexOfShape(id);
+    		if (index >= 0) panel.removeShapeAt(index);
+    	}
+    	for (int i = 0; i < changes.size(); i++) {
+    		int index = panel.indexOfShape(changes.get(i).getId());
+    		if (index >= 0) {
+    			panel.replaceShape(index, changedShapes.get(i));
+    			continue;
+    		}
+    		Long previousId = changes.get(i).getPreviousId();
+    		int previousIndex = (previousId == null ? -1 : panel.indexOfShape(previousId));
+    		if (previousId != null && previousIndex < 0) previousIndex = shapes.size() - 1; // Removed on this machine, put on top
+    		panel.insertShape(previousIndex + 1, changedShapes.get(i));
+    	}
+    }
+    
+    /**
+     * Builds the list of shapes resulting from changes, in one pass.
+     * @param shapes The current shapes of the panel.
+     * @param changes The changes.
+     * @param changedShapes The shapes of the changes, parsed.
+     * @param removedIds The identifiers of the removed shapes.
+     * @param order The identifiers of all the shapes of the server in z-order, or null if the order of the existing shapes hasn't changed.
+     * @return The new list of shapes. The shapes that only exist on this machine keep their order, above the others if the order has changed.
+     */
+    private static List<GeneralShape> mergeChanges(List<GeneralShape> shapes, List<DocumentDelta.ShapeChange> changes, 
+    		List<GeneralShape> changedShapes, long[] removedIds, long[] order) {
+    	Set<Long> removed = new HashSet<>();
+    	for (long id : removedIds) {
+    		removed.add(id);
+    	}
+    	Map<Long, GeneralShape> current = new HashMap<>(shapes.size() * 2);
+    	for (GeneralShape shape : shapes) {
+    		current.put(shape.getId(), shape);
+    	}
+    	Map<Long, GeneralShape> changed = new HashMap<>(changes.size() * 2);
+    	for (GeneralShape shape : changedShapes) {
+    		changed.put(shape.getId(), shape);
+    	}
+    	List<GeneralShape> result = new ArrayList<>(shapes.size() + changes.size());
+    	
+    	if (order != null) {
+    		Set<Long> ordered = new HashSet<>(order.length * 2);
+    		for (long id : order) {
+    			GeneralShape shape = changed.getOrDefault(id, current.get(id));
+    			if (shape != null) result.add(shape);
+    			ordered.add(id);
+    		}
+    		for (GeneralShape shape : shapes) {
+    			if (!ordered.contains(shape.getId()) && !removed.contains(shape.getId())) result.add(shape);
+    		}
+    		return result;
+    	}
+    	
+    	// Each new shape is inserted right above the shape below it on the server, which is either an existing shape or a new one
+    	Map<Long, GeneralShape> insertions = new LinkedHashMap<>(); // Identifier of the shape below -> new shape, null for the lowest one
+    	for (int i = 0; i < changes.size(); i++) {
+    		if (!current.containsKey(changes.get(i).getId())) insertions.put(changes.get(i).getPreviousId(), changedShapes.get(i));
+    	}
+    	appendWithInsertions(result, null, insertions);
+    	for (GeneralShape shape : shapes) {
+    		if (!removed.contains(shape.getId())) appendWithInsertions(result, changed.getOrDefault(shape.getId(), shape), insertions);
+    	}
+    	result.addAll(insertions.values()); // The shape below them has been removed on this machine
+    	return result;
+    }
+    
+    /**
+     * Appends a shape to a list, followed by the new shapes to insert above it.
+     * @param result The list.
+     * @param shape The shape, or null to only append the shapes to insert at the bottom.
+     * @param insertions The new shapes by identifier of the shape below them. The appended ones are removed from it.
+     */
+    private static void appendWithInsertions(List<GeneralShape> result, GeneralShape shape, Map<Long, GeneralShape> insertions) {
+    	Long id = null;
+    	if (shape != null) {
+    		result.add(shape);
+    		id = shape.getId();
+    	}
+    	GeneralShape inserted;
+    	while ((inserted = insertions.remove(id)) != null) {
+    		result.add(inserted);
+    		id = inserted.getId();
+    	}
+    }
+    
+    /**
+     * Parses the shape of a change, which keeps its identifier.
+     * @param change The change.
+     * @return The shape.
+     * @throws IOException If the shape is invalid.
      */
-    public void restoreFileFromServer() throws RemoteException, IOException {
-    	String file = server.getSavedFile(port);
-    	fileManager.restoreFileFromString(file);
+    private static GeneralShape parseShape(DocumentDelta.ShapeChange change) throws IOException {
+    	GeneralShape shape;
+    	try {
+    		shape = ShapeTextReader.parse(change.getShape());
+    	} catch (NumberFormatException e) {
+    		throw new IOException("Invalid shape received: " + e.getMessage(), e);
+    	}
+    	if (shape == null) throw new IOException("Invalid shape received.");
+    	shape.setId(change.getId());
+    	return shape;
+    }
+    
+    /**
+     * Gets the local copy of the file saved by the server the client is connected to.
+     * @return The file of the cache, which may not exist.
+     */
+    private File getCacheFile() {
+    	return new File(CACHE_DIRECTORY, host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port);
+    }
+    
+    /**
+     * Reads the fingerprint of the file a local copy has been made of.
+     * @param cacheFile The local copy.
+     * @return The fingerprint, or null if it's unknown.
+     */
+    private static String readCachedFingerprint(File cacheFile) {
+    	try {
+    		return Files.readString(new File(cacheFile.getPath() + FINGERPRINT_EXTENSION).toPath(), StandardCharsets.UTF_8);
+    	} catch (IOException e) {
+    		return null;
+    	}
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package forms.network;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class DocumentDelta implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private final long epoch;
+	private final long revision;
+	private final boolean full;
+	private final List<ShapeChange> changes;
+	private final long[] removedIds;
+	private final long[] order;
+	private final String background;
+
+	/**
+	 * A shape added or modified since the revision the changes were asked from.
+	 */
+	public static final class ShapeChange implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long id;
+		private final Long previousId;
+		private final String shape;
+
+		/**
+		 * Constructs the change of a shape.
+		 * @param id The identifier of the shape.
+		 * @param previousId The identifier of the shape right below it in the document, or null if it's the lowest shape.
+		 * @param shape The shape, in text format.
+		 */
+		public ShapeChange(long id, Long previousId, String shape) {
+			this.id = id;
+			this.previousId = previousId;
+			this.shape = shape;
+		}
+
+		/**
+		 * Gets the identifier of the shape.
+		 * @return The identifier of the shape.
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * Gets the identifier of the shape right below this one in the document, which tells where to insert a new shape.
+		 * @return The identifier, or null if the shape is the lowest one.
+		 */
+		public Long getPreviousId() {
+			return previousId;
+		}
+
+		/**
+		 * Gets the shape.
+		 * @return The shape, in text format.
+		 */
+		public String getShape() {
+			return shape;
+		}
+	}
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs the changes made to a document between two revisions.
+	 * @param epoch The epoch of the document, which changes if the server is restarted (the revisions then start over).
+	 * @param revision The revision the changes lead to.
+	 * @param full True if the changes contain the whole document, which must replace the previous content.
+	 * @param changes The shapes added or modified, in z-order.
+	 * @param removedIds The identifiers of the removed shapes.
+	 * @param order The identifiers of all the shapes in z-order if the order of the shapes that already existed has changed, null otherwise.
+	 * @param background The line describing the background in text format if it has changed, null otherwise.
+	 */
+	public DocumentDelta(long epoch, long revision, boolean full, List<ShapeChange> changes, long[] removedIds, long[] order, String background) {
+		this.epoch = epoch;
+		this.revision = revision;
+		this.full = full;
+		this.changes = Collections.unmodifiableList(changes);
+		this.removedIds = removedIds;
+		this.order = order;
+		this.background = background;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Gets the epoch of the document, to give back when asking the next changes.
+	 * @return The epoch of the document.
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Gets the revision the changes lead to, to give back when asking the next changes.
+	 * @return The revision.
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Checks if the changes contain the whole document, e.g. because the revision they were asked from is unknown.
+	 * @return True if the document must be replaced, false if the changes must be applied to it.
+	 */
+	public boolean isFull() {
+		return full;
+	}
+
+	/**
+	 * Gets the shapes added or modified.
+	 * @return The changes, in z-order.
+	 */
+	public List<ShapeChange> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Gets the identifiers of the removed shapes.
+	 * @return The identifiers, empty if no shape has been removed. The array mustn't be modified.
+	 */
+	public long[] getRemovedIds() {
+		return removedIds;
+	}
+
+	/**
+	 * Gets the order of the shapes, only sent if shapes that already existed have changed depth.
+	 * @return The identifiers of all the shapes in z-order, or null if the order of the existing shapes hasn't changed. The array mustn't be modified.
+	 */
+	public long[] getOrder() {
+		return order;
+	}
+
+	/**
+	 * Gets the background.
+	 * @return The line describing the background in text format, or null if it hasn't changed.
+	 */
+	public String getBackground() {
+		return background;
+	}
+
+	/**
+	 * Checks if nothing has changed.
+	 * @return True if there is nothing to apply.
+	 */
+	public boolean isEmpty() {
+		return !full && changes.isEmpty() && removedIds.length == 0 && order == null && background == null;
+	}
+
+}
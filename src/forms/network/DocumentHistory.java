@@ -0,0 +1,176 @@
+package forms.network;
+
+import forms.managers.DocumentSnapshot;
+import forms.shapes.GeneralShape;
+import forms.shapes.ShapeTextWriter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class DocumentHistory {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int MAX_REMOVALS = 100_000; // Removals remembered, older ones are forgotten and their revisions can only get the whole document
+
+	private final long epoch = new Random().nextLong(); // The revisions of another history (e.g. before a restart of the server) mean nothing here
+	private long revision = 0; // 0 until the document is published for the first time
+	private long publishCount = 0;
+
+	private long[] order = new long[0]; // Identifiers of the shapes of the last revision, in z-order
+	private Map<Long, Entry> entries = new HashMap<>();
+	private Map<Long, Long> removals = new LinkedHashMap<>(); // Revision in which each shape has been removed, oldest first
+	private long forgottenRevision = 0; // The removals of this revision and of the previous ones may have been forgotten
+	private long orderRevision = 0; // Last revision in which shapes that already existed changed depth
+	private String background = null;
+	private long backgroundRevision = 0;
+
+	/**
+	 * A shape of the last revision.
+	 */
+	private static final class Entry {
+		private String text;
+		private long revision; // Revision in which the shape was added or last modified
+		private int position;
+		private long publishCount;
+
+		private Entry(String text, long revision, int position, long publishCount) {
+			this.text = text;
+			this.revision = revision;
+			this.position = position;
+			this.publishCount = publishCount;
+		}
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Publishes a new revision of the document, made of the shapes of the snapshot that differ from the last revision.
+	 * The shapes are identified by their identifier, and compared in text format.
+	 * @param snapshot The snapshot of the document.
+	 * @return The revision of the document, which doesn't change if the snapshot is identical to the last revision.
+	 */
+	public long publish(DocumentSnapshot snapshot) {
+		// Formatted before locking, the changes can still be read meanwhile
+		List<GeneralShape> shapes = snapshot.getShapes();
+		long[] newOrder = new long[shapes.size()];
+		String[] texts = new String[shapes.size()];
+		StringBuilder sb = new StringBuilder();
+		double[] coords = new double[6];
+		for (int i = 0; i < shapes.size(); i++) {
+			sb.setLength(0);
+			ShapeTextWriter.appendShape(sb, shapes.get(i), coords);
+			newOrder[i] = shapes.get(i).getId();
+			texts[i] = sb.toString();
+		}
+		String newBackground = (snapshot.getBackgroundImagePath() == null
+			? "Background_Color: " + snapshot.getBackgroundColor().getRGB()
+			: "Background_Image: " + snapshot.getBackgroundImagePath());
+
+		synchronized (this) {
+			long newRevision = revision + 1;
+			publishCount++;
+			boolean changed = false;
+			boolean reordered = false;
+
+			// Added and modified shapes
+			int lastPosition = -1;
+			for (int i = 0; i < newOrder.length; i++) {
+				Entry entry = entries.get(newOrder[i]);
+				if (entry == null) {
+					entries.put(newOrder[i], new Entry(texts[i], newRevision, i, publishCount));
+					removals.remove(newOrder[i]);
+					changed = true;
+					continue;
+				}
+				if (entry.position < lastPosition) reordered = true; // The existing shapes aren't in the same order anymore
+				lastPosition = entry.position;
+				entry.position = i;
+				entry.publishCount = publishCount;
+				if (!entry.text.equals(texts[i])) {
+					entry.text = texts[i];
+					entry.revision = newRevision;
+					changed = true;
+				}
+			}
+
+			// Removed shapes
+			for (long id : order) {
+				if (entries.get(id).publishCount != publishCount) {
+					entries.remove(id);
+					removals.put(id, newRevision);
+					changed = true;
+				}
+			}
+			for (Iterator<Long> it = removals.values().iterator(); removals.size() > MAX_REMOVALS; ) {
+				forgottenRevision = it.next();
+				it.remove();
+			}
+
+			if (reordered) orderRevision = newRevision;
+			if (!newBackground.equals(background)) {
+				background = newBackground;
+				backgroundRevision = newRevision;
+				changed = true;
+			}
+
+			order = newOrder;
+			if (changed || reordered) revision = newRevision;
+			return revision;
+		}
+	}
+
+	/**
+	 * Gets the changes made to the document since a revision. The whole document is returned if the changes can't be known
+	 * (revision of another epoch, or older than the removals remembered).
+	 * @param epoch The epoch of the revision, as returned with the previous changes.
+	 * @param revision The revision the document is known at, 0 if it isn't known at all.
+	 * @return The changes between the revision and the last one.
+	 */
+	public synchronized DocumentDelta getChangesSince(long epoch, long revision) {
+		boolean full = (epoch != this.epoch || revision <= 0 || revision > this.revision || revision < forgottenRevision);
+
+		List<DocumentDelta.ShapeChange> changes = new ArrayList<>(full ? order.length : 16);
+		for (int i = 0; i < order.length; i++) {
+			Entry entry = entries.get(order[i]);
+			if (full || entry.revision > revision) {
+				changes.add(new DocumentDelta.ShapeChange(order[i], (i == 0 ? null : order[i-1]), entry.text));
+			}
+		}
+
+		long[] removedIds = new long[0];
+		if (!full) {
+			removedIds = removals.entrySet().stream()
+				.filter(removal -> removal.getValue() > revision)
+				.mapToLong(Map.Entry::getKey)
+				.toArray();
+		}
+
+		long[] newOrder = (!full && orderRevision > revision ? order.clone() : null);
+		String newBackground = (full || backgroundRevision > revision ? background : null);
+		return new DocumentDelta(this.epoch, this.revision, full, changes, removedIds, newOrder, newBackground);
+	}
+
+	/**
+	 * Gets the last revision of the document.
+	 * @return The revision, 0 if the document has never been published.
+	 */
+	public synchronized long getRevision() {
+		return revision;
+	}
+
+}
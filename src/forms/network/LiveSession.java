@@ -0,0 +1,447 @@
+package forms.network;
+
+import forms.managers.FileManager;
+import forms.shapes.GeneralShape;
+import forms.shapes.ShapeTextReader;
+import forms.shapes.ShapeTextWriter;
+import forms.windowsContents.Panel;
+
+import java.awt.Color;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class LiveSession implements Panel.EditListener {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int BATCH_DELAY = 20; // Milliseconds during which the edits are gathered before being sent
+	private static final long BACKGROUND_KEY = 0; // Key of the background in pendingIds, as the id of the operations that aren't about a shape
+
+	private Panel panel;
+	private FileManager fileManager;
+	private RemoteServer server; // Null on the server itself
+	private Executor requestExecutor; // Sends the requests to the server, never made on the Event Dispatch Thread
+	private long participantId;
+	private BatchSender sender;
+
+	private List<PendingOperation> batch = new ArrayList<>();
+	private Map<Long, PendingOperation> contentOperations = new HashMap<>(); // Operation of the batch carrying the content of each shape
+	private long sequence = 0;
+	private Map<Long, Long> pendingIds = new HashMap<>(); // Shapes (and background) whose content has been sent, with the last batch not applied by the server yet
+	private boolean applying = false; // True while received edits are applied, so they aren't sent back
+	private boolean closed = false;
+	private long receivedCount = 0; // Batches received, to know if the order of the server is still up to date when it arrives
+	private long lastOrderHash = 0; // Hash of the order of the server, sent with the last batch received
+	private boolean orderRequested = false; // True while the order of the server is requested
+	private Timer timer;
+	private StringBuilder text = new StringBuilder();
+	private double[] coords = new double[6];
+
+	/**
+	 * Sends the batches of edits made on this machine. Called on the Event Dispatch Thread, mustn't block.
+	 */
+	public interface BatchSender {
+		void send(long sequence, List<SessionOperation> operations);
+	}
+
+	/**
+	 * An edit of the batch being gathered. The shapes are only formatted when the batch is sent, so a shape
+	 * modified many times (e.g. dragged) is only formatted once per batch.
+	 */
+	private static final class PendingOperation {
+		private final SessionOperation.Type type;
+		private final long id;
+		private final Long previousId;
+		private GeneralShape shape;
+		private final String text;
+
+		private PendingOperation(SessionOperation.Type type, long id, Long previousId, GeneralShape shape, String text) {
+			this.type = type;
+			this.id = id;
+			this.previousId = previousId;
+			this.shape = shape;
+			this.text = text;
+		}
+	}
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs a live session, which gathers the edits of the panel into batches and applies the edits received.
+	 * The session must be added to the edit listeners of the panel to start gathering edits.
+	 * @param panel The panel shared.
+	 * @param fileManager The file manager, used to apply the backgrounds received.
+	 * @param server The server on a client, null on the server itself, which orders the edits of every participant.
+	 * @param requestExecutor Sends the requests to the server on a client, in order with the batches, null on the server itself.
+	 * @param participantId The identifier of this participant, 0 for the server.
+	 * @param sender Sends the batches of edits made on this machine.
+	 */
+	public LiveSession(Panel panel, FileManager fileManager, RemoteServer server, Executor requestExecutor, long participantId, BatchSender sender) {
+		this.panel = panel;
+		this.fileManager = fileManager;
+		this.server = server;
+		this.requestExecutor = requestExecutor;
+		this.participantId = participantId;
+		this.sender = sender;
+		this.timer = new Timer(BATCH_DELAY, e -> flush());
+		timer.setRepeats(false);
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	//----- Edits made on this machine -----
+	@Override
+	public void shapeAdded(int index, GeneralShape shape) {
+		record(new PendingOperation(SessionOperation.Type.ADD, shape.getId(), previousId(index), shape, null));
+	}
+
+	@Override
+	public void shapeChanged(int index, GeneralShape shape) {
+		recordChange(shape);
+	}
+
+	@Override
+	public void shapeDragged(int index, GeneralShape shape) {
+		recordChange(shape);
+	}
+
+	@Override
+	public void shapeRemoved(int index, GeneralShape shape) {
+		record(new PendingOperation(SessionOperation.Type.REMOVE, shape.getId(), null, null, null));
+	}
+
+	@Override
+	public void shapeMoved(int fromIndex, int toIndex) {
+		long id = panel.getShapes().get(toIndex).getId();
+		record(new PendingOperation(SessionOperation.Type.MOVE, id, previousId(toIndex), null, null));
+	}
+
+	@Override
+	public void backgroundChanged(Color color, String imagePath) {
+		record(new PendingOperation(SessionOperation.Type.BACKGROUND, BACKGROUND_KEY, null, null, backgroundLine()));
+	}
+
+	@Override
+	public void documentReset() {
+		record(new PendingOperation(SessionOperation.Type.RESET, 0, null, null, null));
+		List<GeneralShape> shapes = panel.getShapes(); // Empty after a reset, but not when all the shapes have been replaced
+		for (int i = 0; i < shapes.size(); i++) {
+			shapeAdded(i, shapes.get(i));
+		}
+	}
+
+	/**
+	 * Adds a modification of a shape to the batch. Only the last state of the shape is sent,
+	 * so the modifications made while dragging a shape are merged into one per batch.
+	 * @param shape The modified shape.
+	 */
+	private void recordChange(GeneralShape shape) {
+		if (applying) return;
+		PendingOperation operation = contentOperations.get(shape.getId());
+		if (operation != null) {
+			operation.shape = shape; // Can be another object with the same id, after replaceShape()
+			return;
+		}
+		record(new PendingOperation(SessionOperation.Type.CHANGE, shape.getId(), null, shape, null));
+	}
+
+	/**
+	 * Adds an edit to the batch, which is sent a few milliseconds after its first edit.
+	 * @param operation The edit.
+	 */
+	private void record(PendingOperation operation) {
+		if (applying) return;
+		switch (operation.type) {
+			case ADD:
+			case CHANGE:
+				contentOperations.put(operation.id, operation);
+				break;
+			case REMOVE:
+				contentOperations.remove(operation.id);
+				break;
+			case RESET:
+				contentOperations.clear();
+				break;
+			default:
+				break;
+		}
+		batch.add(operation);
+		if (!timer.isRunning()) timer.start();
+	}
+
+	/**
+	 * Sends the edits gathered so far, without waiting for the end of the delay.
+	 */
+	public void flush() {
+		timer.stop();
+		if (batch.isEmpty()) return;
+
+		List<SessionOperation> operations = new ArrayList<>(batch.size());
+		for (PendingOperation operation : batch) {
+			String operationText = operation.text;
+			if (operation.shape != null) {
+				text.setLength(0);
+				ShapeTextWriter.appendShape(text, operation.shape, coords);
+				operationText = text.toString();
+			}
+			operations.add(new SessionOperation(operation.type, operation.id, operation.previousId, operationText));
+		}
+		batch = new ArrayList<>();
+		contentOperations.clear();
+
+		sequence++;
+		if (server != null) { // Until the server sends them back, the contents received for these shapes are older than the ones sent here
+			for (SessionOperation operation : operations) {
+				if (operation.getText() != null) pendingIds.put(operation.getId(), sequence);
+			}
+		}
+		sender.send(sequence, operations);
+	}
+
+	/**
+	 * Stops gathering edits. The edits not sent yet are lost.
+	 */
+	public void close() {
+		closed = true;
+		timer.stop();
+		batch.clear();
+		contentOperations.clear();
+	}
+
+
+	//----- Edits received -----
+	/**
+	 * Applies edits received to the panel, without sending them back. Must be called on the Event Dispatch Thread.
+	 * On a client, the modifications of the shapes edited here since the last batch the server applied are ignored :
+	 * the server applies the edits made here after them, and sends them back. Once all the edits made here have been applied,
+	 * the order of the shapes is checked against the one of the server, and fixed once the order of the server has been received.
+	 * @param originId The identifier of the participant that made the edits.
+	 * @param sequence The number of the batch for that participant.
+	 * @param operations The edits.
+	 * @param orderHash The hash of the identifiers of the shapes of the server once the edits applied, not used on the server.
+	 */
+	public void operationsReceived(long originId, long sequence, List<SessionOperation> operations, long orderHash) {
+		flush(); // The edits made here before are ordered first
+		receivedCount++;
+		lastOrderHash = orderHash;
+		if (server != null && originId == participantId) {
+			pendingIds.values().removeIf(pendingSequence -> pendingSequence <= sequence); // Applied by the server
+		}
+
+		applying = true;
+		try {
+			for (SessionOperation operation : operations) {
+				try {
+					apply(operation);
+				} catch (IllegalArgumentException e) {
+					// Invalid shape, ignored as the edits of shapes that don't exist here
+				}
+			}
+		} finally {
+			applying = false;
+		}
+		checkOrder();
+	}
+
+	/**
+	 * Requests the order of the shapes of the server if it differs from the one of the panel, once all the edits made here
+	 * have been applied by the server. The request is sent by the request executor, the panel isn't blocked meanwhile.
+	 */
+	private void checkOrder() {
+		if (server == null || closed || orderRequested || !pendingIds.isEmpty() || lastOrderHash == orderHash(panel.getShapes())) return;
+
+		long requestCount = receivedCount;
+		long requestSequence = sequence;
+		orderRequested = true;
+		try {
+			requestExecutor.execute(() -> {
+				long[] order;
+				try {
+					order = server.getShapeOrder();
+				} catch (RemoteException e) {
+					order = null; // The order will be checked again with the next edits
+				}
+				long[] receivedOrder = order;
+				SwingUtilities.invokeLater(() -> orderReceived(receivedOrder, requestCount, requestSequence));
+			});
+		} catch (RejectedExecutionException e) {
+			orderRequested = false; // Session left
+		}
+	}
+
+	/**
+	 * Puts the shapes of the panel in the order received from the server, unless edits have been received or made here since
+	 * it was requested : the order is then requested again if it still differs.
+	 * @param order The identifiers of the shapes of the server, in z-order, or null if the request failed.
+	 * @param requestCount The number of batches received when the order was requested.
+	 * @param requestSequence The number of the last batch sent when the order was requested.
+	 */
+	private void orderReceived(long[] order, long requestCount, long requestSequence) {
+		orderRequested = false;
+		if (closed || order == null) return;
+		if (requestCount == receivedCount && requestSequence == sequence && batch.isEmpty() && pendingIds.isEmpty()) {
+			applying = true;
+			try {
+				reorder(order);
+			} finally {
+				applying = false;
+			}
+			return;
+		}
+		checkOrder();
+	}
+
+	/**
+	 * Computes a hash of the identifiers of shapes, which depends on their order.
+	 * @param shapes The shapes, in z-order.
+	 * @return The hash.
+	 */
+	public static long orderHash(List<GeneralShape> shapes) {
+		long hash = 1;
+		for (GeneralShape shape : shapes) {
+			hash = 31 * hash + shape.getId();
+		}
+		return hash;
+	}
+
+	/**
+	 * Puts the shapes of the panel in the order of the server. The shapes the server doesn't have yet stay above the others.
+	 * @param order The identifiers of the shapes of the server, in z-order.
+	 */
+	private void reorder(long[] order) {
+		List<GeneralShape> shapes = panel.getShapes();
+		Map<Long, GeneralShape> remaining = new LinkedHashMap<>(shapes.size() * 2);
+		for (GeneralShape shape : shapes) {
+			remaining.put(shape.getId(), shape);
+		}
+		List<GeneralShape> ordered = new ArrayList<>(shapes.size());
+		for (long id : order) {
+			GeneralShape shape = remaining.remove(id);
+			if (shape != null) ordered.add(shape);
+		}
+		ordered.addAll(remaining.values());
+		panel.setShapes(ordered);
+	}
+
+	/**
+	 * Applies an edit to the panel.
+	 * @param operation The edit.
+	 */
+	private void apply(SessionOperation operation) {
+		int index = panel.indexOfShape(operation.getId());
+		switch (operation.getType()) {
+			case ADD:
+				if (index < 0) {
+					panel.insertShape(insertionIndex(operation.getPreviousId()), parseShape(operation));
+					break;
+				}
+				replaceIfChanged(index, operation); // Sent back by the server, the position may have changed meanwhile
+				moveAbove(panel.indexOfShape(operation.getId()), operation.getPreviousId());
+				break;
+			case CHANGE:
+				if (index >= 0) replaceIfChanged(index, operation);
+				break;
+			case REMOVE:
+				if (index >= 0) panel.removeShapeAt(index);
+				break;
+			case MOVE:
+				if (index >= 0) moveAbove(index, operation.getPreviousId());
+				break;
+			case BACKGROUND:
+				if (!pendingIds.containsKey(BACKGROUND_KEY) && !operation.getText().equals(backgroundLine())) {
+					fileManager.restoreBackground(operation.getText(), false);
+				}
+				break;
+			case RESET:
+				panel.setShapes(new ArrayList<>());
+				break;
+		}
+	}
+
+	/**
+	 * Replaces a shape by the one received, unless it's identical or it has been modified here since.
+	 * @param index The position of the shape.
+	 * @param operation The edit carrying the shape received.
+	 */
+	private void replaceIfChanged(int index, SessionOperation operation) {
+		if (pendingIds.containsKey(operation.getId())) return;
+		text.setLength(0);
+		ShapeTextWriter.appendShape(text, panel.getShapes().get(index), coords);
+		if (!text.toString().equals(operation.getText())) panel.replaceShape(index, parseShape(operation));
+	}
+
+	/**
+	 * Moves a shape right above another one.
+	 * @param index The position of the shape.
+	 * @param previousId The identifier of the shape it must be above, or null to put it below all the others.
+	 */
+	private void moveAbove(int index, Long previousId) {
+		int previousIndex = (previousId == null ? -1 : panel.indexOfShape(previousId));
+		if (previousId != null && previousIndex < 0) return; // Removed here, the shape stays where it is
+		int toIndex = (previousIndex < index ? previousIndex + 1 : previousIndex); // Positions above the shape go down once it's removed
+		panel.moveShape(index, toIndex);
+	}
+
+	/**
+	 * Gets the position at which a shape must be inserted to be right above another one.
+	 * @param previousId The identifier of the shape it must be above, or null to put it below all the others.
+	 * @return The position, the top of the list if the other shape doesn't exist here.
+	 */
+	private int insertionIndex(Long previousId) {
+		if (previousId == null) return 0;
+		int previousIndex = panel.indexOfShape(previousId);
+		return (previousIndex < 0 ? panel.getShapes().size() : previousIndex + 1);
+	}
+
+	/**
+	 * Gets the identifier of the shape below a position.
+	 * @param index The position.
+	 * @return The identifier of the shape right below, or null if the position is the lowest one.
+	 */
+	private Long previousId(int index) {
+		return (index == 0 ? null : panel.getShapes().get(index - 1).getId());
+	}
+
+	/**
+	 * Describes the background of the panel in text format, as in the saved files.
+	 * @return The line describing the background.
+	 */
+	private String backgroundLine() {
+		String imagePath = panel.getBackgroundImagePath();
+		return (imagePath == null ? "Background_Color: " + panel.getBackground().getRGB() : "Background_Image: " + imagePath);
+	}
+
+	/**
+	 * Parses the shape of an edit, which keeps its identifier.
+	 * @param operation The edit.
+	 * @return The shape.
+	 * @throws IllegalArgumentException If the shape is invalid.
+	 */
+	private static GeneralShape parseShape(SessionOperation operation) {
+		GeneralShape shape = ShapeTextReader.parse(operation.getText());
+		if (shape == null) throw new IllegalArgumentException("Invalid shape received.");
+		shape.setId(operation.getId());
+		return shape;
+	}
+
+}
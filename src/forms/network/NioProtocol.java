@@ -0,0 +1,273 @@
+package forms.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class NioProtocol {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	// A frame is its length (4 bytes, not counted) followed by the request id (4 bytes), then by the opcode of a request or the status of a reply
+	public static final int MAX_FRAME_LENGTH = 1 << 30; // Replies, read by the clients, may carry a whole document
+	public static final int MAX_REQUEST_LENGTH = 64 << 20; // Requests are small, apart from the edits sent once a document is opened during a live session
+	public static final int PUSH_REQUEST_ID = 0; // Frames sent by the server without being asked, the requests start at 1
+
+	// Opcodes, one per method of RemoteServer
+	public static final byte GET_PORTS = 1;
+	public static final byte GET_SAVED_FILE = 2;
+	public static final byte GET_SAVED_FILE_FINGERPRINT = 3;
+	public static final byte GET_CHANGES_SINCE = 4;
+	public static final byte JOIN_SESSION = 5;
+	public static final byte LEAVE_SESSION = 6;
+	public static final byte SUBMIT_OPERATIONS = 7;
+	public static final byte GET_SHAPE_ORDER = 8;
+	public static final byte OPEN_SAVED_FILE = 9;
+	public static final byte READ_CHUNK = 10;
+	public static final byte CLOSE_SAVED_FILE = 11;
+
+	// Statuses of the replies. An error is followed by its message.
+	public static final byte OK = 0;
+	public static final byte IO_ERROR = 1; // Rethrown as an IOException
+	public static final byte REMOTE_ERROR = 2; // Rethrown as a RemoteException
+	public static final byte SESSION_OPERATIONS = 3; // Pushed to the clients of the live session
+
+	/**
+	 * Builds a frame in memory. Its buffer is sent as it is, without being copied.
+	 */
+	public static final class FrameOutput extends ByteArrayOutputStream {
+
+		/**
+		 * Constructs a frame, whose length is filled in by toFrame().
+		 * @param requestId The id of the request the frame is or replies to.
+		 * @param type The opcode of a request or the status of a reply.
+		 */
+		public FrameOutput(int requestId, byte type) {
+			super(64);
+			write(0); write(0); write(0); write(0); // Length
+			write(requestId >>> 24); write(requestId >>> 16); write(requestId >>> 8); write(requestId);
+			write(type);
+		}
+
+		/**
+		 * Gets the frame, ready to be written to a channel.
+		 * @return The buffer of the frame, wrapping the bytes written.
+		 */
+		public ByteBuffer toFrame() {
+			ByteBuffer frame = ByteBuffer.wrap(buf, 0, count);
+			frame.putInt(0, count - 4);
+			return frame;
+		}
+	}
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	private NioProtocol() {
+		// Only static methods
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Writes a string, which may be null. Unlike writeUTF(), its length isn't limited to 64 KB.
+	 * @param out The output.
+	 * @param s The string.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString().
+	 * @param in The input.
+	 * @return The string, or null.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	public static String readString(DataInput in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return (bytes == null ? null : new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes an array of bytes, which may be null.
+	 * @param out The output.
+	 * @param bytes The bytes.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	public static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads an array of bytes written by writeBytes().
+	 * @param in The input.
+	 * @return The bytes, or null.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	public static byte[] readBytes(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Writes an array of longs, which may be null.
+	 * @param out The output.
+	 * @param values The longs.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	public static void writeLongs(DataOutput out, long[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		for (long value : values) {
+			out.writeLong(value);
+		}
+	}
+
+	/**
+	 * Reads an array of longs written by writeLongs().
+	 * @param in The input.
+	 * @return The longs, or null.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	public static long[] readLongs(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		long[] values = new long[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+	/**
+	 * Writes the changes of a document, which may be null.
+	 * @param out The output.
+	 * @param delta The changes.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	public static void writeDelta(DataOutput out, DocumentDelta delta) throws IOException {
+		out.writeBoolean(delta != null);
+		if (delta == null) return;
+		out.writeLong(delta.getEpoch());
+		out.writeLong(delta.getRevision());
+		out.writeBoolean(delta.isFull());
+		out.writeInt(delta.getChanges().size());
+		for (DocumentDelta.ShapeChange change : delta.getChanges()) {
+			out.writeLong(change.getId());
+			writeOptionalLong(out, change.getPreviousId());
+			writeString(out, change.getShape());
+		}
+		writeLongs(out, delta.getRemovedIds());
+		writeLongs(out, delta.getOrder());
+		writeString(out, delta.getBackground());
+	}
+
+	/**
+	 * Reads the changes of a document written by writeDelta().
+	 * @param in The input.
+	 * @return The changes, or null.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	public static DocumentDelta readDelta(DataInput in) throws IOException {
+		if (!in.readBoolean()) return null;
+		long epoch = in.readLong();
+		long revision = in.readLong();
+		boolean full = in.readBoolean();
+		int count = in.readInt();
+		List<DocumentDelta.ShapeChange> changes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			changes.add(new DocumentDelta.ShapeChange(in.readLong(), readOptionalLong(in), readString(in)));
+		}
+		return new DocumentDelta(epoch, revision, full, changes, readLongs(in), readLongs(in), readString(in));
+	}
+
+	/**
+	 * Writes the edits of a live session.
+	 * @param out The output.
+	 * @param operations The edits.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	public static void writeOperations(DataOutput out, List<SessionOperation> operations) throws IOException {
+		out.writeInt(operations.size());
+		for (SessionOperation operation : operations) {
+			out.writeByte(operation.getType().ordinal());
+			out.writeLong(operation.getId());
+			writeOptionalLong(out, operation.getPreviousId());
+			writeString(out, operation.getText());
+		}
+	}
+
+	/**
+	 * Reads the edits of a live session written by writeOperations().
+	 * @param in The input.
+	 * @return The edits.
+	 * @throws IOException If an I/O error occurs while reading, or if an edit is unknown.
+	 */
+	public static List<SessionOperation> readOperations(DataInput in) throws IOException {
+		SessionOperation.Type[] types = SessionOperation.Type.values();
+		int count = in.readInt();
+		List<SessionOperation> operations = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int type = in.readUnsignedByte();
+			if (type >= types.length) throw new IOException("Unknown edit: " + type + ".");
+			operations.add(new SessionOperation(types[type], in.readLong(), readOptionalLong(in), readString(in)));
+		}
+		return operations;
+	}
+
+	/**
+	 * Writes a long which may be null.
+	 * @param out The output.
+	 * @param value The long.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	private static void writeOptionalLong(DataOutput out, Long value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) out.writeLong(value);
+	}
+
+	/**
+	 * Reads a long written by writeOptionalLong().
+	 * @param in The input.
+	 * @return The long, or null.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	private static Long readOptionalLong(DataInput in) throws IOException {
+		return (in.readBoolean() ? in.readLong() : null);
+	}
+
+}
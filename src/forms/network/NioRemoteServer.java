@@ -0,0 +1,312 @@
+package forms.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class NioRemoteServer implements RemoteServer, Closeable {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private final SocketChannel channel;
+	private final Thread readerThread;
+	private final AtomicInteger lastRequestId = new AtomicInteger(NioProtocol.PUSH_REQUEST_ID);
+	private final Map<Integer, CompletableFuture<DataInputStream>> pendingReplies = new ConcurrentHashMap<>();
+	private final Map<Long, RemoteSessionListener> sessionListeners = new ConcurrentHashMap<>();
+	private volatile IOException failure = null; // Set once the connection is lost
+
+	/**
+	 * Writes the arguments of a request.
+	 */
+	private interface Arguments {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Connects to a NioServer. The requests can then be sent from any thread, several at once :
+	 * a single thread reads all the replies and the edits of the live session.
+	 * @param host The address of the server.
+	 * @param port The port of the server.
+	 * @throws IOException If the connection fails.
+	 */
+	private NioRemoteServer(String host, int port) throws IOException {
+		this.channel = SocketChannel.open(new InetSocketAddress(host, port)); // Blocking, only the server has many connections to handle
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		this.readerThread = new Thread(this::readReplies, "NIO client " + host + ":" + port);
+		readerThread.setDaemon(true);
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	//----- Connection -----
+	/**
+	 * Connects to a NioServer and starts reading its replies.
+	 * @param host The address of the server.
+	 * @param port The port of the server.
+	 * @return The connected server.
+	 * @throws IOException If the connection fails.
+	 */
+	public static NioRemoteServer connect(String host, int port) throws IOException {
+		NioRemoteServer server = new NioRemoteServer(host, port);
+		server.readerThread.start();
+		return server;
+	}
+
+	/**
+	 * Closes the connection. The requests waiting for their reply fail.
+	 */
+	@Override
+	public void close() {
+		try {
+			channel.close(); // Ends the reader thread
+		} catch (IOException e) {
+			// Closed anyway
+		}
+	}
+
+	/**
+	 * Loop of the reader thread : completes the requests with their replies, and passes the edits of the live session to their listener.
+	 */
+	private void readReplies() {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		try {
+			while (true) {
+				header.clear();
+				readFully(header);
+				int length = header.getInt(0);
+				if (length < 5 || length > NioProtocol.MAX_FRAME_LENGTH) throw new IOException("Invalid frame length: " + length + ".");
+				ByteBuffer frame = ByteBuffer.allocate(length);
+				readFully(frame);
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.array()));
+				int requestId = in.readInt();
+				if (requestId == NioProtocol.PUSH_REQUEST_ID) {
+					receivePush(in);
+					continue;
+				}
+				CompletableFuture<DataInputStream> reply = pendingReplies.remove(requestId);
+				if (reply != null) reply.complete(in);
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			if (failure == null) failure = new EOFException("Connection to the server lost.");
+			close();
+			for (CompletableFuture<DataInputStream> reply : pendingReplies.values()) {
+				reply.completeExceptionally(failure);
+			}
+			pendingReplies.clear();
+		}
+	}
+
+	/**
+	 * Fills a buffer from the channel.
+	 * @param buffer The buffer.
+	 * @throws IOException If the connection is lost.
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) throw new EOFException("Connection closed by the server.");
+		}
+	}
+
+	/**
+	 * Passes the edits of the live session pushed by the server to the listener of the participant.
+	 * @param in The frame, after its request id.
+	 * @throws IOException If the frame is invalid.
+	 */
+	private void receivePush(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type != NioProtocol.SESSION_OPERATIONS) throw new IOException("Unknown frame: " + type + ".");
+		long participantId = in.readLong();
+		long originId = in.readLong();
+		long sequence = in.readLong();
+		long orderHash = in.readLong();
+		List<SessionOperation> operations = NioProtocol.readOperations(in);
+		RemoteSessionListener listener = sessionListeners.get(participantId);
+		if (listener != null) listener.operationsReceived(originId, sequence, operations, orderHash);
+	}
+
+	/**
+	 * Sends a request and waits for its reply.
+	 * @param opcode The opcode of the request.
+	 * @param arguments Writes the arguments of the request.
+	 * @return The result of the request.
+	 * @throws RemoteException If the connection is lost, or if the request failed on the server with a RemoteException.
+	 * @throws IOException If the request failed on the server with an IOException.
+	 */
+	private DataInputStream call(byte opcode, Arguments arguments) throws IOException {
+		int requestId = lastRequestId.incrementAndGet();
+		if (requestId == NioProtocol.PUSH_REQUEST_ID) requestId = lastRequestId.incrementAndGet(); // After an overflow
+		CompletableFuture<DataInputStream> reply = new CompletableFuture<>();
+		pendingReplies.put(requestId, reply);
+
+		NioProtocol.FrameOutput request = new NioProtocol.FrameOutput(requestId, opcode);
+		arguments.write(new DataOutputStream(request));
+		ByteBuffer frame = request.toFrame();
+		DataInputStream in;
+		try {
+			synchronized (channel) { // The frames of concurrent requests mustn't be interleaved
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+			if (failure != null) reply.completeExceptionally(failure); // Lost before the request was registered
+			in = reply.get();
+		} catch (IOException | ExecutionException e) {
+			throw new RemoteException("Connection to the server lost.", (e instanceof ExecutionException ? e.getCause() : e));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for the server.", e);
+		} finally {
+			pendingReplies.remove(requestId);
+		}
+
+		byte status = in.readByte();
+		if (status == NioProtocol.OK) return in;
+		String message = NioProtocol.readString(in);
+		if (status == NioProtocol.IO_ERROR) throw new IOException(message);
+		throw new RemoteException(message);
+	}
+
+	/**
+	 * Sends a request which can't fail with an IOException on the server.
+	 * @param opcode The opcode of the request.
+	 * @param arguments Writes the arguments of the request.
+	 * @return The result of the request.
+	 * @throws RemoteException If the connection is lost, or if the request failed on the server.
+	 */
+	private DataInputStream callRemote(byte opcode, Arguments arguments) throws RemoteException {
+		try {
+			return call(opcode, arguments);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException(e.getMessage(), e);
+		}
+	}
+
+
+	//----- Requests -----
+	@Override
+	public List<Integer> getPorts() throws RemoteException {
+		DataInputStream in = callRemote(NioProtocol.GET_PORTS, out -> {});
+		try {
+			int count = in.readInt();
+			List<Integer> ports = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				ports.add(in.readInt());
+			}
+			return ports;
+		} catch (IOException e) {
+			throw new RemoteException("Invalid reply.", e);
+		}
+	}
+
+	@Override
+	public String getSavedFile(int port) throws RemoteException, IOException {
+		return NioProtocol.readString(call(NioProtocol.GET_SAVED_FILE, out -> out.writeInt(port)));
+	}
+
+	@Override
+	public String getSavedFileFingerprint(int port) throws RemoteException, IOException {
+		return NioProtocol.readString(call(NioProtocol.GET_SAVED_FILE_FINGERPRINT, out -> out.writeInt(port)));
+	}
+
+	@Override
+	public DocumentDelta getChangesSince(int port, long epoch, long revision) throws RemoteException {
+		DataInputStream in = callRemote(NioProtocol.GET_CHANGES_SINCE, out -> {
+			out.writeInt(port);
+			out.writeLong(epoch);
+			out.writeLong(revision);
+		});
+		try {
+			return NioProtocol.readDelta(in);
+		} catch (IOException e) {
+			throw new RemoteException("Invalid reply.", e);
+		}
+	}
+
+	/**
+	 * Joins the live session of the server. The listener is called by the reader thread : it mustn't block,
+	 * and it doesn't have to be exported, the edits are sent through the connection.
+	 */
+	@Override
+	public DocumentDelta joinSession(long participantId, RemoteSessionListener listener) throws RemoteException {
+		sessionListeners.put(participantId, listener); // Edits can arrive before the reply
+		try {
+			return NioProtocol.readDelta(callRemote(NioProtocol.JOIN_SESSION, out -> out.writeLong(participantId)));
+		} catch (IOException e) {
+			sessionListeners.remove(participantId);
+			throw (e instanceof RemoteException ? (RemoteException) e : new RemoteException("Invalid reply.", e));
+		}
+	}
+
+	@Override
+	public void leaveSession(long participantId) throws RemoteException {
+		sessionListeners.remove(participantId);
+		callRemote(NioProtocol.LEAVE_SESSION, out -> out.writeLong(participantId));
+	}
+
+	@Override
+	public void submitOperations(long participantId, long sequence, List<SessionOperation> operations) throws RemoteException {
+		callRemote(NioProtocol.SUBMIT_OPERATIONS, out -> {
+			out.writeLong(participantId);
+			out.writeLong(sequence);
+			NioProtocol.writeOperations(out, operations);
+		});
+	}
+
+	@Override
+	public long[] getShapeOrder() throws RemoteException {
+		try {
+			return NioProtocol.readLongs(callRemote(NioProtocol.GET_SHAPE_ORDER, out -> {}));
+		} catch (IOException e) {
+			throw (e instanceof RemoteException ? (RemoteException) e : new RemoteException("Invalid reply.", e));
+		}
+	}
+
+	@Override
+	public long openSavedFile(int port) throws RemoteException, IOException {
+		return call(NioProtocol.OPEN_SAVED_FILE, out -> out.writeInt(port)).readLong();
+	}
+
+	@Override
+	public byte[] readChunk(long transferId) throws RemoteException, IOException {
+		return NioProtocol.readBytes(call(NioProtocol.READ_CHUNK, out -> out.writeLong(transferId)));
+	}
+
+	@Override
+	public void closeSavedFile(long transferId) throws RemoteException {
+		callRemote(NioProtocol.CLOSE_SAVED_FILE, out -> out.writeLong(transferId));
+	}
+
+}
@@ -0,0 +1,388 @@
+package forms.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class NioServer {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int PAYLOAD_CHUNK = 64 << 10; // Initial size of the buffer of a request
+
+	private final RemoteServer target; // Executes the requests
+	private final int port;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private Thread selectorThread = null;
+	private final ExecutorService workers; // Execute the requests, one virtual thread each, the selector thread only reads and writes the frames
+	private volatile boolean running = true;
+
+	/**
+	 * A client connected to the server.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private final ByteBuffer header = ByteBuffer.allocate(4);
+		private ByteBuffer payload = null; // Frame being read, after its length, grown as its bytes arrive
+		private int payloadLength = 0; // Length of the frame being read
+		private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>(); // Frames not written yet, guarded by itself
+		private final Set<Long> participantIds = ConcurrentHashMap.newKeySet(); // Live sessions joined through this connection
+		private volatile boolean closed = false;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Sends a frame. It's written at once if nothing is queued before it and the channel accepts it whole,
+		 * otherwise it's queued and written by the selector thread. Can be called from any thread.
+		 * @param frame The frame.
+		 * @throws IOException If the connection is closed.
+		 */
+		private void send(ByteBuffer frame) throws IOException {
+			if (closed) throw new ClosedChannelException();
+			synchronized (writeQueue) { // Keeps the frames in order with the selector thread
+				if (writeQueue.isEmpty()) {
+					channel.write(frame); // Saves two thread switches, the channel is non-blocking
+					if (!frame.hasRemaining()) return;
+				}
+				writeQueue.add(frame);
+			}
+			SelectionKey key = channel.keyFor(selector);
+			if (key == null || !key.isValid()) throw new ClosedChannelException();
+			key.interestOpsOr(SelectionKey.OP_WRITE);
+			selector.wakeup();
+		}
+	}
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs a server answering the requests of NioRemoteServer clients on a port, by executing them on a RemoteServer.
+	 * A single thread reads and writes the frames of all the clients with non-blocking channels, once start() has been called.
+	 * @param target The server executing the requests.
+	 * @param port The port to listen on.
+	 * @throws IOException If the port can't be listened on (BindException if it's already used).
+	 */
+	public NioServer(RemoteServer target, int port) throws IOException {
+		this.target = target;
+		this.port = port;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+		this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("NIO server worker ", 0).factory()); // A request blocked on the disk or the Event Dispatch Thread only holds a virtual thread
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Gets the port the server listens on.
+	 * @return The port.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Starts accepting clients and answering their requests.
+	 */
+	public void start() {
+		selectorThread = new Thread(this::run, "NIO server " + port);
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+	
+	/**
+	 * Stops the server and closes the connections of its clients.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+		try {
+			if (selectorThread != null) selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Loop of the selector thread : accepts the clients, reads their requests and writes the replies.
+	 */
+	private void run() {
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) read(connection);
+						if (key.isValid() && key.isWritable()) write(connection, key);
+					} catch (IOException e) {
+						close(connection); // Client gone or invalid frame
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Selector broken, the server stops
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) close((Connection) key.attachment());
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				// Closed anyway
+			}
+		}
+	}
+
+	/**
+	 * Accepts a new client.
+	 * @throws IOException If the client can't be registered.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Small requests, answered one by one
+		channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+	}
+
+	/**
+	 * Reads what is available from a client, and hands every complete request to a worker.
+	 * The buffer of a request grows as its bytes arrive, so a client can't make the server allocate more than it sends.
+	 * @param connection The client.
+	 * @throws IOException If the client is gone or if a frame is invalid.
+	 */
+	private void read(Connection connection) throws IOException {
+		while (true) {
+			ByteBuffer buffer = (connection.payload == null ? connection.header : connection.payload);
+			int read = connection.channel.read(buffer);
+			if (read < 0) throw new IOException("Connection closed by the client.");
+			if (buffer.hasRemaining()) return; // The rest hasn't arrived yet
+
+			if (connection.payload == null) {
+				int length = connection.header.getInt(0);
+				if (length < 5 || length > NioProtocol.MAX_REQUEST_LENGTH) throw new IOException("Invalid request length: " + length + ".");
+				connection.payload = ByteBuffer.allocate(Math.min(length, PAYLOAD_CHUNK));
+				connection.payloadLength = length;
+			} else if (connection.payload.capacity() < connection.payloadLength) {
+				ByteBuffer grown = ByteBuffer.allocate((int) Math.min(connection.payload.capacity() * 2L, connection.payloadLength));
+				connection.payload.flip();
+				grown.put(connection.payload);
+				connection.payload = grown;
+			} else {
+				byte[] frame = connection.payload.array();
+				connection.header.clear();
+				connection.payload = null;
+				workers.execute(() -> handle(connection, frame));
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued frames to a client, as far as its channel accepts them.
+	 * @param connection The client.
+	 * @param key The key of its channel.
+	 * @throws IOException If the client is gone.
+	 */
+	private void write(Connection connection, SelectionKey key) throws IOException {
+		synchronized (connection.writeQueue) {
+			ByteBuffer frame;
+			while ((frame = connection.writeQueue.peek()) != null) {
+				connection.channel.write(frame);
+				if (frame.hasRemaining()) return; // Socket buffer full, continued when it's writable again
+				connection.writeQueue.poll();
+			}
+			key.interestOpsAnd(~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Closes the connection of a client, which leaves the live sessions it joined.
+	 * @param connection The client.
+	 */
+	private void close(Connection connection) {
+		if (connection.closed) return;
+		connection.closed = true;
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// Closed anyway
+		}
+		for (long participantId : connection.participantIds) {
+			workers.execute(() -> {
+				try {
+					target.leaveSession(participantId);
+				} catch (RemoteException e) {
+					// Nothing is remote here
+				}
+			});
+		}
+	}
+
+	/**
+	 * Executes a request on a worker thread and queues its reply.
+	 * @param connection The client.
+	 * @param frame The request : its id, its opcode then its arguments.
+	 */
+	private void handle(Connection connection, byte[] frame) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+		int requestId = 0;
+		NioProtocol.FrameOutput reply;
+		try {
+			requestId = in.readInt();
+			byte opcode = in.readByte();
+			reply = new NioProtocol.FrameOutput(requestId, NioProtocol.OK);
+			execute(connection, opcode, in, reply);
+		} catch (RemoteException e) {
+			reply = error(requestId, NioProtocol.REMOTE_ERROR, e);
+		} catch (IOException e) {
+			reply = error(requestId, NioProtocol.IO_ERROR, e);
+		} catch (RuntimeException e) {
+			reply = error(requestId, NioProtocol.REMOTE_ERROR, e);
+		}
+		try {
+			connection.send(reply.toFrame());
+		} catch (IOException e) {
+			// Client gone, nobody waits for the reply
+		}
+	}
+
+	/**
+	 * Executes a request.
+	 * @param connection The client.
+	 * @param opcode The opcode of the request.
+	 * @param in The arguments of the request.
+	 * @param reply The reply, to which the result is written.
+	 * @throws IOException If the request fails, or if it's invalid.
+	 */
+	private void execute(Connection connection, byte opcode, DataInputStream in, NioProtocol.FrameOutput reply) throws IOException {
+		DataOutputStream out = new DataOutputStream(reply);
+		switch (opcode) {
+			case NioProtocol.GET_PORTS:
+				List<Integer> ports = target.getPorts();
+				out.writeInt(ports.size());
+				for (int p : ports) {
+					out.writeInt(p);
+				}
+				break;
+			case NioProtocol.GET_SAVED_FILE:
+				NioProtocol.writeString(out, target.getSavedFile(in.readInt()));
+				break;
+			case NioProtocol.GET_SAVED_FILE_FINGERPRINT:
+				NioProtocol.writeString(out, target.getSavedFileFingerprint(in.readInt()));
+				break;
+			case NioProtocol.GET_CHANGES_SINCE:
+				NioProtocol.writeDelta(out, target.getChangesSince(in.readInt(), in.readLong(), in.readLong()));
+				break;
+			case NioProtocol.JOIN_SESSION:
+				long participantId = in.readLong();
+				NioProtocol.writeDelta(out, target.joinSession(participantId, (originId, sequence, operations, orderHash) -> {
+					NioProtocol.FrameOutput push = new NioProtocol.FrameOutput(NioProtocol.PUSH_REQUEST_ID, NioProtocol.SESSION_OPERATIONS);
+					try {
+						DataOutputStream pushOut = new DataOutputStream(push);
+						pushOut.writeLong(participantId);
+						pushOut.writeLong(originId);
+						pushOut.writeLong(sequence);
+						pushOut.writeLong(orderHash);
+						NioProtocol.writeOperations(pushOut, operations);
+						connection.send(push.toFrame());
+					} catch (IOException e) {
+						throw new RemoteException("Client gone.", e);
+					}
+				}));
+				connection.participantIds.add(participantId);
+				break;
+			case NioProtocol.LEAVE_SESSION:
+				long leavingId = in.readLong();
+				connection.participantIds.remove(leavingId);
+				target.leaveSession(leavingId);
+				break;
+			case NioProtocol.SUBMIT_OPERATIONS:
+				target.submitOperations(in.readLong(), in.readLong(), NioProtocol.readOperations(in));
+				break;
+			case NioProtocol.GET_SHAPE_ORDER:
+				NioProtocol.writeLongs(out, target.getShapeOrder());
+				break;
+			case NioProtocol.OPEN_SAVED_FILE:
+				out.writeLong(target.openSavedFile(in.readInt()));
+				break;
+			case NioProtocol.READ_CHUNK:
+				NioProtocol.writeBytes(out, target.readChunk(in.readLong()));
+				break;
+			case NioProtocol.CLOSE_SAVED_FILE:
+				target.closeSavedFile(in.readLong());
+				break;
+			default:
+				throw new IOException("Unknown request: " + opcode + ".");
+		}
+		out.flush();
+	}
+
+	/**
+	 * Builds the reply of a failed request.
+	 * @param requestId The id of the request.
+	 * @param status The kind of error.
+	 * @param e The error.
+	 * @return The reply, made of the message of the error.
+	 */
+	private static NioProtocol.FrameOutput error(int requestId, byte status, Exception e) {
+		NioProtocol.FrameOutput reply = new NioProtocol.FrameOutput(requestId, status);
+		try {
+			NioProtocol.writeString(new DataOutputStream(reply), String.valueOf(e.getMessage()));
+		} catch (IOException ex) {
+			// Can't happen, written in memory
+		}
+		return reply;
+	}
+
+}
@@ -0,0 +1,111 @@
+package forms.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class RemoteInputStream extends InputStream {
+	
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+	
+	private RemoteServer server;
+	private long transferId;
+	private byte[] chunk = new byte[0]; // Last chunk received
+	private int position = 0; // Next byte to read in chunk
+	private boolean endReached = false; // True once the server has sent the whole file (the transfer is closed by the server then)
+	private boolean closed = false;
+	
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+	
+	/**
+     * Constructs a stream reading a file opened on a server with openSavedFile(), one chunk at a time.
+     * @param server The server.
+     * @param transferId The identifier of the transfer returned by openSavedFile().
+     */
+	public RemoteInputStream(RemoteServer server, long transferId) {
+		this.server = server;
+		this.transferId = transferId;
+	}
+	
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+	
+	/**
+     * Reads the next byte.
+     * @return The byte, or -1 if the end of the file has been reached.
+     * @throws IOException If an error occurs while receiving the file.
+     */
+	@Override
+	public int read() throws IOException {
+		if (!fill()) return -1;
+		return chunk[position++] & 0xFF;
+	}
+	
+	/**
+     * Reads bytes into an array, from the current chunk only so that the bytes already received are given without waiting.
+     * @param b The array.
+     * @param off The position of the first byte to write in the array.
+     * @param len The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 if the end of the file has been reached.
+     * @throws IOException If an error occurs while receiving the file.
+     */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!fill()) return -1;
+		int n = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, n);
+		position += n;
+		return n;
+	}
+	
+	/**
+     * Gets the number of bytes that can be read without waiting for the server.
+     * @return The number of bytes left in the current chunk.
+     */
+	@Override
+	public int available() {
+		return chunk.length - position;
+	}
+	
+	/**
+     * Closes the stream, and the transfer if the file hasn't been read entirely.
+     * @throws IOException If an error occurs while closing the transfer.
+     */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		if (!endReached) server.closeSavedFile(transferId);
+	}
+	
+	/**
+     * Receives the next chunk if the current one has been read entirely.
+     * @return True if there are bytes to read, false if the end of the file has been reached.
+     * @throws IOException If an error occurs while receiving the file, or if the stream is closed.
+     */
+	private boolean fill() throws IOException {
+		if (closed) throw new IOException("Stream closed.");
+		while (position == chunk.length) {
+			if (endReached) return false;
+			byte[] next = server.readChunk(transferId);
+			if (next == null) {
+				endReached = true;
+				return false;
+			}
+			chunk = next;
+			position = 0;
+		}
+		return true;
+	}
+
+}
@@ -29,4 +29,86 @@ public interface RemoteServer extends Remote {
      */
 	String getSavedFile(int port) throws RemoteException, IOException;
 	
+	/**
+     * Gets a fingerprint of the saved file, which changes every time the file is saved again.
+     * Much cheaper than getting the file, e.g. to know if a copy of the file is still up to date.
+     * @param port The port number used to construct the file name.
+     * @return The fingerprint, which must only be compared with other fingerprints.
+     * @throws RemoteException If a remote communication error occurs.
+     * @throws IOException If the file doesn't exist.
+     */
+	String getSavedFileFingerprint(int port) throws RemoteException, IOException;
+	
+	/**
+     * Gets the changes made to the saved file since a revision : the shapes added, modified or removed, identified by their identifier.
+     * Much smaller than the file when a client already has a previous revision of it.
+     * @param port The port number used to construct the file name.
+     * @param epoch The epoch of the revision, as returned with the previous changes.
+     * @param revision The revision the client knows, 0 to get the whole file.
+     * @return The changes, or null if the file hasn't been saved since the server started.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+	DocumentDelta getChangesSince(int port, long epoch, long revision) throws RemoteException;
+	
+	/**
+     * Joins the live session of the server : from then on, the edits made on the server and by the other clients are sent to the listener,
+     * batched every few milliseconds.
+     * @param participantId An identifier chosen by the client, not 0.
+     * @param listener The listener receiving the edits. It must be exported, so the server can call it.
+     * @return The whole content of the panel of the server when the client joined, to which the edits sent apply.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+	DocumentDelta joinSession(long participantId, RemoteSessionListener listener) throws RemoteException;
+	
+	/**
+     * Leaves the live session.
+     * @param participantId The identifier of the client.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+	void leaveSession(long participantId) throws RemoteException;
+	
+	/**
+     * Sends a batch of edits made by the client during the live session. The server applies them, then sends them to every client
+     * (this one included, which tells it when they have been applied).
+     * @param participantId The identifier of the client.
+     * @param sequence The number of the batch, increasing by one from 1.
+     * @param operations The edits, in the order they have been made.
+     * @throws RemoteException If a remote communication error occurs, or if the client hasn't joined the session.
+     */
+	void submitOperations(long participantId, long sequence, List<SessionOperation> operations) throws RemoteException;
+	
+	/**
+     * Gets the order of the shapes of the panel of the server, e.g. to fix the order of a client of the live session that doesn't match it
+     * (edits made at the same time on several machines can be applied in different orders).
+     * @return The identifiers of the shapes, in z-order.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+	long[] getShapeOrder() throws RemoteException;
+	
+	/**
+     * Opens the saved file to read it chunk by chunk with readChunk(), e.g. to parse it while it's being received.
+     * The bytes of the file are sent as they are stored, whatever its format.
+     * @param port The port number used to construct the file name.
+     * @return The identifier of the transfer.
+     * @throws RemoteException If a remote communication error occurs.
+     * @throws IOException If the file can't be opened.
+     */
+	long openSavedFile(int port) throws RemoteException, IOException;
+	
+	/**
+     * Reads the next chunk of a file opened with openSavedFile(). The transfer is closed once the whole file has been read.
+     * @param transferId The identifier of the transfer.
+     * @return The next bytes of the file, or null if the end of the file has been reached.
+     * @throws RemoteException If a remote communication error occurs.
+     * @throws IOException If an I/O error occurs while reading the file, or if the transfer is unknown or has expired.
+     */
+	byte[] readChunk(long transferId) throws RemoteException, IOException;
+	
+	/**
+     * Closes a transfer before the end of the file has been read.
+     * @param transferId The identifier of the transfer.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+	void closeSavedFile(long transferId) throws RemoteException;
+	
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package forms.network;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import java.util.List;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public interface RemoteSessionListener extends Remote {
+
+	/**
+	 * Receives the edits of a live session, in the order the server applied them. 
+	 * The participant that made the edits receives them too, which tells it they have been applied.
+	 * @param originId The identifier of the participant that made the edits, 0 for the server.
+	 * @param sequence The number of the batch for that participant.
+	 * @param operations The edits.
+	 * @param orderHash The hash of the identifiers of the shapes of the server in z-order, once the edits applied.
+	 * @throws RemoteException If a remote communication error occurs.
+	 */
+	void operationsReceived(long originId, long sequence, List<SessionOperation> operations, long orderHash) throws RemoteException;
+
+}
@@ -1,20 +1,47 @@
 package forms.network;
 
+import forms.managers.DocumentSnapshot;
 import forms.managers.FileManager;
+import forms.shapes.GeneralShape;
+import forms.windowsContents.Panel;
         
+import javax.swing.JComboBox;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.net.BindException;
 import java.net.MalformedURLException;
 
@@ -32,8 +59,77 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
 	 **************************************************************************/
 	
 	private transient FileManager fileManager;
-	private boolean isConnected = false;
-	private List<Integer> ports = new ArrayList<>();
+	private transient Panel panel;
+	private volatile boolean isConnected = false;
+	private List<Integer> ports = new CopyOnWriteArrayList<>(); // Read by the remote requests while the user starts servers
+	
+	// Saved file of each port, as sent to the clients. Replaced on the Event Dispatch Thread by each save, read by the remote requests without locking.
+	private transient Map<Integer, SavedDocument> documents = new ConcurrentHashMap<>();
+	private transient AtomicLong lastGeneration = new AtomicLong();
+	private transient Queue<Path> retiredFiles = new ConcurrentLinkedQueue<>(); // Generations replaced by a newer save, not deleted yet
+	
+	// Files being read chunk by chunk by clients
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final long TRANSFER_TIMEOUT = 60_000; // Milliseconds after which a transfer that isn't read anymore is closed
+	private transient Map<Long, Transfer> transfers = new ConcurrentHashMap<>();
+	private transient AtomicLong lastTransferId = new AtomicLong();
+	
+	// Revisions of the file saved for each port, to send only the changes to the clients. Published after each save by a single thread, in the order of the saves.
+	private transient Map<Integer, DocumentHistory> histories = new ConcurrentHashMap<>();
+	private transient ExecutorService historyPublisher = Executors.newSingleThreadExecutor(task -> {
+		Thread thread = new Thread(task, "History publisher");
+		thread.setDaemon(true); // Idle between saves, mustn't keep the application running
+		return thread;
+	});
+	
+	// Live session : the edits of the panel are sent to the clients that joined it, and theirs are applied to the panel
+	private transient LiveSession session = null; // Created when the first client joins, only used on the Event Dispatch Thread
+	private transient boolean sessionListening = false; // True while the session is an edit listener of the panel, only used on the Event Dispatch Thread
+	private transient Map<Long, Participant> participants = new ConcurrentHashMap<>();
+	private transient volatile long[] shapeOrder = new long[0]; // Order of the shapes once the last edits sent applied, replaced on the Event Dispatch Thread
+	private transient long shapeOrderHash = LiveSession.orderHash(List.of()); // Hash of shapeOrder, only used on the Event Dispatch Thread
+	
+	// Ports on which the server is reached through NIO rather than RMI
+	private transient List<NioServer> nioServers = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * A client that joined the live session. The edits are sent to it in order, by its own thread, so a slow client doesn't delay the others.
+	 */
+	private static final class Participant {
+		private final RemoteSessionListener listener;
+		private final ExecutorService sender = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("Live session sender").factory()); // Mostly waits for the client
+		
+		private Participant(RemoteSessionListener listener) {
+			this.listener = listener;
+		}
+	}
+	
+	/**
+	 * A generation of the saved file of a port, as sent to the clients : a link to the file as it was saved, which the next saves don't modify
+	 * (they replace the saved file by a new one), with its fingerprint.
+	 */
+	private static final class SavedDocument {
+		private final Path path;
+		private final String fingerprint;
+		
+		private SavedDocument(Path path, String fingerprint) {
+			this.path = path;
+			this.fingerprint = fingerprint;
+		}
+	}
+	
+	/**
+	 * A saved file opened by a client with openSavedFile().
+	 */
+	private static final class Transfer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+		private volatile long lastAccessTime = System.currentTimeMillis();
+		
+		private Transfer(FileChannel channel) {
+			this.channel = channel;
+		}
+	}
 	
 	/***************************************************************************
 	 * Constructors.
@@ -41,10 +137,12 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
         
 	/** Constructs a Server object with the specified FileManager.
      * @param fileManager The associated file manager.
+     * @param panel The panel shared with the clients during a live session.
      * @throws RemoteException if there is an RMI communication error.
      */
-    public Server(FileManager fileManager) throws RemoteException {
+    public Server(FileManager fileManager, Panel panel) throws RemoteException {
     	this.fileManager = fileManager;
+    	this.panel = panel;
     }
     
     /***************************************************************************
@@ -80,17 +178,21 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
     }
     
     /**
-     * Starts the server by binding it to a specified port.
+     * Starts the server by binding it to a specified port, through RMI or through NIO.
      * @return The port number to which the server is bound, or -1 if the user cancels the operation, or -2 if a server is already started on this port.
-     * @throws RemoteException if there is an RMI communication error.
+     * @throws RemoteException if there is an RMI communication error, or if the NIO server can't be started.
      * @throws MalformedURLException if the URL is invalid.
      * @throws NotBoundException 
      * @throws BindException 
      */
     public int start(int clientPort) throws RemoteException, MalformedURLException, NotBoundException, BindException {
     	JSpinner spinner = new JSpinner(new SpinnerNumberModel(1099, 1024, 65535, 1));
+    	JComboBox<String> transportBox = new JComboBox<>(new String[] {"RMI", "NIO"});
+    	JPanel optionPanel = new JPanel();
+    	optionPanel.add(spinner);
+    	optionPanel.add(transportBox);
         
-        int option = JOptionPane.showOptionDialog(null, spinner, "Server port number ? (1024-65535)", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null, null, null);
+        int option = JOptionPane.showOptionDialog(null, optionPanel, "Server port number ? (1024-65535)", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE, null, null, null);
         
         if (option == JOptionPane.OK_OPTION) {
             try {
@@ -101,8 +203,12 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
         	    }
             	
             	if (!ports.contains(port)) {
-            		Registry registry = LocateRegistry.createRegistry(port);
-                    registry.rebind("Server", this);
+            		if ("NIO".equals(transportBox.getSelectedItem())) {
+            			startNio(port);
+            		} else {
+            			Registry registry = LocateRegistry.createRegistry(port);
+            			registry.rebind("Server", this);
+            		}
                     
                     isConnected = true;
                     
@@ -118,6 +224,24 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
         }
     }
     
+    /**
+     * Starts a NIO server on a port, which serves the requests with this server.
+     * @param port The port.
+     * @throws BindException if the port is already used.
+     * @throws RemoteException if the NIO server can't be started.
+     */
+    private void startNio(int port) throws BindException, RemoteException {
+    	try {
+    		NioServer nioServer = new NioServer(this, port);
+    		nioServer.start();
+    		nioServers.add(nioServer);
+    	} catch (BindException e) {
+    		throw e;
+    	} catch (IOException e) {
+    		throw new RemoteException("Unable to start the NIO server.", e);
+    	}
+    }
+    
     /**
      * Stops the server and releases the ports.
      * @throws RemoteException if there is an RMI communication error.
@@ -125,7 +249,15 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
     public void stop() throws RemoteException {
 		try {
             UnicastRemoteObject.unexportObject(this, true); // Unexport the server object to remove it from the RMI runtime
+            for (NioServer nioServer : nioServers) {
+            	nioServer.close();
+            }
+            nioServers.clear();
             ports.clear();
+            
+            for (Long participantId : participants.keySet()) {
+            	leaveSession(participantId);
+            }
 
             isConnected = false;
         } finally {}
@@ -139,13 +271,18 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
     	return isConnected;
     }
     
-    /** Saves a file on the server started on the specified port.
+    /** Saves a file on the server started on the specified port. Must be called on the Event Dispatch Thread.
+     * The revision of the history sent to the clients is published in the background, from the snapshot written : 
+     * until then, getChangesSince() returns the previous revision, and the clients get the new one on their next synchronization.
      * @param port The port of the server on which to save the file.
      * @throws RemoteException if there is an RMI communication error.
      * @throws IOException if an I/O error occurs during file writing.
      */
     public void saveFile(int port) throws RemoteException, IOException  {
-        fileManager.writeFile("files/RMIfile" + port);
+    	DocumentSnapshot snapshot = fileManager.createSnapshot();
+        fileManager.writeFile(getSavedFileName(port), snapshot);
+        publishSavedDocument(port, true);
+        historyPublisher.execute(() -> histories.computeIfAbsent(port, p -> new DocumentHistory()).publish(snapshot)); // Once the file is written, so the history is never newer than it
     }
 
     /**
@@ -156,8 +293,307 @@ public class Server extends UnicastRemoteObject implements RemoteServer {
      * @throws IOException If an I/O error occurs while retrieving the file content.
      */
     public String getSavedFile(int port) throws RemoteException, IOException {
-    	return fileManager.fileToString("files/RMIfile" + port);
+    	while (true) {
+    		SavedDocument document = getSavedDocument(port);
+    		try {
+    			return fileManager.fileToString(document.path.toString());
+    		} catch (NoSuchFileException e) {
+    			if (documents.get(port) == document) throw e; // Otherwise deleted by a new save, which is sent instead
+    		}
+    	}
+    }
+    
+    /**
+     * Gets a fingerprint of the saved file, made of its size, its modification time and its file key 
+     * (which changes when the file is replaced by a new save, even within the precision of the modification time).
+     * It's the fingerprint of the content returned by getSavedFile(), even while the file is being saved again.
+     * @param port The port number used to construct the file name.
+     * @return The fingerprint, which must only be compared with other fingerprints.
+     * @throws RemoteException If a remote communication error occurs.
+     * @throws IOException If the file doesn't exist.
+     */
+    public String getSavedFileFingerprint(int port) throws RemoteException, IOException {
+    	return getSavedDocument(port).fingerprint;
+    }
+    
+    /**
+     * Gets the saved file of a port as it's sent to the clients. Can be called from any thread.
+     * @param port The port number used to construct the file name.
+     * @return The saved file.
+     * @throws IOException If the file doesn't exist.
+     */
+    private SavedDocument getSavedDocument(int port) throws IOException {
+    	SavedDocument document = documents.get(port);
+    	return (document != null ? document : publishSavedDocument(port, false)); // Saved before the server started
+    }
+    
+    /**
+     * Makes the file saved for a port the one sent to the clients, through a new generation of it : a hard link to it 
+     * (or a copy, if the file system doesn't support links), named after the generation. Can be called from any thread.
+     * The generation it replaces is deleted, unless it's still open.
+     * @param port The port number used to construct the file name.
+     * @param replace True to replace the generation sent until now, false to keep it if any (e.g. the file has been saved meanwhile).
+     * @return The generation sent to the clients.
+     * @throws IOException If the file doesn't exist, or if the generation can't be created.
+     */
+    private SavedDocument publishSavedDocument(int port, boolean replace) throws IOException {
+    	Path file = Paths.get(getSavedFileName(port));
+    	Path generation = Paths.get(getSavedFileName(port) + "." + lastGeneration.incrementAndGet());
+    	Files.deleteIfExists(generation); // Left by a previous run
+    	try {
+    		Files.createLink(generation, file);
+    	} catch (UnsupportedOperationException | IOException e) {
+    		Files.copy(file, generation, StandardCopyOption.REPLACE_EXISTING); // Fails too if the file doesn't exist
+    	}
+    	BasicFileAttributes attributes = Files.readAttributes(generation, BasicFileAttributes.class);
+    	String fingerprint = attributes.size() + "-" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "-" + attributes.fileKey();
     	
+    	SavedDocument document = new SavedDocument(generation, fingerprint);
+    	SavedDocument previous = (replace ? documents.put(port, document) : documents.putIfAbsent(port, document));
+    	if (previous == null) return document;
+    	if (replace) {
+    		retire(previous.path);
+    		return document;
+    	}
+    	retire(generation); // Published meanwhile
+    	return previous;
+    }
+    
+    /**
+     * Deletes a generation of a saved file that isn't sent to the clients anymore, and the ones that couldn't be deleted before.
+     * On some systems, a generation can't be deleted while a transfer still reads it : it's deleted by a later save.
+     * @param generation The generation.
+     */
+    private void retire(Path generation) {
+    	retiredFiles.add(generation);
+    	for (Path path : retiredFiles) {
+    		try {
+    			Files.deleteIfExists(path);
+    			retiredFiles.remove(path);
+    			fileManager.forgetFile(path.toString());
+    		} catch (IOException e) {
+    			// Still open
+    		}
+    	}
+    }
+    
+    /**
+     * Gets the changes made to the saved file since a revision, i.e. the shapes added, modified or removed by the saves made since.
+     * @param port The port number of the server on which the file is saved.
+     * @param epoch The epoch of the revision, as returned with the previous changes.
+     * @param revision The revision the client knows, 0 to get the whole file.
+     * @return The changes, or null if the file hasn't been saved since the server started.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+    public DocumentDelta getChangesSince(int port, long epoch, long revision) throws RemoteException {
+    	DocumentHistory history = histories.get(port);
+    	return (history == null ? null : history.getChangesSince(epoch, revision));
+    }
+    
+    /**
+     * Opens the saved file to read it chunk by chunk with readChunk(). The transfers left open for too long are closed first.
+     * @param port The port number used to construct the file name.
+     * @return The identifier of the transfer.
+     * @throws RemoteException If a remote communication error occurs.
+     * @throws IOException If the file can't be opened.
+     */
+    public long openSavedFile(int port) throws RemoteException, IOException {
+    	long now = System.currentTimeMillis();
+    	for (Long id : transfers.keySet()) {
+    		Transfer transfer = transfers.get(id);
+    		if (transfer != null && now - transfer.lastAccessTime > TRANSFER_TIMEOUT) closeSavedFile(id); // Client gone
+    	}
+    	
+    	// The opened generation is read entirely even if a new save replaces it meanwhile
+    	FileChannel channel;
+    	while (true) {
+    		SavedDocument document = getSavedDocument(port);
+    		try {
+    			channel = FileChannel.open(document.path, StandardOpenOption.READ);
+    			break;
+    		} catch (NoSuchFileException e) {
+    			if (documents.get(port) == document) throw e; // Otherwise deleted by a new save, which is sent instead
+    		}
+    	}
+    	long id = lastTransferId.incrementAndGet();
+    	transfers.put(id, new Transfer(channel));
+    	return id;
+    }
+    
+    /**
+     * Reads the next chunk of a file opened with openSavedFile(). The transfer is closed once the whole file has been read.
+     * @param transferId The identifier of the transfer.
+     * @return The next bytes of the file (at most 1 MB), or null if the end of the file has been reached.
+     * @throws RemoteException If a remote communication error occurs.
+     * @throws IOException If an I/O error occurs while reading the file, or if the transfer is unknown or has expired.
+     */
+    public byte[] readChunk(long transferId) throws RemoteException, IOException {
+    	Transfer transfer = transfers.get(transferId);
+    	if (transfer == null) throw new IOException("Unknown or expired transfer: " + transferId + ".");
+    	
+    	synchronized (transfer) { // A client reads its transfer sequentially, but RMI doesn't guarantee it
+    		transfer.lastAccessTime = System.currentTimeMillis();
+    		ByteBuffer buffer = transfer.buffer;
+    		buffer.clear();
+    		while (buffer.hasRemaining() && transfer.channel.read(buffer) >= 0) {
+    			// Fills the chunk, unless the end of the file is reached
+    		}
+    		if (buffer.position() == 0) {
+    			closeSavedFile(transferId);
+    			return null;
+    		}
+    		return Arrays.copyOf(buffer.array(), buffer.position());
+    	}
+    }
+    
+    /**
+     * Closes a transfer before the end of the file has been read.
+     * @param transferId The identifier of the transfer.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+    public void closeSavedFile(long transferId) throws RemoteException {
+    	Transfer transfer = transfers.remove(transferId);
+    	if (transfer == null) return;
+    	try {
+    		transfer.channel.close();
+    	} catch (IOException e) {
+    		// Nothing left to read anyway
+    	}
+    }
+    
+    /**
+     * Makes a client join the live session : from then on, the edits of the panel are sent to it as they are made.
+     * @param participantId The identifier chosen by the client, not 0.
+     * @param listener The listener of the client, to which the edits are sent.
+     * @return The whole content of the panel when the client joined, to which the edits sent apply.
+     * @throws RemoteException If a remote communication error occurs, or if the content of the panel can't be read.
+     */
+    public DocumentDelta joinSession(long participantId, RemoteSessionListener listener) throws RemoteException {
+    	CompletableFuture<DocumentSnapshot> snapshot = new CompletableFuture<>();
+    	SwingUtilities.invokeLater(() -> { // Between two edits, so the client gets every edit made after the snapshot
+    		try {
+    			if (session == null) session = new LiveSession(panel, fileManager, null, null, 0, (sequence, operations) -> broadcast(0, sequence, operations));
+    			if (!sessionListening) { // Not decided from the participants, a client that left may not have been processed yet
+    				panel.addEditListener(session);
+    				sessionListening = true;
+    			} else {
+    				session.flush();
+    			}
+    			publishShapeOrder(panel.getShapes());
+    			participants.put(participantId, new Participant(listener)); // Before the reply, the client may leave as soon as it gets it
+    			snapshot.complete(panel.createSnapshot());
+    		} catch (RuntimeException e) {
+    			snapshot.completeExceptionally(e);
+    		}
+    	});
+    	
+    	DocumentHistory history = new DocumentHistory(); // Only used to send the whole snapshot in the same format as the changes
+    	try {
+    		history.publish(snapshot.get()); // Unlike invokeAndWait(), doesn't hold the carrier of a virtual thread while waiting
+    	} catch (InterruptedException | ExecutionException e) {
+    		throw new RemoteException("Failed to join the session.", e);
+    	}
+    	return history.getChangesSince(0, 0);
+    }
+    
+    /**
+     * Makes a client leave the live session.
+     * @param participantId The identifier of the client.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+    public void leaveSession(long participantId) throws RemoteException {
+    	Participant participant = participants.remove(participantId);
+    	if (participant == null) return;
+    	participant.sender.shutdown();
+    	SwingUtilities.invokeLater(() -> {
+    		if (participants.isEmpty() && sessionListening) {
+    			panel.removeEditListener(session);
+    			session.close();
+    			sessionListening = false;
+    		}
+    	});
+    }
+    
+    /**
+     * Receives a batch of edits made by a client, which is applied to the panel then sent to every client (the sender included).
+     * @param participantId The identifier of the client.
+     * @param sequence The number of the batch for that client.
+     * @param operations The edits.
+     * @throws RemoteException If a remote communication error occurs, or if the client hasn't joined the session.
+     */
+    public void submitOperations(long participantId, long sequence, List<SessionOperation> operations) throws RemoteException {
+    	if (!participants.containsKey(participantId)) throw new RemoteException("Not in the live session.");
+    	SwingUtilities.invokeLater(() -> { // The Event Dispatch Thread orders the edits of everyone
+    		session.operationsReceived(participantId, sequence, operations, 0);
+    		broadcast(participantId, sequence, operations);
+    	});
+    }
+    
+    /**
+     * Gets the order of the shapes of the panel, once the last edits sent to the clients of the live session applied.
+     * It's the order the hash sent with these edits is computed from, even if the panel has been edited since.
+     * @return The identifiers of the shapes, in z-order.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+    public long[] getShapeOrder() throws RemoteException {
+    	return shapeOrder;
+    }
+    
+    /**
+     * Sends a batch of edits to every client of the live session. Clients that can't be reached leave the session.
+     * Must be called on the Event Dispatch Thread, in the order the edits have been applied to the panel.
+     * @param originId The identifier of the participant that made the edits, 0 for this machine.
+     * @param sequence The number of the batch for that participant.
+     * @param operations The edits.
+     */
+    private void broadcast(long originId, long sequence, List<SessionOperation> operations) {
+    	long orderHash = publishShapeOrder(panel.getShapes());
+    	for (Map.Entry<Long, Participant> entry : participants.entrySet()) {
+    		Participant participant = entry.getValue();
+    		try {
+    			participant.sender.execute(() -> {
+    				try {
+    					participant.listener.operationsReceived(originId, sequence, operations, orderHash);
+    				} catch (RemoteException e) {
+    					try {
+    						leaveSession(entry.getKey()); // Client gone
+    					} catch (RemoteException ex) {
+    						// Can't happen, nothing is remote here
+    					}
+    				}
+    			});
+    		} catch (RejectedExecutionException e) {
+    			// Left meanwhile, the other clients still get the edits
+    		}
+    	}
+    }
+    
+    /**
+     * Makes the order of shapes the one returned by getShapeOrder(). Must be called on the Event Dispatch Thread.
+     * The order is only copied if it changed, most edits modify shapes without adding, removing or moving any.
+     * @param shapes The shapes of the panel, in z-order.
+     * @return The hash of the order.
+     */
+    private long publishShapeOrder(List<GeneralShape> shapes) {
+    	long orderHash = LiveSession.orderHash(shapes);
+    	if (orderHash != shapeOrderHash) {
+    		long[] order = new long[shapes.size()];
+    		for (int i = 0; i < order.length; i++) {
+    			order[i] = shapes.get(i).getId();
+    		}
+    		shapeOrder = order;
+    		shapeOrderHash = orderHash;
+    	}
+    	return orderHash;
+    }
+    
+    /**
+     * Gets the name of the file saved for a port.
+     * @param port The port number.
+     * @return The name of the file.
+     */
+    private static String getSavedFileName(int port) {
+    	return "files/RMIfile" + port;
     }
 
 }
\ No newline at end of file
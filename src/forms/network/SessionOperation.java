@@ -0,0 +1,89 @@
+package forms.network;
+
+import java.io.Serializable;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class SessionOperation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	/**
+	 * The kinds of edit shared during a live session.
+	 */
+	public enum Type {
+		ADD, // A shape has been added above the previous shape
+		CHANGE, // A shape has been modified (geometry, color or outline)
+		REMOVE, // A shape has been removed
+		MOVE, // A shape has changed depth, it's now above the previous shape
+		BACKGROUND, // The background has changed
+		RESET // All the shapes have been removed
+	}
+
+	private final Type type;
+	private final long id;
+	private final Long previousId;
+	private final String text;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs an operation.
+	 * @param type The kind of edit.
+	 * @param id The identifier of the shape, 0 if the operation isn't about a shape.
+	 * @param previousId For ADD and MOVE, the identifier of the shape right below the shape, or null if it's the lowest shape.
+	 * @param text For ADD and CHANGE, the shape in text format. For BACKGROUND, the line describing the background in text format.
+	 */
+	public SessionOperation(Type type, long id, Long previousId, String text) {
+		this.type = type;
+		this.id = id;
+		this.previousId = previousId;
+		this.text = text;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Gets the kind of edit.
+	 * @return The kind of edit.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the identifier of the shape.
+	 * @return The identifier of the shape, 0 if the operation isn't about a shape.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the identifier of the shape right below the shape, for ADD and MOVE.
+	 * @return The identifier, or null if the shape is the lowest one.
+	 */
+	public Long getPreviousId() {
+		return previousId;
+	}
+
+	/**
+	 * Gets the shape (ADD and CHANGE) or the background (BACKGROUND) in text format.
+	 * @return The text, null for the other operations.
+	 */
+	public String getText() {
+		return text;
+	}
+
+}
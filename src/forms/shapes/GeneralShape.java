@@ -1,13 +1,21 @@
 package forms.shapes;
 
+import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
+import java.awt.geom.IllegalPathStateException;
 import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
 
-import java.util.StringTokenizer;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Simon Antropius
@@ -26,6 +34,19 @@ public class GeneralShape extends Path2D.Double {
 	protected int outlineThickness = 0;
 	protected Color outlineColor = Color.BLACK;
 	
+	private static final AtomicLong ID_GENERATOR = new AtomicLong(new Random().nextLong()); // Random start, so the ids given on different machines don't collide
+	private long id = ID_GENERATOR.getAndIncrement(); // Identity of the shape, kept by its copies, e.g. to synchronize a document between machines
+	
+	private transient Rectangle2D cachedBounds = null; // Computed on demand, reset every time the path is modified by this class
+	private transient java.awt.Rectangle cachedIntBounds = null; // Integer version of cachedBounds, same life cycle
+	private transient Area cachedInnerOutline = null; // Same life cycle, also reset when the outline thickness changes
+	private transient double innerOutlineDx = 0, innerOutlineDy = 0; // Translations not applied yet to cachedInnerOutline
+	private transient boolean frozen = false; // Set once the shape is referenced by a snapshot, it mustn't be modified anymore
+	
+	private static final int MAX_OUTLINE_THICKNESS = 10; // Maximum thickness allowed by the popup menu
+	private static final BasicStroke[] OUTLINE_STROKES = new BasicStroke[MAX_OUTLINE_THICKNESS + 1]; // Shared by all the shapes
+	private static final int MAX_SEGMENT_COUNT = 1 << 24; // Beyond, a shape read in binary format is considered corrupted
+	
 	/***************************************************************************
 	 * Constructors.
 	 **************************************************************************/
@@ -37,6 +58,14 @@ public class GeneralShape extends Path2D.Double {
 		super();
 	}
 	
+	/**
+     * Constructs a GeneralShape with an empty path and black color, with room for the specified number of segments.
+     * @param initialCapacity The number of segments the path can contain before having to grow.
+     */
+	public GeneralShape(int initialCapacity) {
+		super(WIND_NON_ZERO, initialCapacity);
+	}
+	
 	/**
      * Constructs a GeneralShape with the specified Shape and black color.
      * @param s The Shape to construct the GeneralShape from.
@@ -73,6 +102,23 @@ public class GeneralShape extends Path2D.Double {
 	 * Methods.
 	 **************************************************************************/
 	
+	/**
+     * Gets the identifier of the shape. Every new shape gets a new one, but copies made with copy() keep it.
+     * @return The identifier of the shape.
+     */
+	public long getId() {
+		return id;
+	}
+	
+	/**
+     * Sets the identifier of the shape, e.g. to the one it has on another machine.
+     * Must be called before the shape is added to a panel.
+     * @param id The identifier of the shape.
+     */
+	public void setId(long id) {
+		this.id = id;
+	}
+	
 	/**
      * Gets the color of the shape.
      * @return The color of the shape.
@@ -102,6 +148,7 @@ public class GeneralShape extends Path2D.Double {
      * @param v The thickness to set for the outline.
      */
 	public void setOutlineThickness(int v) {
+		if (v != outlineThickness) cachedInnerOutline = null;
 		outlineThickness = v;
 	}
 	
@@ -121,6 +168,87 @@ public class GeneralShape extends Path2D.Double {
 		outlineColor = c;
 	}
 
+	/**
+     * Gets the bounds of the shape, computing them only if the path has changed since the last call.
+     * The returned rectangle is shared and must not be modified.
+     * @return The bounds of the shape.
+     */
+	public Rectangle2D getCachedBounds2D() {
+		if (cachedBounds == null) {
+			cachedBounds = getBounds2D();
+		}
+		return cachedBounds;
+	}
+	
+	/**
+     * Gets the integer bounds of the shape (same result as getBounds()), computing them only if the path has changed since the last call.
+     * The returned rectangle is shared and must not be modified.
+     * @return The integer bounds of the shape.
+     */
+	public java.awt.Rectangle getCachedBounds() {
+		if (cachedIntBounds == null) {
+			cachedIntBounds = getCachedBounds2D().getBounds();
+		}
+		return cachedIntBounds;
+	}
+	
+	/**
+     * Gets the inner outline of the shape, i.e. the part of a stroke of twice the outline thickness that is inside the shape.
+     * Computed only if the path or the outline thickness has changed since the last call.
+     * The returned area is shared and must not be modified.
+     * @return The inner outline of the shape.
+     */
+	public Area getInnerOutline() {
+		if (cachedInnerOutline == null) {
+			Area outline = new Area(getOutlineStroke(outlineThickness).createStrokedShape(this));
+			outline.intersect(new Area(this));
+			cachedInnerOutline = outline;
+			innerOutlineDx = 0;
+			innerOutlineDy = 0;
+		} else if (innerOutlineDx != 0 || innerOutlineDy != 0) { // Moving the outline is much cheaper than computing it again
+			cachedInnerOutline.transform(AffineTransform.getTranslateInstance(innerOutlineDx, innerOutlineDy));
+			innerOutlineDx = 0;
+			innerOutlineDy = 0;
+		}
+		return cachedInnerOutline;
+	}
+	
+	/**
+     * Gets the stroke used to compute the inner outline for the specified thickness.
+     * The strokes for the thicknesses allowed by the popup menu are only created once.
+     * @param thickness The thickness of the outline.
+     * @return A stroke of twice the thickness.
+     */
+	public static BasicStroke getOutlineStroke(int thickness) {
+		if (thickness < 0 || thickness > MAX_OUTLINE_THICKNESS) {
+			return new BasicStroke(thickness*2);
+		}
+		if (OUTLINE_STROKES[thickness] == null) {
+			OUTLINE_STROKES[thickness] = new BasicStroke(thickness*2);
+		}
+		return OUTLINE_STROKES[thickness];
+	}
+	
+	/**
+     * Invalidates the cached bounds and outline.
+     * Must be called after the path has been modified without using the methods of this class (moveTo(), append()...).
+     */
+	public void invalidateCache() {
+		cachedBounds = null;
+		cachedIntBounds = null;
+		cachedInnerOutline = null;
+	}
+	
+	/**
+     * Transforms the shape with the specified transform and invalidates its cached bounds and outline.
+     * Must be used instead of transform().
+     * @param tx The transform to apply.
+     */
+	public void applyTransform(AffineTransform tx) {
+		this.transform(tx);
+		invalidateCache();
+	}
+
 	/**
      * Translates the shape by the specified distances.
      * @param dx The distance to translate along the x-axis.
@@ -128,7 +256,19 @@ public class GeneralShape extends Path2D.Double {
      */
     public void translate(double dx, double dy) {
         AffineTransform tx = AffineTransform.getTranslateInstance(dx, dy);
-        this.transform(tx);
+        Rectangle2D bounds = cachedBounds;
+        Area innerOutline = cachedInnerOutline;
+        applyTransform(tx);
+        
+        if (bounds != null) { // A translation doesn't change the size, so the bounds can be moved instead of being computed again.
+        	// A new rectangle is created because the previous one may still be referenced (see getCachedBounds2D()).
+        	cachedBounds = new Rectangle2D.Double(bounds.getX() + dx, bounds.getY() + dy, bounds.getWidth(), bounds.getHeight());
+        }
+        if (innerOutline != null) { // Same for the outline, the translation is applied the next time it's needed
+        	cachedInnerOutline = innerOutline;
+        	innerOutlineDx += dx;
+        	innerOutlineDy += dy;
+        }
     }
 
     /**
@@ -139,7 +279,7 @@ public class GeneralShape extends Path2D.Double {
      */
     public void rotate(double angle, double x, double y) {
         AffineTransform tx = AffineTransform.getRotateInstance(Math.toRadians(angle), x, y);
-        this.transform(tx);
+        applyTransform(tx);
     }
 
     /**
@@ -149,7 +289,7 @@ public class GeneralShape extends Path2D.Double {
      */
     public void scale(double sx, double sy) {
         AffineTransform tx = AffineTransform.getScaleInstance(sx, sy);
-        this.transform(tx);
+        applyTransform(tx);
     }
     
     /**
@@ -158,14 +298,15 @@ public class GeneralShape extends Path2D.Double {
      */
     public void reflect(boolean xAxis) {
         AffineTransform reflectTransform;
+        Rectangle2D bounds = getCachedBounds2D();
         if (xAxis) {
             reflectTransform = AffineTransform.getScaleInstance(1, -1);
-            reflectTransform.translate(0, -(2*this.getBounds2D().getY() + this.getBounds2D().getHeight()));
+            reflectTransform.translate(0, -(2*bounds.getY() + bounds.getHeight()));
         } else {
             reflectTransform = AffineTransform.getScaleInstance(-1, 1);
-            reflectTransform.translate(-(2*this.getBounds2D().getX() + this.getBounds2D().getWidth()), 0);
+            reflectTransform.translate(-(2*bounds.getX() + bounds.getWidth()), 0);
         }
-        this.transform(reflectTransform);
+        applyTransform(reflectTransform);
     }
     
     /**
@@ -175,6 +316,31 @@ public class GeneralShape extends Path2D.Double {
     public GeneralShape duplicate() {
     	return new GeneralShape(this, color, outlineThickness, outlineColor);
     }
+    
+    /**
+     * Freezes the shape : it mustn't be modified anymore, e.g. because it's read by another thread. Copies aren't frozen.
+     */
+    public void freeze() {
+    	frozen = true;
+    }
+    
+    /**
+     * Checks if the shape has been frozen.
+     * @return True if the shape mustn't be modified anymore, false otherwise.
+     */
+    public boolean isFrozen() {
+    	return frozen;
+    }
+    
+    /**
+     * Copies the shape. Unlike a duplicate, the copy is the same shape as this one : it has the same identifier.
+     * @return The copy of the shape.
+     */
+    public GeneralShape copy() {
+    	GeneralShape copy = duplicate();
+    	copy.id = id;
+    	return copy;
+    }
 	
 	/**
      * Adds the specified shape to this shape.
@@ -186,6 +352,7 @@ public class GeneralShape extends Path2D.Double {
         area1.add(area2);
         this.reset();
         this.append(area1.getPathIterator(null), true);
+        invalidateCache();
 	}
 
 	/**
@@ -198,6 +365,7 @@ public class GeneralShape extends Path2D.Double {
 	    area1.intersect(area2);
 	    this.reset();
         this.append(area1.getPathIterator(null), true);
+        invalidateCache();
 	}
 
 	/**
@@ -210,6 +378,7 @@ public class GeneralShape extends Path2D.Double {
 	    area1.subtract(area2);
 	    this.reset();
         this.append(area1.getPathIterator(null), true);
+        invalidateCache();
 	}
 	
 	/**
@@ -222,6 +391,7 @@ public class GeneralShape extends Path2D.Double {
 	    area1.exclusiveOr(area2);
 	    this.reset();
         this.append(area1.getPathIterator(null), true);
+        invalidateCache();
 	}
 	
 	/**
@@ -230,27 +400,7 @@ public class GeneralShape extends Path2D.Double {
      */
     public String toTextFormat() {
         StringBuilder sb = new StringBuilder();
-        
-        sb.append("GeneralShape;");
-        
-        // Attributes
-        sb.append(color.getRGB()).append(";");
-        sb.append(outlineThickness).append(";");
-        sb.append(outlineColor.getRGB()).append(";");
-        
-        // Path
-        PathIterator iterator = getPathIterator(null);
-        while (!iterator.isDone()) {
-            double[] coords = new double[6];
-            int type = iterator.currentSegment(coords);
-            sb.append(type).append(":");
-            for (int i = 0; i < coords.length; i++) {
-                sb.append(coords[i]).append(",");
-            }
-            iterator.next();
-            sb.append(";");
-        }
-        
+        ShapeTextWriter.appendShape(sb, this, new double[6]); // Only the coordinates used by each segment are written
         return sb.toString();
     }
     
@@ -260,44 +410,157 @@ public class GeneralShape extends Path2D.Double {
      * @return A GeneralShape object constructed from the text representation, or null if the text is invalid.
      */
     public static GeneralShape fromTextFormat(String text) {
-        StringTokenizer tokenizer = new StringTokenizer(text, ";");
-        String shapeType = tokenizer.nextToken();
-        
-        if (!shapeType.equals("GeneralShape")) {
-            return null; // Not a GeneralShape
-        }
-        GeneralShape shape = new GeneralShape();
-        
-        // Attributes
-        int colorRGB = Integer.parseInt(tokenizer.nextToken());
-        shape.setColor(new Color(colorRGB));
-        int outlineThickness = Integer.parseInt(tokenizer.nextToken());
-        shape.setOutlineThickness(outlineThickness);
-        int outlineColorRGB = Integer.parseInt(tokenizer.nextToken());
-        shape.setOutlineColor(new Color(outlineColorRGB));
-        
-        
-        // Path
-        Path2D path = new Path2D.Double();
-        while (tokenizer.hasMoreTokens()) {
-            String segment = tokenizer.nextToken();
-            StringTokenizer segmentTokenizer = new StringTokenizer(segment, ":,");
-            int type = Integer.parseInt(segmentTokenizer.nextToken());
-            double[] coords = new double[6];
-            for (int i = 0; i < coords.length; i++) {
-                coords[i] = java.lang.Double.parseDouble(segmentTokenizer.nextToken());
-            }
-            switch (type) {
-                case PathIterator.SEG_MOVETO: path.moveTo(coords[0], coords[1]); break;
-                case PathIterator.SEG_LINETO: path.lineTo(coords[0], coords[1]); break;
-                case PathIterator.SEG_QUADTO: path.quadTo(coords[0], coords[1], coords[2], coords[3]); break;
-                case PathIterator.SEG_CUBICTO: path.curveTo(coords[0], coords[1], coords[2], coords[3], coords[4], coords[5]); break;
-                case PathIterator.SEG_CLOSE: path.closePath(); break;
-            }
-        }
-        shape.append(path, false);
-        
-        return shape;
+        return ShapeTextReader.parse(text); // Parsed without intermediate Strings nor temporary path
+    }
+    
+    /**
+     * Checks if every coordinate of the path can be stored as a float without losing precision.
+     * @return True if every coordinate is exactly representable as a float, false otherwise.
+     */
+    public boolean hasFloatCoords() {
+    	double[] coords = new double[6];
+    	for (PathIterator iterator = getPathIterator(null); !iterator.isDone(); iterator.next()) {
+    		int type = iterator.currentSegment(coords);
+    		for (int i = 0; i < getCoordCount(type); i++) {
+    			if ((float) coords[i] != coords[i]) return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Writes the shape in binary format : colors, outline thickness, number of segments, segment types packed two per byte, 
+     * then only the coordinates used by each segment.
+     * @param out The output to write to.
+     * @param floatCoords True to write the coordinates as floats, false to write them as doubles.
+     * @throws IOException If an I/O error occurs while writing.
+     */
+    public void writeBinary(DataOutput out, boolean floatCoords) throws IOException {
+    	// Attributes
+    	out.writeInt(color.getRGB());
+    	writeVarInt(out, outlineThickness);
+    	out.writeInt(outlineColor.getRGB());
+    	
+    	// Path, read once and written in two parts
+    	byte[] types = new byte[16];
+    	double[] allCoords = new double[64];
+    	int segmentCount = 0;
+    	int coordCount = 0;
+    	double[] coords = new double[6];
+    	for (PathIterator iterator = getPathIterator(null); !iterator.isDone(); iterator.next()) {
+    		int type = iterator.currentSegment(coords);
+    		if (segmentCount == types.length) types = Arrays.copyOf(types, types.length * 2);
+    		if (coordCount + 6 > allCoords.length) allCoords = Arrays.copyOf(allCoords, allCoords.length * 2);
+    		types[segmentCount++] = (byte) type;
+    		for (int i = 0; i < getCoordCount(type); i++) {
+    			allCoords[coordCount++] = coords[i];
+    		}
+    	}
+    	
+    	writeVarInt(out, segmentCount);
+    	for (int i = 0; i < segmentCount; i += 2) {
+    		int high = (i + 1 < segmentCount ? types[i + 1] : 0);
+    		out.writeByte(types[i] | (high << 4));
+    	}
+    	for (int i = 0; i < coordCount; i++) {
+    		if (floatCoords) out.writeFloat((float) allCoords[i]);
+    		else out.writeDouble(allCoords[i]);
+    	}
+    }
+    
+    /**
+     * Constructs a GeneralShape from its binary representation (see writeBinary()).
+     * @param in The input to read from.
+     * @param floatCoords True if the coordinates are stored as floats, false if they are stored as doubles.
+     * @return A GeneralShape object constructed from the binary representation.
+     * @throws IOException If an I/O error occurs while reading, or if the data is invalid.
+     */
+    public static GeneralShape readBinary(DataInput in, boolean floatCoords) throws IOException {
+    	GeneralShape shape = new GeneralShape();
+    	
+    	// Attributes
+    	shape.setColor(new Color(in.readInt()));
+    	shape.setOutlineThickness(readVarInt(in));
+    	shape.setOutlineColor(new Color(in.readInt()));
+    	
+    	// Path
+    	int segmentCount = readVarInt(in);
+    	if (segmentCount < 0 || segmentCount > MAX_SEGMENT_COUNT) throw new IOException("Invalid number of segments: " + segmentCount);
+    	byte[] types = new byte[Math.min(segmentCount, 16)]; // Grown while reading, so a corrupted count fails at the end of the data rather than allocating it
+    	for (int i = 0; i < segmentCount; i += 2) {
+    		if (i + 1 >= types.length) types = Arrays.copyOf(types, Math.min(types.length * 2, segmentCount));
+    		int packed = in.readUnsignedByte();
+    		types[i] = (byte) (packed & 0x0F);
+    		if (i + 1 < segmentCount) types[i + 1] = (byte) (packed >> 4);
+    	}
+    	double[] coords = new double[6];
+    	for (int i = 0; i < segmentCount; i++) {
+    		int type = types[i];
+    		int count = getCoordCount(type);
+    		if (count < 0) throw new IOException("Invalid segment type: " + type);
+    		for (int j = 0; j < count; j++) {
+    			coords[j] = (floatCoords ? in.readFloat() : in.readDouble());
+    		}
+    		try {
+	    		switch (type) {
+		    		case PathIterator.SEG_MOVETO: shape.moveTo(coords[0], coords[1]); break;
+		    		case PathIterator.SEG_LINETO: shape.lineTo(coords[0], coords[1]); break;
+		    		case PathIterator.SEG_QUADTO: shape.quadTo(coords[0], coords[1], coords[2], coords[3]); break;
+		    		case PathIterator.SEG_CUBICTO: shape.curveTo(coords[0], coords[1], coords[2], coords[3], coords[4], coords[5]); break;
+		    		case PathIterator.SEG_CLOSE: shape.closePath(); break;
+	    		}
+    		} catch (IllegalPathStateException e) { // e.g. a line before the first move
+    			throw new IOException("Invalid path: " + e.getMessage(), e);
+    		}
+    	}
+    	
+    	return shape;
+    }
+    
+    /**
+     * Gets the number of coordinates used by a type of path segment.
+     * @param type The type of the segment (see PathIterator).
+     * @return The number of coordinates used by the segment, or -1 if the type is invalid.
+     */
+    public static int getCoordCount(int type) {
+    	switch (type) {
+	    	case PathIterator.SEG_MOVETO:
+	    	case PathIterator.SEG_LINETO: return 2;
+	    	case PathIterator.SEG_QUADTO: return 4;
+	    	case PathIterator.SEG_CUBICTO: return 6;
+	    	case PathIterator.SEG_CLOSE: return 0;
+	    	default: return -1;
+    	}
+    }
+    
+    /**
+     * Writes a non-negative integer using 1 to 5 bytes, 7 bits per byte (small values take less space).
+     * @param out The output to write to.
+     * @param value The value to write.
+     * @throws IOException If an I/O error occurs while writing.
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+    	while ((value & ~0x7F) != 0) {
+    		out.writeByte((value & 0x7F) | 0x80); // The highest bit means that more bytes follow
+    		value >>>= 7;
+    	}
+    	out.writeByte(value);
+    }
+    
+    /**
+     * Reads an integer written by writeVarInt().
+     * @param in The input to read from.
+     * @return The value read.
+     * @throws IOException If an I/O error occurs while reading, or if the value is invalid.
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+    	int value = 0;
+    	for (int shift = 0; shift < 35; shift += 7) {
+    		int b = in.readUnsignedByte();
+    		value |= (b & 0x7F) << shift;
+    		if ((b & 0x80) == 0) return value;
+    	}
+    	throw new IOException("Invalid variable-length integer.");
     }
 	
 }
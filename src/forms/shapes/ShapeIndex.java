@@ -0,0 +1,321 @@
+package forms.shapes;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class ShapeIndex {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int DEFAULT_CELL_SIZE = 64;
+	private static final int MAX_CELLS_PER_SHAPE = 1024; // Shapes covering more cells than this are kept in the oversized list
+
+	private int cellSize;
+
+	private Map<Long, List<GeneralShape>> cells = new HashMap<>(); // Uniform grid, key = packed (column, row)
+	private List<GeneralShape> oversized = new ArrayList<>(); // Shapes too big to be stored cell by cell, always tested
+	private Map<GeneralShape, Rectangle2D> indexedBounds = new IdentityHashMap<>(); // Bounds used when the shape was put in the grid
+	private Map<GeneralShape, Integer> depths = new IdentityHashMap<>(); // Position of each shape in the panel's list (z-order)
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs an empty index with the default cell size.
+	 */
+	public ShapeIndex() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Constructs an empty index with the specified cell size.
+	 * @param cellSize The width and height of a grid cell, in pixels.
+	 */
+	public ShapeIndex(int cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Adds a shape to the index.
+	 * @param shape The shape to add.
+	 * @param depth The position of the shape in the list of shapes (higher is drawn above).
+	 */
+	public void add(GeneralShape shape, int depth) {
+		depths.put(shape, depth);
+		insert(shape, shape.getCachedBounds2D());
+	}
+
+	/**
+	 * Adds the shapes of a list to the index, from the specified position to the end of the list.
+	 * @param shapes The list of shapes, in z-order.
+	 * @param fromIndex The position of the first shape to add, which is also its depth.
+	 */
+	public void addAll(List<GeneralShape> shapes, int fromIndex) {
+		for (int i = Math.max(fromIndex, 0); i < shapes.size(); i++) {
+			GeneralShape shape = shapes.get(i);
+			depths.put(shape, i);
+			insert(shape, shape.getCachedBounds2D());
+		}
+	}
+	
+	/**
+	 * Updates the position of a shape in the grid after its geometry changed.
+	 * @param shape The shape whose geometry changed.
+	 */
+	public void update(GeneralShape shape) {
+		Rectangle2D oldBounds = indexedBounds.get(shape);
+		if (oldBounds == null) return; // Not indexed
+
+		Rectangle2D newBounds = shape.getCachedBounds2D();
+		if (newBounds.equals(oldBounds)) return;
+
+		if (cellRangeEquals(oldBounds, newBounds)) { // Still in the same cells, only the stored bounds change
+			indexedBounds.put(shape, newBounds);
+			return;
+		}
+		erase(shape, oldBounds);
+		insert(shape, newBounds);
+	}
+
+	/**
+	 * Removes a shape from the index.
+	 * Depths of the shapes above it have to be updated with reindex().
+	 * @param shape The shape to remove.
+	 */
+	public void remove(GeneralShape shape) {
+		Rectangle2D oldBounds = indexedBounds.get(shape);
+		if (oldBounds == null) return;
+
+		erase(shape, oldBounds);
+		depths.remove(shape);
+	}
+
+	/**
+	 * Updates the depth of the shapes from the specified position to the end of the list.
+	 * Must be called after a shape has been removed or after the order of the shapes changed.
+	 * @param shapes The list of shapes, in z-order.
+	 * @param fromIndex The first position whose depth may have changed.
+	 */
+	public void reindex(List<GeneralShape> shapes, int fromIndex) {
+		for (int i = Math.max(fromIndex, 0); i < shapes.size(); i++) {
+			depths.put(shapes.get(i), i);
+		}
+	}
+
+	/**
+	 * Gets the depth of a shape.
+	 * @param shape The shape.
+	 * @return The position of the shape in the list of shapes, or -1 if the shape isn't indexed.
+	 */
+	public int getDepth(GeneralShape shape) {
+		Integer depth = depths.get(shape);
+		return (depth == null ? -1 : depth);
+	}
+
+	/**
+	 * Finds the topmost shape containing the given point.
+	 * Only the shapes stored in the cell of the point are tested, and the exact containment test is only done
+	 * on the shapes whose bounds contain the point and that are above the best candidate found so far.
+	 * @param p The point.
+	 * @return The topmost shape containing the point, or null if there is none.
+	 */
+	public GeneralShape topmostAt(Point2D p) {
+		GeneralShape topmost = null;
+		int topmostDepth = -1;
+
+		List<GeneralShape> cell = cells.get(key(column(p.getX()), row(p.getY())));
+		if (cell != null) {
+			for (GeneralShape shape : cell) {
+				int depth = depths.get(shape);
+				if (depth > topmostDepth && indexedBounds.get(shape).contains(p) && shape.contains(p)) {
+					topmost = shape;
+					topmostDepth = depth;
+				}
+			}
+		}
+		for (GeneralShape shape : oversized) {
+			int depth = depths.get(shape);
+			if (depth > topmostDepth && indexedBounds.get(shape).contains(p) && shape.contains(p)) {
+				topmost = shape;
+				topmostDepth = depth;
+			}
+		}
+
+		return topmost;
+	}
+
+	/**
+	 * Finds every shape whose bounds intersect the given area.
+	 * @param area The area.
+	 * @return The shapes intersecting the area, sorted by depth (the first one has to be painted first).
+	 */
+	public List<GeneralShape> query(Rectangle2D area) {
+		Set<GeneralShape> found = Collections.newSetFromMap(new IdentityHashMap<>()); // A shape can be stored in several cells
+		
+		int minCol = column(area.getMinX());
+		int maxCol = column(area.getMaxX());
+		int minRow = row(area.getMinY());
+		int maxRow = row(area.getMaxY());
+		for (int col = minCol; col <= maxCol; col++) {
+			for (int row = minRow; row <= maxRow; row++) {
+				List<GeneralShape> cell = cells.get(key(col, row));
+				if (cell == null) continue;
+				for (GeneralShape shape : cell) {
+					if (intersects(indexedBounds.get(shape), area)) found.add(shape);
+				}
+			}
+		}
+		for (GeneralShape shape : oversized) {
+			if (intersects(indexedBounds.get(shape), area)) found.add(shape);
+		}
+		
+		List<GeneralShape> result = new ArrayList<>(found);
+		result.sort(Comparator.comparingInt(shape -> depths.get(shape)));
+		return result;
+	}
+	
+	/**
+	 * Gets the bounds a shape had when it was last put in the grid, i.e. before its latest changes if update() hasn't been called yet.
+	 * @param shape The shape.
+	 * @return The indexed bounds of the shape, or null if the shape isn't indexed.
+	 */
+	public Rectangle2D getIndexedBounds(GeneralShape shape) {
+		return indexedBounds.get(shape);
+	}
+
+	/**
+	 * Removes every shape from the index.
+	 */
+	public void clear() {
+		cells.clear();
+		oversized.clear();
+		indexedBounds.clear();
+		depths.clear();
+	}
+
+	/**
+	 * Puts a shape in every cell covered by the specified bounds.
+	 * @param shape The shape to put.
+	 * @param bounds The bounds of the shape.
+	 */
+	private void insert(GeneralShape shape, Rectangle2D bounds) {
+		indexedBounds.put(shape, bounds);
+
+		int minCol = column(bounds.getMinX());
+		int maxCol = column(bounds.getMaxX());
+		int minRow = row(bounds.getMinY());
+		int maxRow = row(bounds.getMaxY());
+
+		if ((long) (maxCol - minCol + 1) * (maxRow - minRow + 1) > MAX_CELLS_PER_SHAPE) {
+			oversized.add(shape);
+			return;
+		}
+		for (int col = minCol; col <= maxCol; col++) {
+			for (int row = minRow; row <= maxRow; row++) {
+				cells.computeIfAbsent(key(col, row), k -> new ArrayList<>()).add(shape);
+			}
+		}
+	}
+
+	/**
+	 * Removes a shape from every cell covered by the specified bounds.
+	 * @param shape The shape to remove.
+	 * @param bounds The bounds the shape had when it was inserted.
+	 */
+	private void erase(GeneralShape shape, Rectangle2D bounds) {
+		indexedBounds.remove(shape);
+
+		int minCol = column(bounds.getMinX());
+		int maxCol = column(bounds.getMaxX());
+		int minRow = row(bounds.getMinY());
+		int maxRow = row(bounds.getMaxY());
+
+		if ((long) (maxCol - minCol + 1) * (maxRow - minRow + 1) > MAX_CELLS_PER_SHAPE) {
+			oversized.remove(shape);
+			return;
+		}
+		for (int col = minCol; col <= maxCol; col++) {
+			for (int row = minRow; row <= maxRow; row++) {
+				Long key = key(col, row);
+				List<GeneralShape> cell = cells.get(key);
+				if (cell != null) {
+					cell.remove(shape);
+					if (cell.isEmpty()) cells.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if bounds intersect an area. Unlike Rectangle2D.intersects(), bounds without width or height
+	 * (horizontal or vertical lines) are taken into account.
+	 * @param bounds The bounds.
+	 * @param area The area.
+	 * @return True if the bounds intersect the area, false otherwise.
+	 */
+	private static boolean intersects(Rectangle2D bounds, Rectangle2D area) {
+		return bounds.getMaxX() >= area.getMinX() && bounds.getMinX() <= area.getMaxX()
+			&& bounds.getMaxY() >= area.getMinY() && bounds.getMinY() <= area.getMaxY();
+	}
+
+	/**
+	 * Checks if two bounds cover exactly the same cells.
+	 * @param a The first bounds.
+	 * @param b The second bounds.
+	 * @return True if both bounds cover the same cells, false otherwise.
+	 */
+	private boolean cellRangeEquals(Rectangle2D a, Rectangle2D b) {
+		return column(a.getMinX()) == column(b.getMinX()) && column(a.getMaxX()) == column(b.getMaxX())
+			&& row(a.getMinY()) == row(b.getMinY()) && row(a.getMaxY()) == row(b.getMaxY());
+	}
+
+	/**
+	 * Gets the column of the cell containing the specified x-coordinate.
+	 * @param x The x-coordinate.
+	 * @return The column of the cell.
+	 */
+	private int column(double x) {
+		return (int) Math.floor(x / cellSize);
+	}
+
+	/**
+	 * Gets the row of the cell containing the specified y-coordinate.
+	 * @param y The y-coordinate.
+	 * @return The row of the cell.
+	 */
+	private int row(double y) {
+		return (int) Math.floor(y / cellSize);
+	}
+
+	/**
+	 * Packs a column and a row into a single key.
+	 * @param col The column of the cell.
+	 * @param row The row of the cell.
+	 * @return The key of the cell.
+	 */
+	private static long key(int col, int row) {
+		return ((long) col << 32) | (row & 0xFFFFFFFFL);
+	}
+
+}
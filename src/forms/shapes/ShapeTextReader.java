@@ -0,0 +1,364 @@
+package forms.shapes;
+
+import java.awt.Color;
+import java.awt.geom.PathIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class ShapeTextReader implements Closeable {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final char[] SHAPE_PREFIX = "GeneralShape;".toCharArray();
+	private static final int ATTRIBUTE_COUNT = 3; // Color, outline thickness and outline color, before the segments
+
+	private static final long MAX_EXACT_MANTISSA = 1L << 53; // Bigger integers can't all be stored exactly in a double
+	private static final double[] POWERS_OF_TEN = { // Every power of ten up to 1e22 is exactly representable as a double
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private Reader in; // Null when reading from a string
+	private char[] buf;
+	private int pos = 0; // Next character to read in buf
+	private int limit = 0; // End of the characters read so far in buf
+	private int lineEnd = 0; // End of the current line in buf
+	private double[] coords = new double[6]; // Reused for every segment
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs a reader of shapes in text format, one shape per line.
+	 * @param in The reader to read the text from. It doesn't need to be buffered.
+	 */
+	public ShapeTextReader(Reader in) {
+		this.in = in;
+		this.buf = new char[BUFFER_SIZE];
+	}
+
+	/**
+	 * Constructs a reader of shapes in text format, one shape per line.
+	 * @param text The text to read.
+	 */
+	public ShapeTextReader(String text) {
+		this.in = null;
+		this.buf = text.toCharArray();
+		this.limit = buf.length;
+	}
+
+	/**
+	 * Constructs a reader of shapes in text format, one shape per line.
+	 * @param chars The characters to read. The array is used as is, it must not be modified while being read.
+	 * @param offset The position of the first character to read.
+	 * @param length The number of characters to read.
+	 */
+	public ShapeTextReader(char[] chars, int offset, int length) {
+		this.in = null;
+		this.buf = chars;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Parses a single shape in text format.
+	 * @param text The text representing the shape's data.
+	 * @return The parsed shape, or null if the text doesn't represent a GeneralShape.
+	 * @throws NumberFormatException If a number of the shape is invalid.
+	 */
+	public static GeneralShape parse(String text) {
+		try {
+			return new ShapeTextReader(text).readShape();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Can't happen, nothing is read from a stream
+		}
+	}
+
+	/**
+	 * Reads the next non-empty line, e.g. the background line at the start of a file.
+	 * @return The line, without its terminator, or null if the end of the text has been reached.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	public String readLine() throws IOException {
+		if (!nextLine()) return null;
+		String line = new String(buf, pos, lineEnd - pos);
+		pos = lineEnd;
+		return line;
+	}
+
+	/**
+	 * Reads the next shape. Lines that don't represent a GeneralShape are skipped.
+	 * @return The next shape, or null if the end of the text has been reached.
+	 * @throws IOException If an I/O error occurs while reading.
+	 * @throws NumberFormatException If a number of the shape is invalid.
+	 */
+	public GeneralShape readShape() throws IOException {
+		while (nextLine()) {
+			GeneralShape shape = parseLine();
+			pos = lineEnd;
+			if (shape != null) return shape;
+		}
+		return null;
+	}
+
+	/**
+	 * Closes the underlying reader.
+	 * @throws IOException If an I/O error occurs while closing the reader.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (in != null) in.close();
+	}
+
+	/**
+	 * Parses the current line, appending its segments straight into a shape sized for them.
+	 * @return The parsed shape, or null if the line doesn't represent a GeneralShape.
+	 */
+	private GeneralShape parseLine() {
+		if (lineEnd - pos < SHAPE_PREFIX.length) return null;
+		for (int i = 0; i < SHAPE_PREFIX.length; i++) {
+			if (buf[pos + i] != SHAPE_PREFIX[i]) return null; // Not a GeneralShape
+		}
+		pos += SHAPE_PREFIX.length;
+
+		int separators = 0;
+		for (int i = pos; i < lineEnd; i++) {
+			if (buf[i] == ';') separators++;
+		}
+		GeneralShape shape = new GeneralShape(Math.max(separators - ATTRIBUTE_COUNT, 1));
+
+		// Attributes
+		shape.setColor(new Color(parseInt()));
+		skip(';');
+		shape.setOutlineThickness(parseInt());
+		skip(';');
+		shape.setOutlineColor(new Color(parseInt()));
+
+		// Path
+		while (pos < lineEnd) {
+			if (buf[pos] == ';') { pos++; continue; }
+
+			int type = parseInt();
+			skip(':');
+			int count = 0;
+			while (pos < lineEnd && buf[pos] != ';') {
+				if (buf[pos] == ',') { pos++; continue; }
+				double value = parseDouble();
+				if (count < coords.length) coords[count++] = value;
+			}
+			for (int i = count; i < coords.length; i++) {
+				coords[i] = 0; // Only the used coordinates may have been written
+			}
+
+			switch (type) {
+				case PathIterator.SEG_MOVETO: shape.moveTo(coords[0], coords[1]); break;
+				case PathIterator.SEG_LINETO: shape.lineTo(coords[0], coords[1]); break;
+				case PathIterator.SEG_QUADTO: shape.quadTo(coords[0], coords[1], coords[2], coords[3]); break;
+				case PathIterator.SEG_CUBICTO: shape.curveTo(coords[0], coords[1], coords[2], coords[3], coords[4], coords[5]); break;
+				case PathIterator.SEG_CLOSE: shape.closePath(); break;
+			}
+		}
+
+		return shape;
+	}
+
+	/**
+	 * Skips the specified separator if it's the next character of the line.
+	 * @param separator The separator.
+	 */
+	private void skip(char separator) {
+		if (pos < lineEnd && buf[pos] == separator) pos++;
+	}
+
+	/**
+	 * Gets the end of the number starting at the current position.
+	 * @return The position of the first separator (or of the end of the line) after the number.
+	 */
+	private int numberEnd() {
+		int end = pos;
+		while (end < lineEnd) {
+			char c = buf[end];
+			if (c == ';' || c == ':' || c == ',') break;
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Parses the integer starting at the current position, without creating a String.
+	 * @return The parsed integer.
+	 * @throws NumberFormatException If the integer is invalid.
+	 */
+	private int parseInt() {
+		int start = pos;
+		int end = numberEnd();
+		pos = end;
+
+		int i = start;
+		boolean negative = (i < end && buf[i] == '-');
+		if (negative) i++;
+		if (i == end || end - i > 10) return Integer.parseInt(new String(buf, start, end - start)); // Invalid or too long, let Java decide
+
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9) return Integer.parseInt(new String(buf, start, end - start));
+			value = value * 10 + digit;
+		}
+		if (negative) value = -value;
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return Integer.parseInt(new String(buf, start, end - start));
+		return (int) value;
+	}
+
+	/**
+	 * Parses the decimal number starting at the current position, without creating a String.
+	 * The number is computed exactly from its digits when the mantissa and the power of ten both fit in a double,
+	 * which is the case of most coordinates. Otherwise, Double.parseDouble() is used.
+	 * @return The parsed number.
+	 * @throws NumberFormatException If the number is invalid.
+	 */
+	private double parseDouble() {
+		int start = pos;
+		int end = numberEnd();
+		pos = end;
+
+		int i = start;
+		boolean negative = (i < end && buf[i] == '-');
+		if (negative) i++;
+
+		long mantissa = 0;
+		int digits = 0; // Significant digits, leading zeros excluded
+		int exponent = 0;
+		boolean anyDigit = false;
+		boolean point = false;
+		for (; i < end; i++) {
+			char c = buf[i];
+			if (c >= '0' && c <= '9') {
+				anyDigit = true;
+				if (mantissa == 0 && c == '0') {
+					if (point) exponent--;
+					continue;
+				}
+				if (++digits > 18) return parseDoubleSlowly(start, end); // Would overflow the long
+				mantissa = mantissa * 10 + (c - '0');
+				if (point) exponent--;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (!anyDigit) return parseDoubleSlowly(start, end);
+
+		if (i < end) { // Exponent
+			if (buf[i] != 'E' && buf[i] != 'e') return parseDoubleSlowly(start, end);
+			i++;
+			boolean negativeExponent = (i < end && buf[i] == '-');
+			if (i < end && (buf[i] == '-' || buf[i] == '+')) i++;
+			if (i == end || end - i > 3) return parseDoubleSlowly(start, end);
+			int e = 0;
+			for (; i < end; i++) {
+				int digit = buf[i] - '0';
+				if (digit < 0 || digit > 9) return parseDoubleSlowly(start, end);
+				e = e * 10 + digit;
+			}
+			exponent += (negativeExponent ? -e : e);
+		}
+
+		if (mantissa > MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22) return parseDoubleSlowly(start, end);
+
+		// Both operands are exact, so the single rounding of the operation gives the correctly rounded result
+		double value = (double) mantissa;
+		if (exponent < 0) value /= POWERS_OF_TEN[-exponent];
+		else value *= POWERS_OF_TEN[exponent];
+		return (negative ? -value : value);
+	}
+
+	/**
+	 * Parses a decimal number with Double.parseDouble(), for the numbers the fast path can't handle exactly.
+	 * @param start The start of the number in the buffer.
+	 * @param end The end of the number in the buffer.
+	 * @return The parsed number.
+	 * @throws NumberFormatException If the number is invalid.
+	 */
+	private double parseDoubleSlowly(int start, int end) {
+		return Double.parseDouble(new String(buf, start, end - start));
+	}
+
+	/**
+	 * Moves to the start of the next non-empty line and makes sure the whole line is in the buffer.
+	 * @return True if there is a line, false if the end of the text has been reached.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	private boolean nextLine() throws IOException {
+		// Line terminators and empty lines
+		while (true) {
+			if (pos == limit && !fill()) return false;
+			char c = buf[pos];
+			if (c != '\n' && c != '\r') break;
+			pos++;
+		}
+
+		int i = pos;
+		while (true) {
+			if (i == limit) {
+				int offset = i - pos;
+				if (!fill()) { // Last line without terminator
+					lineEnd = limit;
+					return true;
+				}
+				i = pos + offset; // The buffer may have been compacted
+				continue;
+			}
+			char c = buf[i];
+			if (c == '\n' || c == '\r') {
+				lineEnd = i;
+				return true;
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Reads more characters into the buffer, moving the unread ones to its start and growing it if it's full.
+	 * @return True if characters have been read, false if the end of the stream has been reached.
+	 * @throws IOException If an I/O error occurs while reading.
+	 */
+	private boolean fill() throws IOException {
+		if (in == null) return false;
+
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			lineEnd = Math.max(lineEnd - pos, 0);
+			pos = 0;
+		}
+		if (limit == buf.length) { // A single line bigger than the buffer
+			char[] bigger = new char[buf.length * 2];
+			System.arraycopy(buf, 0, bigger, 0, limit);
+			buf = bigger;
+		}
+
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n <= 0) return false;
+		limit += n;
+		return true;
+	}
+
+}
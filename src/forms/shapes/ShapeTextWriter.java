@@ -0,0 +1,128 @@
+package forms.shapes;
+
+import java.awt.geom.PathIterator;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class ShapeTextWriter implements Closeable, Flushable {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private Writer out;
+	private StringBuilder text = new StringBuilder(BUFFER_SIZE + 1024); // Lines formatted but not written yet
+	private char[] chars = new char[BUFFER_SIZE + 1024]; // Used to give the formatted lines to the writer without creating a String
+	private double[] coords = new double[6]; // Reused for every segment
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs a writer of shapes in text format, one shape per line.
+	 * @param out The writer to write the text to. It doesn't need to be buffered.
+	 */
+	public ShapeTextWriter(Writer out) {
+		this.out = out;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Appends a shape in text format to a StringBuilder. Only the coordinates used by each segment are written.
+	 * @param sb The StringBuilder.
+	 * @param shape The shape.
+	 * @param coords An array of 6 doubles, used as a buffer for the coordinates of the segments.
+	 */
+	public static void appendShape(StringBuilder sb, GeneralShape shape, double[] coords) {
+		sb.append("GeneralShape;");
+
+		// Attributes
+		sb.append(shape.getColor().getRGB()).append(';');
+		sb.append(shape.getOutlineThickness()).append(';');
+		sb.append(shape.getOutlineColor().getRGB()).append(';');
+
+		// Path
+		for (PathIterator iterator = shape.getPathIterator(null); !iterator.isDone(); iterator.next()) {
+			int type = iterator.currentSegment(coords);
+			sb.append(type).append(':');
+			int count = GeneralShape.getCoordCount(type);
+			for (int i = 0; i < count; i++) {
+				sb.append(coords[i]).append(',');
+			}
+			sb.append(';');
+		}
+	}
+
+	/**
+	 * Writes a line of text, e.g. the background line at the start of a file.
+	 * @param line The line, without its terminator.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	public void writeLine(String line) throws IOException {
+		text.append(line).append(LINE_SEPARATOR);
+		if (text.length() >= BUFFER_SIZE) writeBuffer();
+	}
+
+	/**
+	 * Writes a shape in text format, followed by a line separator.
+	 * @param shape The shape to write.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	public void writeShape(GeneralShape shape) throws IOException {
+		appendShape(text, shape, coords);
+		text.append(LINE_SEPARATOR);
+		if (text.length() >= BUFFER_SIZE) writeBuffer();
+	}
+
+	/**
+	 * Writes the buffered lines and flushes the underlying writer.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffered lines and closes the underlying writer.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writeBuffer();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Gives the buffered lines to the underlying writer.
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	private void writeBuffer() throws IOException {
+		int length = text.length();
+		if (length == 0) return;
+		if (length > chars.length) chars = new char[length]; // A single very big shape
+		text.getChars(0, length, chars, 0);
+		out.write(chars, 0, length);
+		text.setLength(0);
+	}
+
+}
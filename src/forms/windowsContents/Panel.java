@@ -1,6 +1,8 @@
 package forms.windowsContents;
 
 import forms.managers.CursorManager;
+import forms.managers.DocumentSnapshot;
+import forms.managers.ImageManager;
 import forms.managers.StateManager;
 import forms.managers.StateManager.CompositionType;
 import forms.managers.StateManager.ResizeType;
@@ -11,34 +13,36 @@ import forms.menus.PopupMenu;
 import forms.shapes.GeneralShape;
 import forms.shapes.Rectangle;
 import forms.shapes.Oval;
+import forms.shapes.ShapeIndex;
 import forms.shapes.Triangle;
 
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
 import java.awt.Label;
 import java.awt.Point;
+import java.awt.RenderingHints;
 import java.awt.Shape;
-import java.awt.Stroke;
-import java.awt.BasicStroke;
+import java.awt.Transparency;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 
 import javax.swing.JPanel;
 import javax.swing.JFileChooser;
 import javax.swing.JColorChooser;
 
-import javax.imageio.ImageIO;
 
 import java.util.ArrayList;
 import java.util.List;
 
 import java.io.File;
-import java.io.IOException;
 
 /**
  * @author Simon Antropius
@@ -57,6 +61,7 @@ public class Panel extends JPanel {
 	private StateManager stateManager;
     private WindowManager windowManager;
     private CursorManager cursorManager;
+    private ImageManager imageManager;
 	private Label helpText;
 	private PopupMenu popupMenu;
 	
@@ -68,12 +73,33 @@ public class Panel extends JPanel {
     	BACKGROUND
     }
     
+    /**
+     * Notified of every change of the document, e.g. to record it. Called on the event dispatch thread, after the change.
+     */
+    public interface EditListener {
+    	void shapeAdded(int index, GeneralShape shape);
+    	void shapeChanged(int index, GeneralShape shape);
+    	void shapeDragged(int index, GeneralShape shape); // While the shape is moved or resized, shapeChanged() is only called at the end
+    	void shapeRemoved(int index, GeneralShape shape);
+    	void shapeMoved(int fromIndex, int toIndex);
+    	void backgroundChanged(Color color, String imagePath);
+    	void documentReset();
+    }
+    
     //----- Other attributes -----
-	private List<GeneralShape> shapes = new ArrayList<>();
+	private ArrayList<GeneralShape> shapes = new ArrayList<>();
+	private ShapeIndex shapeIndex = new ShapeIndex(); // Spatial index kept in sync with shapes, used for hit-testing
+	private static final int SELECTION_MARGIN = 6; // How far the selection handles and outline go beyond the bounds of the selected shape
 	
 	// Background
 	private BufferedImage backgroundImage = null; // Set this to null if you want a color to be used as background
 	private String backgroundImagePath = null;
+	private BufferedImage scaledBackground = null; // backgroundImage scaled to the size of the panel, in the format of the screen
+	private VolatileImage acceleratedBackground = null; // Copy of scaledBackground stored in video memory when possible
+	private int backgroundVersion = 0; // Incremented on every background change, to ignore the images whose loading ended too late
+	private boolean backgroundLoading = false; // True while the background image is being loaded
+	private BufferedImage backgroundPreview = null; // Partially loaded background image, displayed until the loading is over
+	private static final Color BACKGROUND_PLACEHOLDER = new Color(0xE0E0E0); // Displayed while the background image is loading
     
     // For selected shape
     private GeneralShape selectedShape = null;
@@ -101,6 +127,30 @@ public class Panel extends JPanel {
     // To avoid problems with mouseReleased on shortcuts
     private boolean mousePressed = false;
     
+    // Layer cache used during move and resize : only the selected shape is painted again on every frame
+    private BufferedImage belowLayer = null; // Background and shapes under the selected shape
+    private BufferedImage aboveLayer = null; // Shapes above the selected shape (transparent elsewhere)
+    private GeneralShape layersShape = null; // Shape the layers have been rendered around, null if the layers are invalid
+    private int layersShapeIndex = -1;
+    
+    // Tiled rendering : the canvas is split into tiles whose raster is cached, only the tiles touched by a change are rendered again
+    private TiledRenderer tiledRenderer = new TiledRenderer(this, new TiledRenderer.AreaPainter() {
+    	@Override
+    	public void paintArea(Graphics2D g2d, java.awt.Rectangle area) {
+    		Panel.this.paintArea(g2d, area);
+    	}
+    	@Override
+    	public Rectangle2D getContentBounds(java.awt.Rectangle area) {
+    		return Panel.this.getContentBounds(area);
+    	}
+    });
+    private boolean tiledRendering = false;
+    
+    // Edit listeners : a shape being moved or resized is only reported once the mouse is released, not on every drag event
+    private List<EditListener> editListeners = new ArrayList<>();
+    private boolean dragModified = false; // True if the selected shape has changed since the beginning of the drag
+    private int resetCount = 0; // Incremented every time the panel is reset, e.g. to know if it still contains a document
+    
     /***************************************************************************
 	 * Methods.
 	 **************************************************************************/
@@ -117,6 +167,7 @@ public class Panel extends JPanel {
         this.windowManager = windowManager;
         this.cursorManager = cursorManager;
         this.helpText = helpText;
+        this.imageManager = new ImageManager(this);
         popupMenu = new PopupMenu(this);
         initialize();
     }
@@ -136,7 +187,7 @@ public class Panel extends JPanel {
 	                	case NEUTRAL:
 	                		if (selectedShape != null) {
 	                			Point p = e.getPoint();
-	                			java.awt.Rectangle bounds = selectedShape.getBounds();
+	                			java.awt.Rectangle bounds = selectedShape.getCachedBounds();
 		                        int x = (int) bounds.getX();
 		                        int y = (int) bounds.getY();
 		                        int w = (int) bounds.getWidth();
@@ -188,9 +239,9 @@ public class Panel extends JPanel {
 						}
 						break;
 					}
-					case MOVE: stateManager.setNeutralState(); helpText.setText(""); break;
+					case MOVE: dragEnded(); stateManager.setNeutralState(); helpText.setText(""); break;
 					case NEUTRAL: stateManager.setNeutralState(); helpText.setText(""); break;
-					case RESIZE: stateManager.setNeutralState(); helpText.setText(""); break;
+					case RESIZE: dragEnded(); stateManager.setNeutralState(); helpText.setText(""); break;
 				}
 			}
 			@Override
@@ -208,7 +259,7 @@ public class Panel extends JPanel {
 			@Override
 			public void mouseMoved(MouseEvent e) {
 				if (selectedShape != null) {
-					java.awt.Rectangle bounds = selectedShape.getBounds();
+					java.awt.Rectangle bounds = selectedShape.getCachedBounds();
 					Point point = e.getPoint();
 					cursorManager.adaptCursor(point, bounds);
 				} else {
@@ -235,8 +286,18 @@ public class Panel extends JPanel {
 						}
 						break;
 					}
-					case MOVE: moveSelectedShape(e); repaint(); break;
-				    case RESIZE: resizeSelectedShape(e); repaint(); break;
+					case MOVE: {
+						Rectangle2D oldBounds = selectedShape.getCachedBounds2D();
+						moveSelectedShape(e);
+						repaintAroundDrag(oldBounds);
+						break;
+					}
+				    case RESIZE: {
+				    	Rectangle2D oldBounds = selectedShape.getCachedBounds2D();
+				    	resizeSelectedShape(e);
+				    	repaintAroundDrag(oldBounds);
+				    	break;
+				    }
 				    default: break;
 				}
 			}
@@ -254,12 +315,311 @@ public class Panel extends JPanel {
 	}
 	
 
+	/**
+	 * Finds a shape by its identifier, starting from the top where the recent shapes are.
+	 * @param id The identifier of the shape.
+	 * @return The position of the shape in the list of shapes, or -1 if there is no such shape.
+	 */
+	public int indexOfShape(long id) {
+		for (int i = shapes.size() - 1; i >= 0; i--) {
+			if (shapes.get(i).getId() == id) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Takes a snapshot of the shapes and of the background, e.g. to save them on another thread while the panel is being modified.
+	 * The shapes aren't copied, they are frozen : the panel copies a frozen shape the first time it modifies it (see thaw()).
+	 * @return The snapshot, which contains the shapes of the panel.
+	 */
+	public DocumentSnapshot createSnapshot() {
+		for (GeneralShape shape : shapes) {
+			shape.freeze();
+		}
+		return new DocumentSnapshot(new ArrayList<>(shapes), getBackground(), backgroundImagePath);
+	}
+	
 	/**
 	 * Adds a shape to the list of shapes on the panel.
 	 * @param shape The shape to be added.
 	 */
 	public void addShape(GeneralShape shape) {
 		shapes.add(shape);
+		shapeAdded(shape);
+	}
+	
+	/**
+	 * Adds several shapes to the list of shapes on the panel, above the existing ones and in the order of the list.
+	 * Much faster than calling addShape() for each shape : the caches are updated once for the whole batch, then the panel is repainted.
+	 * @param newShapes The shapes to be added.
+	 */
+	public void addShapes(List<GeneralShape> newShapes) {
+		if (newShapes.isEmpty()) return;
+		
+		int fromIndex = shapes.size();
+		shapes.ensureCapacity(fromIndex + newShapes.size());
+		shapes.addAll(newShapes);
+		shapesAdded(fromIndex);
+		repaint();
+	}
+	
+	/**
+	 * Inserts a shape at the specified position of the list of shapes, e.g. when a change made on another machine is applied.
+	 * @param index The position of the shape, between 0 (below all the others) and the number of shapes (above all the others).
+	 * @param shape The shape to be inserted.
+	 */
+	public void insertShape(int index, GeneralShape shape) {
+		if (index == shapes.size()) {
+			addShape(shape);
+			return;
+		}
+		shapes.add(index, shape);
+		shapeIndex.add(shape, index);
+		shapeIndex.reindex(shapes, index + 1);
+		invalidateLayers();
+		tiledRenderer.markDirty(shape.getCachedBounds2D());
+		selectedShapeIndex = (selectedShape == null ? -1 : shapeIndex.getDepth(selectedShape));
+		for (EditListener listener : editListeners) {
+			listener.shapeAdded(index, shape);
+		}
+		repaint();
+	}
+	
+	/**
+	 * Replaces all the shapes of the panel at once, without resetting the rest of the panel (background, tools, selection
+	 * if the selected shape is still there). Reported to the edit listeners as a reset of the document.
+	 * @param newShapes The new shapes, in z-order.
+	 */
+	public void setShapes(List<GeneralShape> newShapes) {
+		shapes.clear();
+		shapes.addAll(newShapes);
+		shapeIndex.clear();
+		shapeIndex.addAll(shapes, 0);
+		invalidateLayers();
+		tiledRenderer.markAllDirty();
+		selectedShapeIndex = (selectedShape == null ? -1 : shapeIndex.getDepth(selectedShape));
+		if (selectedShapeIndex < 0) deselectSelectedShape();
+		dragModified = false;
+		for (EditListener listener : editListeners) {
+			listener.documentReset();
+		}
+		repaint();
+	}
+	
+	/**
+	 * Replaces the shape at the specified position, e.g. when an edit is replayed.
+	 * @param index The position of the shape to replace.
+	 * @param shape The new shape.
+	 */
+	public void replaceShape(int index, GeneralShape shape) {
+		GeneralShape oldShape = shapes.get(index);
+		if (oldShape == selectedShape) deselectSelectedShape();
+		shapes.set(index, shape);
+		shapeRemoved(oldShape, -1);
+		shapeIndex.add(shape, index);
+		tiledRenderer.markDirty(shape.getCachedBounds2D());
+		fireShapeChanged(index, shape);
+		repaint();
+	}
+	
+	/**
+	 * Removes the shape at the specified position, e.g. when an edit is replayed.
+	 * @param index The position of the shape to remove.
+	 */
+	public void removeShapeAt(int index) {
+		if (shapes.get(index) == selectedShape) deselectSelectedShape();
+		removeShape(index);
+		selectedShapeIndex = (selectedShape == null ? -1 : shapeIndex.getDepth(selectedShape));
+		repaint();
+	}
+	
+	/**
+	 * Moves a shape to another position of the list of shapes (i.e. changes its depth), e.g. when an edit is replayed.
+	 * @param fromIndex The position of the shape.
+	 * @param toIndex The new position of the shape.
+	 */
+	public void moveShape(int fromIndex, int toIndex) {
+		if (fromIndex == toIndex) return;
+		GeneralShape shape = shapes.remove(fromIndex);
+		shapes.add(toIndex, shape);
+		shapesReordered(shape, fromIndex, toIndex);
+		selectedShapeIndex = (selectedShape == null ? -1 : shapeIndex.getDepth(selectedShape));
+		repaint();
+	}
+	
+	/**
+	 * Removes the shape at the specified position from the list of shapes on the panel.
+	 * @param index The position of the shape to remove.
+	 */
+	private void removeShape(int index) {
+		GeneralShape removedShape = shapes.remove(index);
+		shapeRemoved(removedShape, index);
+		for (EditListener listener : editListeners) {
+			listener.shapeRemoved(index, removedShape);
+		}
+	}
+	
+	/**
+	 * Must be called after a shape has been appended to the list of shapes.
+	 * @param shape The added shape.
+	 */
+	private void shapeAdded(GeneralShape shape) {
+		shapeIndex.add(shape, shapes.size()-1);
+		invalidateLayers();
+		tiledRenderer.markDirty(shape.getCachedBounds2D());
+		for (EditListener listener : editListeners) {
+			listener.shapeAdded(shapes.size()-1, shape);
+		}
+	}
+	
+	/**
+	 * Must be called after several shapes have been added at the end of the list.
+	 * @param fromIndex The position of the first added shape.
+	 */
+	private void shapesAdded(int fromIndex) {
+		shapeIndex.addAll(shapes, fromIndex);
+		invalidateLayers();
+		
+		Rectangle2D dirtyArea = null;
+		for (int i = fromIndex; i < shapes.size(); i++) {
+			Rectangle2D bounds = shapes.get(i).getCachedBounds2D(); // Already computed by the index
+			if (dirtyArea == null) dirtyArea = new Rectangle2D.Double(bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight());
+			else dirtyArea.add(bounds);
+		}
+		tiledRenderer.markDirty(dirtyArea);
+		for (EditListener listener : editListeners) {
+			for (int i = fromIndex; i < shapes.size(); i++) {
+				listener.shapeAdded(i, shapes.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * Must be called before a shape of the panel is modified. A shape frozen by a snapshot is left as it is, the snapshot 
+	 * may be read by another thread : it's replaced in the panel by a copy (with the same identifier), which is modified instead.
+	 * @param shape The shape about to be modified.
+	 * @return The shape to modify, i.e. the shape itself or its copy.
+	 */
+	private GeneralShape thaw(GeneralShape shape) {
+		if (!shape.isFrozen()) return shape;
+		int index = shapeIndex.getDepth(shape);
+		GeneralShape copy = shape.copy();
+		shapes.set(index, copy);
+		shapeIndex.remove(shape);
+		shapeIndex.add(copy, index);
+		if (shape == selectedShape) selectedShape = copy;
+		if (shape == layersShape) layersShape = copy;
+		return copy;
+	}
+	
+	/**
+	 * Must be called after a shape has changed (geometry, color or outline).
+	 * @param shape The modified shape.
+	 */
+	private void shapeModified(GeneralShape shape) {
+		tiledRenderer.markDirty(shapeIndex.getIndexedBounds(shape)); // Bounds before the change
+		tiledRenderer.markDirty(shape.getCachedBounds2D());
+		shapeIndex.update(shape);
+		if (shape != layersShape) invalidateLayers(); // The shape the layers are rendered around isn't in the layers
+		
+		SystemState actualState = stateManager.getActualState();
+		if (shape == selectedShape && (actualState == SystemState.MOVE || actualState == SystemState.RESIZE)) {
+			dragModified = true; // Reported by dragEnded()
+			for (EditListener listener : editListeners) {
+				listener.shapeDragged(selectedShapeIndex, shape);
+			}
+		} else {
+			fireShapeChanged(shapeIndex.getDepth(shape), shape);
+		}
+	}
+	
+	/**
+	 * Must be called after a shape has been removed from the list of shapes.
+	 * @param shape The removed shape.
+	 * @param index The position the shape had in the list, or -1 if the shape has been replaced by another one.
+	 */
+	private void shapeRemoved(GeneralShape shape, int index) {
+		tiledRenderer.markDirty(shapeIndex.getIndexedBounds(shape));
+		shapeIndex.remove(shape);
+		if (index >= 0) shapeIndex.reindex(shapes, index);
+		invalidateLayers();
+	}
+	
+	/**
+	 * Must be called after a shape has changed position in the list of shapes.
+	 * @param shape The shape that has been moved in the list.
+	 * @param fromIndex The previous position of the shape.
+	 * @param toIndex The new position of the shape.
+	 */
+	private void shapesReordered(GeneralShape shape, int fromIndex, int toIndex) {
+		shapeIndex.reindex(shapes, Math.min(fromIndex, toIndex)); // Only the positions between the two may have changed
+		invalidateLayers();
+		tiledRenderer.markDirty(shape.getCachedBounds2D()); // Only the area of the moved shape looks different
+		for (EditListener listener : editListeners) {
+			listener.shapeMoved(fromIndex, toIndex);
+		}
+	}
+	
+	/**
+	 * Must be called after the background (color or image) has changed.
+	 */
+	private void backgroundChanged() {
+		backgroundVersion++;
+		backgroundLoading = false;
+		backgroundPreview = null;
+		backgroundRedrawn();
+		if (editListeners == null) return; // Called by the constructor of JPanel
+		for (EditListener listener : editListeners) {
+			listener.backgroundChanged(getBackground(), backgroundImagePath);
+		}
+	}
+	
+	/**
+	 * Must be called when the background looks different without having changed (e.g. new preview of an image being loaded).
+	 */
+	private void backgroundRedrawn() {
+		scaledBackground = null;
+		acceleratedBackground = null;
+		invalidateLayers();
+		if (tiledRenderer != null) tiledRenderer.markAllDirty(); // Null when called by the constructor of JPanel
+	}
+	
+	/**
+	 * Must be called when the user stops moving or resizing the selected shape, to report the change to the edit listeners once.
+	 */
+	private void dragEnded() {
+		if (!dragModified) return;
+		dragModified = false;
+		if (selectedShape != null) fireShapeChanged(selectedShapeIndex, selectedShape);
+	}
+	
+	/**
+	 * Reports a changed shape to the edit listeners.
+	 * @param index The position of the shape.
+	 * @param shape The shape.
+	 */
+	private void fireShapeChanged(int index, GeneralShape shape) {
+		for (EditListener listener : editListeners) {
+			listener.shapeChanged(index, shape);
+		}
+	}
+	
+	
+	//----- Edit listeners -----
+	/**
+	 * Adds a listener notified of every change of the document.
+	 * @param listener The listener.
+	 */
+	public void addEditListener(EditListener listener) {
+		editListeners.add(listener);
+	}
+	
+	/**
+	 * Removes an edit listener.
+	 * @param listener The listener.
+	 */
+	public void removeEditListener(EditListener listener) {
+		editListeners.remove(listener);
 	}
 	
 	
@@ -414,7 +774,7 @@ public class Panel extends JPanel {
 			case OVAL: createdShape = new Oval(startPoint, endPoint); break;
 			default: break;
         }
-    	shapes.add(createdShape);
+    	addShape(createdShape);
     	
     	windowManager.setHasSaved(false);
     	
@@ -433,7 +793,7 @@ public class Panel extends JPanel {
 			case TRIANGLE: createdShape = new Triangle(pointCollection.get(0), pointCollection.get(1), pointCollection.get(2)); break;
 			default: break;
         }
-    	shapes.add(createdShape);
+    	addShape(createdShape);
     	
     	windowManager.setHasSaved(false);
     	
@@ -455,13 +815,15 @@ public class Panel extends JPanel {
                 return;
 			}
 			CompositionType compositionType = stateManager.getCompositionType();
+			firstShape = thaw(firstShape);
 			switch(compositionType) { // Create composed shape
 				case UNION: firstShape.add(selectedShape); break;
 				case INTERSECTION: firstShape.intersect(selectedShape); break;
 				case DIFFERENCE: firstShape.subtract(selectedShape); break;
 				case SYMETRICDIFFERENCE: firstShape.exclusiveOr(selectedShape); break;
 			}
-			shapes.remove(selectedShape); // Destroy 2nd shape
+			shapeModified(firstShape);
+			removeShape(selectedShapeIndex); // Destroy 2nd shape
 			
 			windowManager.setHasSaved(false);
 			
@@ -503,15 +865,8 @@ public class Panel extends JPanel {
 	 * @param point The point to select the shape.
 	 */
 	private void selectShape(Point point) {
-        for (int i = shapes.size() - 1; i >= 0; i--) {
-            if (shapes.get(i).contains(point)) {
-                selectedShape = shapes.get(i);
-                selectedShapeIndex = i;
-                return;
-            }
-        }
-        selectedShape = null;
-        selectedShapeIndex = -1;
+		selectedShape = shapeIndex.topmostAt(point);
+		selectedShapeIndex = (selectedShape == null ? -1 : shapeIndex.getDepth(selectedShape));
     }
 	
 	/**
@@ -527,7 +882,7 @@ public class Panel extends JPanel {
 	 * @param e The MouseEvent object.
 	 */
 	private void moveSelectedShape(MouseEvent e) {
-		java.awt.Rectangle bounds = selectedShape.getBounds();
+		java.awt.Rectangle bounds = selectedShape.getCachedBounds();
         int shapeW = (int) bounds.getWidth();
         int shapeH = (int) bounds.getHeight();
 
@@ -558,7 +913,8 @@ public class Panel extends JPanel {
         double dx = p.x - dragStart.x;
         double dy = p.y - dragStart.y;
 
-    	selectedShape.translate(dx, dy);
+    	thaw(selectedShape).translate(dx, dy);
+    	shapeModified(selectedShape);
     	
     	windowManager.setHasSaved(false);
 
@@ -578,7 +934,7 @@ public class Panel extends JPanel {
 	    int mouseX = mouse.x;
 	    int mouseY = mouse.y;
 	    
-	    java.awt.Rectangle bounds = selectedShape.getBounds();
+	    java.awt.Rectangle bounds = selectedShape.getCachedBounds();
         int shapeX = (int) bounds.getX();
         int shapeY = (int) bounds.getY();
         double shapeW = bounds.getWidth(); // We need double later to calculate scale
@@ -623,6 +979,7 @@ public class Panel extends JPanel {
 		
 		ResizeType resizeType = stateManager.getResizeType();
 		
+		thaw(selectedShape);
 		if (resizeTypeFlipped) { // If we flipped the state, to make sure the shape stays at the exact same place (i.e. for 
 			// example, the left border becomes the right border if we cross from RIGHT to LEFT), we have to translate the 
 			// shape of its width/height, depending on the case. We must apply the transform before the 3rd step.
@@ -656,7 +1013,7 @@ public class Panel extends JPanel {
 		        	selectedShape.translate(shapeW, 0);
 		            break;
 			}
-			bounds = selectedShape.getBounds(); // Update attributes after the transform
+			bounds = selectedShape.getCachedBounds(); // Update attributes after the transform
 		}
 		
 		//----- 3rd step : apply the final resize.
@@ -725,11 +1082,12 @@ public class Panel extends JPanel {
 	            break;
 	    }
 		    
-	    selectedShape.transform(transform);
+	    selectedShape.applyTransform(transform);
+	    shapeModified(selectedShape);
 		windowManager.setHasSaved(false);
 		
 		if(resizeTypeFlipped) { // To make sure the next time this function is called the 1st step works well, we have to update mouseInShape and initialW/H if the state has been flipped
-			bounds = selectedShape.getBounds();
+			bounds = selectedShape.getCachedBounds();
 	        shapeX = (int) bounds.getX();
 	        shapeY = (int) bounds.getY();
 			mouseInShape.setLocation(mouseX - shapeX, mouseY - shapeY);
@@ -747,6 +1105,7 @@ public class Panel extends JPanel {
 	 * @param action The action to adjust the depth.
 	 */
 	public void adjustSelectedShapeDepth(DepthAction action) {
+		int previousIndex = selectedShapeIndex;
 		switch(action) {
 			case FORGROUND:
 				if (selectedShapeIndex != shapes.size()-1) {
@@ -777,6 +1136,7 @@ public class Panel extends JPanel {
             	}
 				break;
 		}
+		if (selectedShapeIndex != previousIndex) shapesReordered(selectedShape, previousIndex, selectedShapeIndex);
 		repaintAroundShape(selectedShape, 0, 0);
 	}
 	
@@ -785,7 +1145,8 @@ public class Panel extends JPanel {
 	 * @param xAxis If true, reflects along the x-axis; otherwise, reflects along the y-axis.
 	 */
 	public void symmetryOnSelectedShape(boolean xAxis) {
-		selectedShape.reflect(xAxis);
+		thaw(selectedShape).reflect(xAxis);
+		shapeModified(selectedShape);
 		repaintAroundShape(selectedShape, 0, 0);
 	}
 	
@@ -794,9 +1155,8 @@ public class Panel extends JPanel {
 	 */
 	public void duplicateSelectedShape() {
 		GeneralShape duplicatedShape = selectedShape.duplicate();
-        shapes.add(duplicatedShape);
         
-        java.awt.Rectangle bounds = selectedShape.getBounds();
+        java.awt.Rectangle bounds = selectedShape.getCachedBounds();
         int shapeX = (int) bounds.getX();
         int shapeY = (int) bounds.getY();
         int shapeW = (int) bounds.getWidth();
@@ -808,6 +1168,7 @@ public class Panel extends JPanel {
         } else if (!rectangleNotInPanel(shapeX-10, shapeY-10, shapeW, shapeH)) {
         	duplicatedShape.translate(-10, -10);
         }
+        addShape(duplicatedShape);
     	
     	selectedShape = duplicatedShape;
     	selectedShapeIndex = shapes.size()-1;
@@ -822,7 +1183,7 @@ public class Panel extends JPanel {
 			Shape savedShape = selectedShape;
     		stateManager.setNeutralState();
     		cursorManager.setDefaultCursor();
-            shapes.remove(selectedShapeIndex);
+            removeShape(selectedShapeIndex);
             
             windowManager.setHasSaved(false);
             
@@ -867,18 +1228,48 @@ public class Panel extends JPanel {
 		selectedOutlineColor = c;
 	}
 	
+	/**
+	 * Applies a color to the selected shape.
+	 * @param c The color to apply.
+	 */
+	public void setSelectedShapeColor(Color c) {
+		thaw(selectedShape).setColor(c);
+		shapeModified(selectedShape);
+		repaintAroundShape(selectedShape, 0, 0);
+	}
+	
+	/**
+	 * Applies an outline color to the selected shape.
+	 * @param c The outline color to apply.
+	 */
+	public void setSelectedShapeOutlineColor(Color c) {
+		thaw(selectedShape).setOutlineColor(c);
+		shapeModified(selectedShape);
+		repaintAroundShape(selectedShape, 5, 5);
+	}
+	
+	/**
+	 * Applies an outline thickness to the selected shape.
+	 * @param thickness The outline thickness to apply.
+	 */
+	public void setSelectedShapeOutlineThickness(int thickness) {
+		thaw(selectedShape).setOutlineThickness(thickness);
+		shapeModified(selectedShape);
+		repaintAroundShape(selectedShape, 5, 5);
+	}
+	
 	/**
 	 * Applies the selected color to the first shape containing the given point.
 	 * @param point The point to apply the color.
 	 */
 	private void applySelectedColor(Point point) {
-        for (int i = shapes.size() - 1; i >= 0; i--) {
-        	GeneralShape currentShape = shapes.get(i);
-            if (currentShape.contains(point)) {
-            	currentShape.setColor(selectedColor);
-                repaintAroundShape(currentShape, 0, 0);
-                return;
-            }
+		GeneralShape currentShape = shapeIndex.topmostAt(point);
+        if (currentShape != null) {
+        	currentShape = thaw(currentShape);
+        	currentShape.setColor(selectedColor);
+        	shapeModified(currentShape);
+            repaintAroundShape(currentShape, 0, 0);
+            return;
         }
         cursorManager.setDefaultCursor();
         stateManager.setNeutralState();
@@ -911,6 +1302,17 @@ public class Panel extends JPanel {
 	public void setBackgroundImage(BufferedImage image, String path) {
 		backgroundImage = image;
 		backgroundImagePath = path;
+		backgroundChanged();
+	}
+	
+	/**
+	 * Sets the background color.
+	 * @param bg The background color.
+	 */
+	@Override
+	public void setBackground(Color bg) {
+		super.setBackground(bg);
+		backgroundChanged(); // Also called by the constructor of JPanel, before the attributes are initialized
 	}
 	
 	/**
@@ -919,9 +1321,9 @@ public class Panel extends JPanel {
 	public void changeBackgroundColor() {
 		selectedColor = JColorChooser.showDialog(this, "Choose a color", Color.BLACK);
         if (selectedColor != null) {
-        	setBackground(selectedColor);
         	backgroundImage = null;
         	backgroundImagePath = null;
+        	setBackground(selectedColor);
         }
 	}
 	
@@ -932,35 +1334,65 @@ public class Panel extends JPanel {
 		JFileChooser fileChooser = new JFileChooser();
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = fileChooser.getSelectedFile();
-            try {
-                backgroundImage = ImageIO.read(selectedFile);
-                if (backgroundImage == null) { helpText.setText("Please select a valid image."); return; }
-                backgroundImagePath = selectedFile.getAbsolutePath();
-                backgroundImage = resizeImage(backgroundImage, getWidth(), getHeight());
-                repaint();
-                helpText.setText("Background set.");
-            } catch (IOException ex) {
-            	helpText.setText("Error: Failed to load image. IOException occurred. " + ex.getMessage());
-            }
+            loadBackgroundImage(fileChooser.getSelectedFile());
         }
 	}
 	
 	/**
-	 * Resizes the given image to the specified width and height.
-	 * @param originalImage The original image to resize.
-	 * @param width The new width of the image.
-	 * @param height The new height of the image.
-	 * @return The resized image.
+	 * Loads an image file and uses it as background. The image is decoded, converted to the format of the screen and scaled 
+	 * down to the size of the screen on a background thread : a placeholder color, then previews of the image are displayed meanwhile.
+	 * The background color is kept if the image can't be loaded.
+	 * @param file The image file.
 	 */
-	private BufferedImage resizeImage(BufferedImage originalImage, int width, int height) {
-        Image tmp = originalImage.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-        BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics g = resizedImage.getGraphics();
-        g.drawImage(tmp, 0, 0, null);
-        g.dispose();
-        return resizedImage;
-    }
+	public void loadBackgroundImage(File file) {
+		String path = file.getAbsolutePath();
+		backgroundImage = null;
+		backgroundImagePath = path; // Already saved with the drawing if it's saved during the loading
+		backgroundChanged();
+		backgroundLoading = true;
+		int version = backgroundVersion;
+		repaint();
+		helpText.setText("Loading background...");
+		
+		java.awt.Rectangle maxSize = getMaxBackgroundSize();
+		imageManager.loadImage(file, maxSize.width, maxSize.height, new ImageManager.LoadListener() {
+			@Override
+			public void imageUpdated(BufferedImage preview) {
+				if (version != backgroundVersion) return; // The background has changed in the meantime
+				backgroundPreview = preview;
+				backgroundRedrawn();
+				repaint();
+			}
+			@Override
+			public void imageLoaded(BufferedImage image, long loadTime) {
+				if (version != backgroundVersion) return;
+				setBackgroundImage(image, path);
+				repaint();
+				helpText.setText("Background set. Image loaded in " + loadTime + " ms.");
+			}
+			@Override
+			public void loadFailed(Exception e) {
+				if (version != backgroundVersion) return;
+				backgroundImagePath = null;
+				backgroundChanged();
+				repaint();
+				helpText.setText("Error: Failed to load image. " + e.getMessage());
+			}
+		});
+	}
+	
+	/**
+	 * Gets the size a background image is scaled down to when it's imported : the size of the screen, or of the panel if it's bigger.
+	 * @return The maximum size of a background image.
+	 */
+	private java.awt.Rectangle getMaxBackgroundSize() {
+		java.awt.Rectangle maxSize = new java.awt.Rectangle(0, 0, getWidth(), getHeight());
+		GraphicsConfiguration gc = imageManager.getGraphicsConfiguration();
+		if (gc != null) {
+			maxSize = maxSize.union(new java.awt.Rectangle(gc.getBounds().getSize()));
+		}
+		return maxSize;
+	}
 
 	
 	
@@ -993,51 +1425,297 @@ public class Panel extends JPanel {
 	
 	
 	
+	//----- Rendering settings -----
+	/**
+	 * Checks if the tiled renderer is used.
+	 * @return True if the tiled renderer is used, false otherwise.
+	 */
+	public boolean isTiledRendering() {
+		return tiledRendering;
+	}
+	
+	/**
+	 * Enables or disables the tiled renderer.
+	 * @param state True to use the tiled renderer, false to paint the whole canvas on every repaint.
+	 */
+	public void setTiledRendering(boolean state) {
+		tiledRendering = state;
+		tiledRenderer.clear(); // The tiles aren't kept up to date while they aren't used
+		repaint();
+	}
+	
+	/**
+	 * Gets the size of the tiles used by the tiled renderer.
+	 * @return The width and height of a tile, in pixels.
+	 */
+	public int getTileSize() {
+		return tiledRenderer.getTileSize();
+	}
+	
+	/**
+	 * Sets the size of the tiles used by the tiled renderer.
+	 * @param tileSize The width and height of a tile, in pixels.
+	 */
+	public void setTileSize(int tileSize) {
+		tiledRenderer.setTileSize(tileSize);
+		repaint();
+	}
+	
+	
+	
 	//----- Painting -----
 	/**
 	 * Paints the background.
 	 * @param g2d The Graphics2D object.
 	 */
 	private void paintBackground(Graphics g2d) {
-		if (backgroundImage != null) {
-            g2d.drawImage(backgroundImage, 0, 0, getWidth(), getHeight(), this);
+		BufferedImage image = (backgroundImage != null ? backgroundImage : backgroundPreview);
+		if (image == null && backgroundLoading) {
+			g2d.setColor(BACKGROUND_PLACEHOLDER);
+			java.awt.Rectangle clip = g2d.getClipBounds();
+			if (clip != null) g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
+			else g2d.fillRect(0, 0, getWidth(), getHeight());
+		} else if (image != null) {
+			int w = getWidth();
+			int h = getHeight();
+			if (w <= 0 || h <= 0) return;
+			
+			if (scaledBackground == null || scaledBackground.getWidth() != w || scaledBackground.getHeight() != h) {
+				scaledBackground = scaleBackground(image, w, h); // Only done when the background or the size of the panel changes
+			}
+			
+			// Only the part of the background inside the area to repaint is drawn, without any scaling
+			java.awt.Rectangle area = new java.awt.Rectangle(0, 0, w, h);
+			java.awt.Rectangle clip = g2d.getClipBounds();
+			if (clip != null) area = area.intersection(clip);
+			if (area.isEmpty()) return;
+			
+			int x2 = area.x + area.width;
+			int y2 = area.y + area.height;
+			if (!drawAcceleratedBackground(g2d, area.x, area.y, x2, y2)) {
+				g2d.drawImage(scaledBackground, area.x, area.y, x2, y2, area.x, area.y, x2, y2, null);
+			}
         }
 	}
 	
+	/**
+	 * Draws a part of the background from its copy in video memory, creating or restoring the copy if needed.
+	 * @param g The Graphics object.
+	 * @param x1 The x-coordinate of the top-left corner of the part to draw.
+	 * @param y1 The y-coordinate of the top-left corner of the part to draw.
+	 * @param x2 The x-coordinate of the bottom-right corner of the part to draw.
+	 * @param y2 The y-coordinate of the bottom-right corner of the part to draw.
+	 * @return True if the part has been drawn, false if the video memory can't be used (the caller has to draw scaledBackground instead).
+	 */
+	private boolean drawAcceleratedBackground(Graphics g, int x1, int y1, int x2, int y2) {
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if (gc == null || !(g instanceof Graphics2D) 
+			|| ((Graphics2D) g).getDeviceConfiguration().getDevice().getType() == GraphicsDevice.TYPE_IMAGE_BUFFER) {
+			return false; // Not displayed, or drawing in an image (layers, tiles...) : reading back from video memory would be slow
+		}
+		
+		int w = scaledBackground.getWidth();
+		int h = scaledBackground.getHeight();
+		for (int attempt = 0; attempt < 2; attempt++) { // The content of a VolatileImage can be lost at any time
+			if (acceleratedBackground == null || acceleratedBackground.getWidth() != w || acceleratedBackground.getHeight() != h) {
+				try {
+					acceleratedBackground = gc.createCompatibleVolatileImage(w, h, scaledBackground.getTransparency());
+				} catch (Exception e) {
+					return false;
+				}
+				if (acceleratedBackground == null) return false;
+				copyToAcceleratedBackground();
+			}
+			
+			int status = acceleratedBackground.validate(gc);
+			if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+				acceleratedBackground = null;
+				continue;
+			} else if (status == VolatileImage.IMAGE_RESTORED) {
+				copyToAcceleratedBackground();
+			}
+			
+			g.drawImage(acceleratedBackground, x1, y1, x2, y2, x1, y1, x2, y2, null);
+			if (!acceleratedBackground.contentsLost()) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Copies scaledBackground into its copy in video memory.
+	 */
+	private void copyToAcceleratedBackground() {
+		Graphics2D g2d = acceleratedBackground.createGraphics();
+		if (scaledBackground.getTransparency() != Transparency.OPAQUE) {
+			g2d.setComposite(java.awt.AlphaComposite.Src); // Replace the previous content, including transparency
+		}
+		g2d.drawImage(scaledBackground, 0, 0, null);
+		g2d.dispose();
+	}
+	
+	/**
+	 * Scales the background image (or its preview) to the specified size, in the format of the screen.
+	 * @param image The background image or its preview.
+	 * @param w The width of the scaled image.
+	 * @param h The height of the scaled image.
+	 * @return The scaled background image.
+	 */
+	private BufferedImage scaleBackground(BufferedImage image, int w, int h) {
+		BufferedImage scaledImage = createLayer(w, h, image.getTransparency());
+		Graphics2D g2d = scaledImage.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2d.drawImage(image, 0, 0, w, h, null);
+		g2d.dispose();
+		return scaledImage;
+	}
+	
 	/**
 	 * Paints the stored shapes.
 	 * @param g2d The Graphics2D object.
 	 */
 	private void paintStoredShapes(Graphics2D g2d) {
-		for (GeneralShape shape : shapes) {
-			// Inside
-			Color color = shape.getColor();
-	        g2d.setColor(color);
-            g2d.fill(shape);
+		paintStoredShapes(g2d, 0, shapes.size());
+	}
+	
+	/**
+	 * Paints the stored shapes between the specified positions.
+	 * @param g2d The Graphics2D object.
+	 * @param fromIndex The position of the first shape to paint (inclusive).
+	 * @param toIndex The position of the last shape to paint (exclusive).
+	 */
+	private void paintStoredShapes(Graphics2D g2d, int fromIndex, int toIndex) {
+		java.awt.Rectangle clip = g2d.getClipBounds(); // Only the shapes intersecting the area to repaint are painted
+		for (int i = fromIndex; i < toIndex; i++) {
+			GeneralShape shape = shapes.get(i);
+			if (clip != null) {
+				Rectangle2D bounds = shape.getCachedBounds2D();
+				if (!clip.intersects(bounds.getX() - 1, bounds.getY() - 1, bounds.getWidth() + 2, bounds.getHeight() + 2)) continue; // 1px margin for the outline
+			}
+			paintShape(g2d, shape);
+        }
+	}
+	
+	/**
+	 * Paints a shape with its outline.
+	 * @param g2d The Graphics2D object.
+	 * @param shape The shape to paint.
+	 */
+	private void paintShape(Graphics2D g2d, GeneralShape shape) {
+		// Inside
+		Color color = shape.getColor();
+        g2d.setColor(color);
+        g2d.fill(shape);
+        
+        // Outline
+        int outlineThickness = shape.getOutlineThickness();
+        if (outlineThickness > 0) {
+        	color = shape.getOutlineColor();
+            g2d.setColor(color);
             
-            // Outline
-            int outlineThickness = shape.getOutlineThickness();
-            if (outlineThickness > 0) {
-            	color = shape.getOutlineColor();
-                g2d.setColor(color);
-                
-                Stroke savedStroke = g2d.getStroke();
-                Stroke outline = new BasicStroke(shape.getOutlineThickness()*2); // Method : to get an intern outline, we double the size of the
-                //outline and restraint it to the part inside the shape with clip()
-                
-                g2d.clip(shape);
-                g2d.setStroke(outline);
-                
-                g2d.draw(shape);
-                
-                g2d.setClip(null);
-    	        g2d.setStroke(savedStroke);
-    	        
-    	        g2d.draw(shape); // We draw it one last time without clip for a better result, especially with round shapes (clip isn't very precise)
-            }
+            g2d.fill(shape.getInnerOutline()); // Method : to get an intern outline, the shape keeps the part of a stroke of twice the 
+            //thickness that is inside it. It's only computed again when the path or the thickness changes.
+	        
+	        g2d.draw(shape); // We draw the border with the default stroke for a better result, especially with round shapes
         }
 	}
 	
+	/**
+	 * Paints the background and the stored shapes intersecting an area. Used by the tiled renderer to render a tile.
+	 * @param g2d The Graphics2D object, clipped to the area.
+	 * @param area The area to paint.
+	 */
+	private void paintArea(Graphics2D g2d, java.awt.Rectangle area) {
+		g2d.setColor(getBackground());
+		g2d.fill(area);
+		paintBackground(g2d);
+		for (GeneralShape shape : shapeIndex.query(new Rectangle2D.Double(area.x - 1, area.y - 1, area.width + 2, area.height + 2))) { // 1px margin for the outline
+			paintShape(g2d, shape);
+		}
+	}
+	
+	/**
+	 * Gets the bounds of the stored shapes painted over an area. Used by the tiled renderer to render a tile.
+	 * @param area The area.
+	 * @return The union of the bounds of the shapes crossing the area, or null if there are none.
+	 */
+	private Rectangle2D getContentBounds(java.awt.Rectangle area) {
+		Rectangle2D bounds = null;
+		for (GeneralShape shape : shapeIndex.query(new Rectangle2D.Double(area.x - 1, area.y - 1, area.width + 2, area.height + 2))) {
+			if (bounds == null) bounds = (Rectangle2D) shape.getCachedBounds2D().clone(); // The cached bounds are shared
+			else bounds.add(shape.getCachedBounds2D());
+		}
+		return bounds;
+	}
+	
+	/**
+	 * Paints the background and the stored shapes using the layer cache : the layers under and above the selected
+	 * shape are rendered once, then each frame only composites them with the selected shape.
+	 * Used during move and resize, where only the selected shape changes.
+	 * @param g2d The Graphics2D object.
+	 */
+	private void paintWithLayers(Graphics2D g2d) {
+		int w = getWidth();
+		int h = getHeight();
+		
+		if (layersShape != selectedShape || layersShapeIndex != selectedShapeIndex 
+			|| belowLayer == null || belowLayer.getWidth() != w || belowLayer.getHeight() != h) {
+			renderLayers(w, h);
+		}
+		
+		g2d.drawImage(belowLayer, 0, 0, null);
+		paintShape(g2d, selectedShape);
+		g2d.drawImage(aboveLayer, 0, 0, null);
+	}
+	
+	/**
+	 * Renders the layers under and above the selected shape.
+	 * @param w The width of the layers.
+	 * @param h The height of the layers.
+	 */
+	private void renderLayers(int w, int h) {
+		belowLayer = createLayer(w, h, Transparency.OPAQUE);
+		Graphics2D g2d = belowLayer.createGraphics();
+		g2d.setColor(getBackground());
+		g2d.fillRect(0, 0, w, h);
+		paintBackground(g2d);
+		paintStoredShapes(g2d, 0, selectedShapeIndex);
+		g2d.dispose();
+		
+		aboveLayer = createLayer(w, h, Transparency.TRANSLUCENT);
+		g2d = aboveLayer.createGraphics();
+		paintStoredShapes(g2d, selectedShapeIndex + 1, shapes.size());
+		g2d.dispose();
+		
+		layersShape = selectedShape;
+		layersShapeIndex = selectedShapeIndex;
+	}
+	
+	/**
+	 * Creates an image in the format of the screen (faster to draw), or a standard image if the panel isn't displayed.
+	 * @param w The width of the image.
+	 * @param h The height of the image.
+	 * @param transparency The transparency of the image (see java.awt.Transparency).
+	 * @return The created image.
+	 */
+	private BufferedImage createLayer(int w, int h, int transparency) {
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if (gc != null) {
+			return gc.createCompatibleImage(Math.max(w, 1), Math.max(h, 1), transparency);
+		}
+		int type = (transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		return new BufferedImage(Math.max(w, 1), Math.max(h, 1), type);
+	}
+	
+	/**
+	 * Invalidates the layer cache. Must be called every time something painted in the layers changes.
+	 */
+	private void invalidateLayers() {
+		layersShape = null;
+		layersShapeIndex = -1;
+		belowLayer = null;
+		aboveLayer = null;
+	}
+	
 	/**
 	 * Paints the shape being created.
 	 * @param g2d The Graphics2D object.
@@ -1084,7 +1762,7 @@ public class Panel extends JPanel {
             
             if (stateManager.getActualState() != SystemState.COMPOSITION) {
             	g2d.setColor(Color.BLUE);
-            	java.awt.Rectangle bounds = selectedShape.getBounds();
+            	java.awt.Rectangle bounds = selectedShape.getCachedBounds();
                 int x = (int) bounds.getX();
                 int y = (int) bounds.getY();
                 int w = (int) bounds.getWidth();
@@ -1116,8 +1794,15 @@ public class Panel extends JPanel {
 		super.paintComponent(g);
          
 		Graphics2D g2d = (Graphics2D) g;
-		paintBackground(g2d);
-		paintStoredShapes(g2d);
+		SystemState actualState = stateManager.getActualState();
+		if (tiledRendering) {
+			tiledRenderer.paint(g2d, g2d.getClipBounds(), getWidth(), getHeight());
+		} else if (selectedShape != null && (actualState == SystemState.MOVE || actualState == SystemState.RESIZE)) {
+			paintWithLayers(g2d);
+		} else {
+			paintBackground(g2d);
+			paintStoredShapes(g2d);
+		}
 		paintShapeBeingCreated(g2d);
 		paintSelectedShape(g2d);
     }
@@ -1130,7 +1815,7 @@ public class Panel extends JPanel {
 	 * @param bottomRightMargin The margin on the bottom and right.
 	 */
 	public void repaintAroundShape(Shape shape, int topLeftMargin, int bottomRightMargin) {
-		java.awt.Rectangle bounds = shape.getBounds();
+		java.awt.Rectangle bounds = (shape instanceof GeneralShape ? ((GeneralShape) shape).getCachedBounds() : shape.getBounds());
         int x = (int) bounds.getX();
         int y = (int) bounds.getY();
         int w = (int) bounds.getWidth();
@@ -1139,6 +1824,17 @@ public class Panel extends JPanel {
         repaint(x-topLeftMargin, y-topLeftMargin, w+bottomRightMargin, h+bottomRightMargin);
 	}
 	
+	/**
+	 * Repaints the area covered by the selected shape before and after it has been dragged, including its selection handles.
+	 * Cheaper than repainting the whole canvas on every mouseDragged event.
+	 * @param oldBounds The bounds of the selected shape before the drag event.
+	 */
+	private void repaintAroundDrag(Rectangle2D oldBounds) {
+		java.awt.Rectangle area = oldBounds.createUnion(selectedShape.getCachedBounds2D()).getBounds();
+		area.grow(SELECTION_MARGIN, SELECTION_MARGIN);
+		repaint(area);
+	}
+	
 	
 	
 	//----- Tests -----
@@ -1162,6 +1858,14 @@ public class Panel extends JPanel {
 	
 	
 	//----- Reset -----
+	/**
+	 * Gets the number of times the panel has been reset, e.g. to know if a document restored earlier is still there.
+	 * @return The number of resets.
+	 */
+	public int getResetCount() {
+		return resetCount;
+	}
+	
 	/**
 	 * Resets the drawing panel to its initial state.
 	 */
@@ -1170,8 +1874,16 @@ public class Panel extends JPanel {
 		cursorManager.setDefaultCursor();
 		helpText.setText("");
 	    shapes.clear();
+	    shapeIndex.clear();
+	    invalidateLayers();
+	    tiledRenderer.clear();
 	    backgroundImage = null;
 		backgroundImagePath = null;
+		backgroundLoading = false;
+		backgroundPreview = null;
+		backgroundVersion++; // An image still loading mustn't be used
+		scaledBackground = null;
+		acceleratedBackground = null;
 		selectedShape = null;
 	    selectedShapeIndex = -1;
 	    startPoint = null;
@@ -1185,8 +1897,13 @@ public class Panel extends JPanel {
 	    selectedColor = null;
 	    selectedOutlineColor = null;
 	    mousePressed = false;
+	    dragModified = false;
+	    resetCount++;
 	    setBackground(Color.WHITE);
 	    windowManager.setHasSaved(true);
+	    for (EditListener listener : editListeners) {
+	    	listener.documentReset();
+	    }
 	    repaint();
 	}
 
@@ -0,0 +1,268 @@
+package forms.windowsContents;
+
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Simon Antropius
+ * @author Maxence Desmonteix
+ */
+
+public class TiledRenderer {
+
+	/***************************************************************************
+	 * Attributes.
+	 **************************************************************************/
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+	private static final long MAX_CACHE_BYTES = 128L << 20; // Memory taken by the cached tiles, the least recently drawn ones are dropped beyond
+	private static final int MIN_CACHED_TILES = 16;
+	private static final int MAX_MARGIN = 512; // How far around a tile the shapes crossing it are rendered (see renderTile())
+
+	/**
+	 * Paints the content of the canvas for the tiles.
+	 */
+	public interface AreaPainter {
+		/**
+		 * Paints the content of an area of the canvas. The Graphics2D object is already clipped to the area.
+		 * @param g2d The Graphics2D object.
+		 * @param area The area to paint.
+		 */
+		void paintArea(Graphics2D g2d, Rectangle area);
+
+		/**
+		 * Gets the bounds of what is painted over an area, which may go beyond it : the shapes crossing the area are painted whole.
+		 * @param area The area.
+		 * @return The bounds of the shapes crossing the area, or null if there are none.
+		 */
+		Rectangle2D getContentBounds(Rectangle area);
+	}
+
+	private Component component;
+	private AreaPainter painter;
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private int maxTiles = maxTiles(DEFAULT_TILE_SIZE);
+
+	private Map<Long, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true) { // Cached raster of the tiles, key = packed (column, row), least recently drawn first
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+			if (size() <= maxTiles) return false;
+			dirtyTiles.remove(eldest.getKey());
+			return true;
+		}
+	};
+	private Set<Long> dirtyTiles = new HashSet<>(); // Tiles whose raster has to be rendered again before being drawn
+	private BufferedImage scratch = null; // Raster the tiles crossed by shapes are rendered in before being copied, reused
+	private int lastWidth = -1;
+	private int lastHeight = -1;
+
+	/***************************************************************************
+	 * Constructors.
+	 **************************************************************************/
+
+	/**
+	 * Constructs a tiled renderer.
+	 * @param component The component the tiles are drawn on.
+	 * @param painter The painter used to render the content of a tile.
+	 */
+	public TiledRenderer(Component component, AreaPainter painter) {
+		this.component = component;
+		this.painter = painter;
+	}
+
+	/***************************************************************************
+	 * Methods.
+	 **************************************************************************/
+
+	/**
+	 * Gets the size of the tiles.
+	 * @return The width and height of a tile, in pixels.
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Sets the size of the tiles. Every cached tile is dropped.
+	 * @param tileSize The width and height of a tile, in pixels.
+	 */
+	public void setTileSize(int tileSize) {
+		this.tileSize = tileSize;
+		maxTiles = maxTiles(tileSize);
+		clear();
+	}
+
+	/**
+	 * Draws the tiles intersecting the specified area, rendering again the ones that are missing or dirty.
+	 * @param g2d The Graphics2D object.
+	 * @param clip The area to draw, or null to draw the whole canvas.
+	 * @param width The width of the canvas.
+	 * @param height The height of the canvas.
+	 */
+	public void paint(Graphics2D g2d, Rectangle clip, int width, int height) {
+		if (width != lastWidth || height != lastHeight) { // The background image is stretched to the size of the canvas
+			clear();
+			lastWidth = width;
+			lastHeight = height;
+		}
+
+		Rectangle area = new Rectangle(0, 0, width, height);
+		if (clip != null) area = area.intersection(clip);
+		if (area.isEmpty()) return;
+
+		int minCol = area.x / tileSize;
+		int maxCol = (area.x + area.width - 1) / tileSize;
+		int minRow = area.y / tileSize;
+		int maxRow = (area.y + area.height - 1) / tileSize;
+
+		for (int col = minCol; col <= maxCol; col++) {
+			for (int row = minRow; row <= maxRow; row++) {
+				long key = key(col, row);
+				BufferedImage tile = tiles.get(key);
+				if (tile == null) {
+					tile = createTile();
+					tiles.put(key, tile);
+					renderTile(tile, col, row);
+				} else if (dirtyTiles.remove(key)) {
+					renderTile(tile, col, row);
+				}
+				g2d.drawImage(tile, col * tileSize, row * tileSize, null);
+			}
+		}
+	}
+
+	/**
+	 * Marks the tiles overlapping the specified area as dirty.
+	 * @param area The area that changed, or null.
+	 */
+	public void markDirty(Rectangle2D area) {
+		if (area == null || tiles.isEmpty()) return;
+
+		int minCol = Math.max(0, (int) Math.floor((area.getMinX() - 1) / tileSize)); // 1px margin for the outline
+		int maxCol = (int) Math.floor((area.getMaxX() + 1) / tileSize);
+		int minRow = Math.max(0, (int) Math.floor((area.getMinY() - 1) / tileSize));
+		int maxRow = (int) Math.floor((area.getMaxY() + 1) / tileSize);
+
+		if ((long) (maxCol - minCol + 1) * (maxRow - minRow + 1) > tiles.size()) { // Cheaper to go through the rendered tiles
+			for (long key : tiles.keySet()) {
+				int col = (int) (key >> 32);
+				int row = (int) key;
+				if (col >= minCol && col <= maxCol && row >= minRow && row <= maxRow) dirtyTiles.add(key);
+			}
+			return;
+		}
+		for (int col = minCol; col <= maxCol; col++) {
+			for (int row = minRow; row <= maxRow; row++) {
+				long key = key(col, row);
+				if (tiles.containsKey(key)) dirtyTiles.add(key);
+			}
+		}
+	}
+
+	/**
+	 * Marks every tile as dirty.
+	 */
+	public void markAllDirty() {
+		dirtyTiles.addAll(tiles.keySet());
+	}
+
+	/**
+	 * Drops every cached tile.
+	 */
+	public void clear() {
+		tiles.clear();
+		dirtyTiles.clear();
+		scratch = null;
+	}
+
+	/**
+	 * Renders the content of a tile.
+	 * <p>
+	 * Java2D doesn't draw the part of a line inside a clip the same way as the whole line : the line is cut at the edge of the clip
+	 * and drawn again from there, so its pixels may move by one. To look exactly like the canvas painted at once, the shapes crossing
+	 * the tile are rendered whole (up to MAX_MARGIN around it) in a bigger raster, clipped to the canvas as the panel is, then the tile is copied.
+	 * @param tile The raster of the tile.
+	 * @param col The column of the tile.
+	 * @param row The row of the tile.
+	 */
+	private void renderTile(BufferedImage tile, int col, int row) {
+		Rectangle area = new Rectangle(col * tileSize, row * tileSize, tileSize, tileSize);
+
+		Rectangle rendered = new Rectangle(area);
+		Rectangle2D content = painter.getContentBounds(area);
+		if (content != null) {
+			rendered.add(content.getBounds());
+			rendered.grow(1, 1); // The border of a shape is drawn one pixel beyond its bounds
+			rendered = rendered.intersection(new Rectangle(area.x - MAX_MARGIN, area.y - MAX_MARGIN, tileSize + 2 * MAX_MARGIN, tileSize + 2 * MAX_MARGIN));
+		}
+		rendered = rendered.intersection(new Rectangle(0, 0, lastWidth, lastHeight));
+
+		if (rendered.equals(area)) { // Nothing crosses the tile, it's rendered in place
+			Graphics2D g2d = tile.createGraphics();
+			g2d.translate(-area.x, -area.y);
+			g2d.setClip(area);
+			painter.paintArea(g2d, area);
+			g2d.dispose();
+			return;
+		}
+
+		if (scratch == null || scratch.getWidth() < rendered.width || scratch.getHeight() < rendered.height) {
+			int width = Math.max(rendered.width, (scratch == null ? 0 : scratch.getWidth()));
+			int height = Math.max(rendered.height, (scratch == null ? 0 : scratch.getHeight()));
+			scratch = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		Graphics2D g2d = scratch.createGraphics();
+		g2d.translate(-rendered.x, -rendered.y);
+		g2d.setClip(rendered);
+		painter.paintArea(g2d, rendered);
+		g2d.dispose();
+
+		int x = area.x - rendered.x;
+		int y = area.y - rendered.y;
+		g2d = tile.createGraphics();
+		g2d.drawImage(scratch, 0, 0, tileSize, tileSize, x, y, x + tileSize, y + tileSize, null); // The part outside the canvas is never shown
+		g2d.dispose();
+	}
+
+	/**
+	 * Creates the raster of a tile, in the format of the screen if possible.
+	 * @return The created raster.
+	 */
+	private BufferedImage createTile() {
+		GraphicsConfiguration gc = component.getGraphicsConfiguration();
+		if (gc != null) {
+			return gc.createCompatibleImage(tileSize, tileSize, Transparency.OPAQUE);
+		}
+		return new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+	}
+
+	/**
+	 * Computes how many tiles of a size can be kept without exceeding the memory allowed to the cache.
+	 * @param tileSize The width and height of a tile, in pixels.
+	 * @return The maximum number of cached tiles.
+	 */
+	private static int maxTiles(int tileSize) {
+		return (int) Math.max(MIN_CACHED_TILES, MAX_CACHE_BYTES / (4L * tileSize * tileSize)); // 4 bytes per pixel
+	}
+
+	/**
+	 * Packs a column and a row into a single key.
+	 * @param col The column of the tile.
+	 * @param row The row of the tile.
+	 * @return The key of the tile.
+	 */
+	private static long key(int col, int row) {
+		return ((long) col << 32) | (row & 0xFFFFFFFFL);
+	}
+
+}